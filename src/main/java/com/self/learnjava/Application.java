@@ -461,7 +461,7 @@ public class LocalStorageService implements StorageService {
 //启动自动配置，但排除指定的自动配置:
 @EnableAutoConfiguration(exclude = DataSourceAutoConfiguration.class)
 @Import({MasterDataSourceConfiguration.class, SlaveDataSourceConfiguration.class, RoutingDataSourceConfiguration.class
-	,RedisConfiguration.class})
+	,RedisConfiguration.class, JmsConfiguration.class, KafkaConfiguration.class})
 public class Application 
 {
     public static void main( String[] args )
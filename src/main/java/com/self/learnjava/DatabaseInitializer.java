@@ -21,5 +21,12 @@ public class DatabaseInitializer {
 				+ "name VARCHAR(100) NOT NULL,"
 				+ "createdAt BIGINT NOT NULL,"
 				+ "UNIQUE (email))");
+		//事务发件箱，见OutboxService:
+		jdbcTemplate.update("CREATE TABLE IF NOT EXISTS outbox("
+				+ "id BIGINT IDENTITY NOT NULL PRIMARY KEY,"
+				+ "destination VARCHAR(200) NOT NULL,"
+				+ "payload VARCHAR(4000) NOT NULL,"
+				+ "createdAt BIGINT NOT NULL,"
+				+ "sentAt BIGINT)");
 	}
 }
@@ -0,0 +1,34 @@
+package com.self.learnjava;
+
+import org.apache.activemq.artemis.jms.client.ActiveMQConnectionFactory;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.context.annotation.Bean;
+import org.springframework.core.env.Environment;
+import org.springframework.jms.connection.SingleConnectionFactory;
+
+/*
+ * JMS相关的配置，通过@Import导入。
+ * messaging.async-send为true时，为Artemis设置confirmationWindowSize，异步发送的CompletionListener在服务器确认后才被回调。
+ */
+public class JmsConfiguration {
+
+	@Bean
+	static BeanPostProcessor artemisConfirmationWindowPostProcessor(Environment environment) {
+		boolean asyncSend = environment.getProperty("messaging.async-send", Boolean.class, false);
+		int windowSize = environment.getProperty("messaging.confirmation-window-size", Integer.class, 1024 * 1024);
+		return new BeanPostProcessor() {
+			@Override
+			public Object postProcessAfterInitialization(Object bean, String beanName) {
+				// 自动配置的CachingConnectionFactory包装了ActiveMQConnectionFactory:
+				Object target = bean instanceof SingleConnectionFactory ? ((SingleConnectionFactory) bean).getTargetConnectionFactory() : bean;
+				if (asyncSend && target instanceof ActiveMQConnectionFactory) {
+					ActiveMQConnectionFactory factory = (ActiveMQConnectionFactory) target;
+					if (factory.getConfirmationWindowSize() <= 0) {
+						factory.setConfirmationWindowSize(windowSize);
+					}
+				}
+				return bean;
+			}
+		};
+	}
+}
@@ -0,0 +1,32 @@
+package com.self.learnjava;
+
+import org.apache.kafka.clients.admin.NewTopic;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+
+import com.self.learnjava.service.impl.KafkaMessageTransport;
+
+/*
+ * messaging.transport为kafka时通过@Import导入，启动时由Spring Boot自动配置的KafkaAdmin创建topic（已存在时不修改）。
+ * 分区数决定了最多有多少个消费者可以并行消费。
+ */
+@ConditionalOnProperty(value="messaging.transport", havingValue="kafka")
+public class KafkaConfiguration {
+
+	@Value("${messaging.kafka.partitions:12}")
+	int partitions;
+
+	@Value("${messaging.kafka.replicas:1}")
+	short replicas;
+
+	@Bean
+	NewTopic mailTopic() {
+		return new NewTopic(KafkaMessageTransport.MAIL_TOPIC, partitions, replicas);
+	}
+
+	@Bean
+	NewTopic mailDeadLetterTopic() {
+		return new NewTopic(KafkaMessageTransport.MAIL_DEAD_LETTER_TOPIC, 1, replicas);
+	}
+}
@@ -3,6 +3,8 @@ package com.self.learnjava;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 
+import com.self.learnjava.service.RedisPoolProperties;
+
 import io.lettuce.core.RedisClient;
 import io.lettuce.core.RedisURI;
 
@@ -40,6 +42,12 @@ public class RedisConfiguration {
 		this.database = database;
 	}
 	
+	@Bean
+	@ConfigurationProperties("spring.redis.pool")
+	RedisPoolProperties redisPoolProperties() {
+		return new RedisPoolProperties();
+	}
+	
 	@Bean
 	RedisClient redisClient() {
 		RedisURI uri = RedisURI.Builder.redis(this.host, this.port).withPassword(this.password)
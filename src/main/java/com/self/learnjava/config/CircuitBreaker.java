@@ -0,0 +1,84 @@
+package com.self.learnjava.config;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * 从库的断路器：
+ * CLOSED：正常放行，连续失败达到failureThreshold次后打开；
+ * OPEN：冷却期内拒绝所有请求，读操作直接回退到主库，不再等待connection-timeout；
+ * HALF_OPEN：冷却期结束后放行一个试探请求，成功则关闭，失败则重新打开。
+ */
+public class CircuitBreaker {
+
+	public static enum State {
+		CLOSED, OPEN, HALF_OPEN;
+	}
+
+	private final int failureThreshold;
+	private final long coolDownMillis;
+
+	private final AtomicInteger consecutiveFailures = new AtomicInteger();
+	private final AtomicLong openCount = new AtomicLong();
+	private volatile State state = State.CLOSED;
+	private volatile long stateChangedAt;
+
+	public CircuitBreaker(int failureThreshold, Duration coolDown) {
+		this.failureThreshold = Math.max(1, failureThreshold);
+		this.coolDownMillis = coolDown.toMillis();
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public long getOpenCount() {
+		return openCount.get();
+	}
+
+	public boolean allowRequest() {
+		if (state == State.CLOSED) {
+			return true;
+		}
+		return tryHalfOpen();
+	}
+
+	/*
+	 * 冷却期结束后只让一个线程进入HALF_OPEN去试探；
+	 * 如果试探请求一直没有结果，再过一个冷却期允许下一次试探：
+	 */
+	private synchronized boolean tryHalfOpen() {
+		if (state != State.CLOSED && System.currentTimeMillis() - stateChangedAt >= coolDownMillis) {
+			transition(State.HALF_OPEN);
+			return true;
+		}
+		return state == State.CLOSED;
+	}
+
+	public void recordSuccess() {
+		consecutiveFailures.set(0);
+		if (state != State.CLOSED) {
+			synchronized (this) {
+				transition(State.CLOSED);
+			}
+		}
+	}
+
+	public void recordFailure() {
+		int failures = consecutiveFailures.incrementAndGet();
+		if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+			synchronized (this) {
+				if (state != State.OPEN) {
+					transition(State.OPEN);
+					openCount.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	private void transition(State newState) {
+		this.state = newState;
+		this.stateChangedAt = System.currentTimeMillis();
+	}
+}
@@ -0,0 +1,18 @@
+package com.self.learnjava.config;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+/*
+ * 标注在写数据库的方法上，方法成功返回（有事务时在事务提交）后记录当前Session的最后写入时间，
+ * 在read-your-writes-window之内，该Session的@RoutingWithSlave读操作仍然走主库，避免读到从库上尚未同步的旧数据。
+ * 只对已经有Session的调用方生效：没有Session的无状态调用方（不带Cookie的API客户端）不会为此创建Session，
+ * 它们写入之后的读操作仍然可能读到从库上的旧数据。
+ */
+@Retention(RUNTIME)
+@Target(METHOD)
+public @interface MarkLastWrite {
+
+}
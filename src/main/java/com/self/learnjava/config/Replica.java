@@ -0,0 +1,124 @@
+package com.self.learnjava.config;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+
+/*
+ * 一个从库：包装真正的DataSource，记录权重和健康状态。
+ * 获取连接的成功和失败都报告给断路器，连续失败后断路器打开，冷却期内不再使用该从库；
+ * 健康检查失败的从库同样移出轮询，由ReplicaGroup的健康检查负责恢复。
+ */
+public class Replica extends DelegatingDataSource {
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final String name;
+	private final int weight;
+	private final CircuitBreaker circuitBreaker;
+	private volatile boolean healthy = true;
+	private ReplicaGroup group;
+
+	public Replica(String name, DataSource target, int weight, CircuitBreaker circuitBreaker) {
+		super(target);
+		this.name = name;
+		this.weight = Math.max(1, weight);
+		this.circuitBreaker = circuitBreaker;
+	}
+
+	void setGroup(ReplicaGroup group) {
+		this.group = group;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getWeight() {
+		return weight;
+	}
+
+	public CircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
+	}
+
+	public boolean isHealthy() {
+		return healthy;
+	}
+
+	void setHealthy(boolean healthy) {
+		if (this.healthy != healthy) {
+			this.healthy = healthy;
+			logger.warn("replica {} is now {}", name, healthy ? "UP" : "DOWN");
+			if (group != null) {
+				group.refresh();
+			}
+		}
+	}
+
+	/*
+	 * 从HikariCP的连接池统计中读取活动连接数，非Hikari连接池返回0：
+	 */
+	public int getActiveConnections() {
+		HikariPoolMXBean pool = getPoolMXBean();
+		return pool == null ? 0 : pool.getActiveConnections();
+	}
+
+	/*
+	 * 连接池已满：没有空闲连接且连接数已达上限，新的请求只能排队等待connection-timeout：
+	 */
+	public boolean isSaturated() {
+		DataSource target = getTargetDataSource();
+		HikariPoolMXBean pool = getPoolMXBean();
+		if (pool == null) {
+			return false;
+		}
+		return pool.getIdleConnections() == 0
+				&& pool.getTotalConnections() >= ((HikariDataSource) target).getMaximumPoolSize();
+	}
+
+	HikariPoolMXBean getPoolMXBean() {
+		DataSource target = getTargetDataSource();
+		if (target instanceof HikariDataSource) {
+			return ((HikariDataSource) target).getHikariPoolMXBean();
+		}
+		return null;
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		try {
+			Connection conn = super.getConnection();
+			circuitBreaker.recordSuccess();
+			return conn;
+		} catch (SQLException e) {
+			circuitBreaker.recordFailure();
+			throw e;
+		}
+	}
+
+	@Override
+	public Connection getConnection(String username, String password) throws SQLException {
+		try {
+			Connection conn = super.getConnection(username, password);
+			circuitBreaker.recordSuccess();
+			return conn;
+		} catch (SQLException e) {
+			circuitBreaker.recordFailure();
+			throw e;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "Replica(" + name + ", weight=" + weight + ", " + (healthy ? "UP" : "DOWN") + ", " + circuitBreaker.getState() + ")";
+	}
+}
@@ -0,0 +1,173 @@
+package com.self.learnjava.config;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/*
+ * 一组从库。RoutingDataSource在路由到slaveDataSource时，由ReplicaGroup按照负载均衡策略选出一个健康的从库。
+ * 不健康的从库会被移出轮询，后台线程定期检查所有从库，恢复后自动重新加入。
+ * 选中的从库断路器已打开或连接池已满时，依次尝试其他从库，都不行就返回null，由RoutingDataSource溢出到主库。
+ * 健康检查只判断从库是否宕机：连接池被占满说明从库正忙，不能因此移出轮询。
+ */
+public class ReplicaGroup implements InitializingBean, DisposableBean {
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final List<Replica> replicas;
+	private final ReplicaSelectionStrategy strategy;
+	private final Duration healthCheckInterval;
+	private boolean spillOverOnSaturation = true;
+
+	// 溢出到主库的次数，分别统计从库全部不可用和获取连接失败两种情况:
+	private final AtomicLong spillOverUnavailable = new AtomicLong();
+	private final AtomicLong spillOverError = new AtomicLong();
+
+	// 健康从库的快照，只在状态变化时重建，选择从库时无需加锁:
+	private volatile List<Replica> available;
+
+	private ScheduledExecutorService healthChecker;
+
+	public ReplicaGroup(List<Replica> replicas, ReplicaSelectionStrategy strategy, Duration healthCheckInterval) {
+		this.replicas = Collections.unmodifiableList(new ArrayList<>(replicas));
+		this.strategy = strategy;
+		this.healthCheckInterval = healthCheckInterval;
+		for (Replica r : this.replicas) {
+			r.setGroup(this);
+		}
+		refresh();
+	}
+
+	public void setSpillOverOnSaturation(boolean spillOverOnSaturation) {
+		this.spillOverOnSaturation = spillOverOnSaturation;
+	}
+
+	public List<Replica> getReplicas() {
+		return replicas;
+	}
+
+	public List<Replica> getAvailableReplicas() {
+		return available;
+	}
+
+	/*
+	 * 选出一个健康的从库，全部不可用时返回null，由调用方回退到主库：
+	 */
+	public Replica choose() {
+		List<Replica> list = this.available;
+		if (!list.isEmpty()) {
+			Replica selected = list.size() == 1 ? list.get(0) : strategy.select(list);
+			if (isUsable(selected)) {
+				return selected;
+			}
+			for (Replica r : list) {
+				if (r != selected && isUsable(r)) {
+					return r;
+				}
+			}
+		}
+		spillOverUnavailable.incrementAndGet();
+		return null;
+	}
+
+	private boolean isUsable(Replica r) {
+		if (spillOverOnSaturation && r.isSaturated()) {
+			return false;
+		}
+		return r.getCircuitBreaker().allowRequest();
+	}
+
+	void recordSpillOverOnError() {
+		spillOverError.incrementAndGet();
+	}
+
+	public long getSpillOverUnavailableCount() {
+		return spillOverUnavailable.get();
+	}
+
+	public long getSpillOverErrorCount() {
+		return spillOverError.get();
+	}
+
+	synchronized void refresh() {
+		List<Replica> list = new ArrayList<>(replicas.size());
+		for (Replica r : replicas) {
+			if (r.isHealthy()) {
+				list.add(r);
+			}
+		}
+		this.available = Collections.unmodifiableList(list);
+	}
+
+	@Override
+	public void afterPropertiesSet() {
+		if (healthCheckInterval == null || healthCheckInterval.isZero() || healthCheckInterval.isNegative()) {
+			return;
+		}
+		this.healthChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "replica-health-check");
+			t.setDaemon(true);
+			return t;
+		});
+		long millis = healthCheckInterval.toMillis();
+		this.healthChecker.scheduleWithFixedDelay(this::checkHealth, millis, millis, TimeUnit.MILLISECONDS);
+	}
+
+	void checkHealth() {
+		for (Replica r : replicas) {
+			// 连接池已满时不再占用业务连接，也不等待connection-timeout，保持原来的状态:
+			if (r.isSaturated()) {
+				logger.debug("skip health check of busy replica {}", r.getName());
+				continue;
+			}
+			r.setHealthy(isAlive(r.getTargetDataSource()));
+		}
+	}
+
+	private boolean isAlive(DataSource ds) {
+		try (Connection conn = ds.getConnection()) {
+			return conn.isValid(2);
+		} catch (SQLTransientConnectionException e) {
+			// HikariCP等待连接超时：cause是最近一次新建连接的失败，没有cause说明只是连接都被占用:
+			if (e.getCause() == null) {
+				logger.debug("health check timed out on a busy pool: {}", e.getMessage());
+				return true;
+			}
+			logger.debug("health check failed: {}", e.getCause().getMessage());
+			return false;
+		} catch (SQLException e) {
+			logger.debug("health check failed: {}", e.getMessage());
+			return false;
+		}
+	}
+
+	@Override
+	public void destroy() throws Exception {
+		if (healthChecker != null) {
+			healthChecker.shutdownNow();
+		}
+		// 关闭从replicas列表创建的连接池，HikariDataSource重复关闭是安全的:
+		for (Replica r : replicas) {
+			DataSource target = r.getTargetDataSource();
+			if (target instanceof Closeable) {
+				((Closeable) target).close();
+			}
+		}
+	}
+}
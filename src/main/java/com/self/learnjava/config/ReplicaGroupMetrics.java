@@ -0,0 +1,38 @@
+package com.self.learnjava.config;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/*
+ * 导出从库断路器状态和溢出到主库的次数：
+ * datasource.replica.breaker.state：0=CLOSED，1=OPEN，2=HALF_OPEN；
+ * datasource.replica.breaker.opened：断路器打开的次数；
+ * datasource.replica.spillover：溢出到主库的次数，reason=unavailable表示没有可用从库，reason=error表示从库获取连接失败。
+ */
+public class ReplicaGroupMetrics implements MeterBinder {
+
+	private final ReplicaGroup replicaGroup;
+
+	public ReplicaGroupMetrics(ReplicaGroup replicaGroup) {
+		this.replicaGroup = replicaGroup;
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		for (Replica r : replicaGroup.getReplicas()) {
+			CircuitBreaker breaker = r.getCircuitBreaker();
+			Gauge.builder("datasource.replica.breaker.state", breaker, b -> b.getState().ordinal())
+					.tag("replica", r.getName()).register(registry);
+			FunctionCounter.builder("datasource.replica.breaker.opened", breaker, CircuitBreaker::getOpenCount)
+					.tag("replica", r.getName()).register(registry);
+			Gauge.builder("datasource.replica.healthy", r, x -> x.isHealthy() ? 1 : 0)
+					.tag("replica", r.getName()).register(registry);
+		}
+		FunctionCounter.builder("datasource.replica.spillover", replicaGroup, ReplicaGroup::getSpillOverUnavailableCount)
+				.tag("reason", "unavailable").register(registry);
+		FunctionCounter.builder("datasource.replica.spillover", replicaGroup, ReplicaGroup::getSpillOverErrorCount)
+				.tag("reason", "error").register(registry);
+	}
+}
@@ -0,0 +1,81 @@
+package com.self.learnjava.config;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * 从可用的从库中选出一个，传入的列表保证非空且只包含健康的从库。
+ * 内置三种策略，通过spring.datasource-slave.load-balance选择：
+ * round-robin：轮询；
+ * weighted：按权重随机；
+ * least-active：选HikariCP连接池中活动连接最少的从库。
+ */
+@FunctionalInterface
+public interface ReplicaSelectionStrategy {
+	String ROUND_ROBIN = "round-robin";
+	String WEIGHTED = "weighted";
+	String LEAST_ACTIVE = "least-active";
+
+	Replica select(List<Replica> replicas);
+
+	static ReplicaSelectionStrategy of(String name) {
+		if (name == null || ROUND_ROBIN.equals(name)) {
+			return new RoundRobin();
+		}
+		if (WEIGHTED.equals(name)) {
+			return new Weighted();
+		}
+		if (LEAST_ACTIVE.equals(name)) {
+			return new LeastActive();
+		}
+		throw new IllegalArgumentException("Unknown load balance strategy: " + name);
+	}
+
+	class RoundRobin implements ReplicaSelectionStrategy {
+		private final AtomicInteger counter = new AtomicInteger();
+
+		@Override
+		public Replica select(List<Replica> replicas) {
+			return replicas.get(Math.floorMod(counter.getAndIncrement(), replicas.size()));
+		}
+	}
+
+	class Weighted implements ReplicaSelectionStrategy {
+		@Override
+		public Replica select(List<Replica> replicas) {
+			int total = 0;
+			for (Replica r : replicas) {
+				total += r.getWeight();
+			}
+			int n = ThreadLocalRandom.current().nextInt(total);
+			for (Replica r : replicas) {
+				n -= r.getWeight();
+				if (n < 0) {
+					return r;
+				}
+			}
+			return replicas.get(replicas.size() - 1);
+		}
+	}
+
+	class LeastActive implements ReplicaSelectionStrategy {
+		@Override
+		public Replica select(List<Replica> replicas) {
+			// 从随机位置开始比较，避免活动连接数相同时总是落到第一个从库:
+			int size = replicas.size();
+			int start = ThreadLocalRandom.current().nextInt(size);
+			Replica best = null;
+			int bestActive = Integer.MAX_VALUE;
+			for (int i = 0; i < size; i++) {
+				Replica r = replicas.get((start + i) % size);
+				int active = r.getActiveConnections();
+				if (active < bestActive) {
+					best = r;
+					bestActive = active;
+				}
+			}
+			return best;
+		}
+	}
+}
@@ -1,17 +1,36 @@
 package com.self.learnjava.config;
 
 import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.AfterReturning;
 import org.aspectj.lang.annotation.Around;
 import org.aspectj.lang.annotation.Aspect;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 @Aspect
 @Component
 public class RoutingAspect {
+	
 	@Around("@annotation(routingWithSlave)")
 	public Object routingWithDataSource(ProceedingJoinPoint joinPoint, RoutingWithSlave routingWithSlave) throws Throwable {
 		try(RoutingDataSourceContext ctx = new RoutingDataSourceContext(RoutingDataSourceContext.SLAVE_DATASOURCE)){
 			return joinPoint.proceed();
 		}
 	}
+	
+	@AfterReturning("@annotation(com.self.learnjava.config.MarkLastWrite)")
+	public void markLastWrite() {
+		// 在事务中时，等事务提交后再记录，复制延迟从提交时刻开始计算:
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCommit() {
+					RoutingDataSourceContext.markLastWrite();
+				}
+			});
+		} else {
+			RoutingDataSourceContext.markLastWrite();
+		}
+	}
 }
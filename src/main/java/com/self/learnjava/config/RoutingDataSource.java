@@ -0,0 +1,151 @@
+package com.self.learnjava.config;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+
+/*
+ * RoutingDataSource本身并不是真正的DataSource，它通过Map关联一组DataSource，下面的代码创建了包含两个DataSource的RoutingDataSource，关联的key分别为masterDataSource和slaveDataSource：
+ * 路由到slaveDataSource时，由ReplicaGroup从多个从库中选出一个，没有可用的从库时回退到主库。
+ * 当前Session在read-your-writes窗口内写入过数据时，读操作同样回退到主库。
+ * 从库获取连接失败时，本次请求改为从主库获取连接，避免一个坏掉的从库直接导致请求失败。
+ */
+class RoutingDataSource extends AbstractRoutingDataSource {
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final DataSource masterDataSource;
+
+	private final ReplicaGroup replicaGroup;
+
+	private Duration readYourWritesWindow;
+
+	private RoutingMetrics metrics;
+
+	private double traceSampleRate;
+
+	RoutingDataSource(DataSource masterDataSource, ReplicaGroup replicaGroup) {
+		this.masterDataSource = masterDataSource;
+		this.replicaGroup = replicaGroup;
+	}
+
+	void setReadYourWritesWindow(Duration readYourWritesWindow) {
+		this.readYourWritesWindow = readYourWritesWindow;
+	}
+
+	void setMetrics(RoutingMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	void setTraceSampleRate(double traceSampleRate) {
+		this.traceSampleRate = traceSampleRate;
+	}
+
+	@Override
+	protected Object determineCurrentLookupKey() {
+        // 从ThreadLocal中取出key:
+		return RoutingDataSourceContext.getDataSourceRoutingKey();
+	}
+
+	/*
+	 * 如果我们想要确认是否真的切换了DataSource，可以覆写determineTargetDataSource()方法并打印出DataSource的名称
+	 * 访问不同的URL，可以在日志中看到两个DataSource，分别是HikariPool-1和hikariPool-2（现在改为DEBUG级别并按trace-sample-rate采样，
+	 * 平时通过/actuator/metrics/datasource.routing.decisions查看路由结果）：
+	 * 2020-06-14 17:55:21.676  INFO 91561 --- [nio-8080-exec-7] c.i.learnjava.config.RoutingDataSource   : determin target datasource: HikariDataSource (HikariPool-1)
+     * 2020-06-14 17:57:08.992  INFO 91561 --- [io-8080-exec-10] c.i.learnjava.config.RoutingDataSource   : determin target datasource: HikariDataSource (HikariPool-2)
+     * 我们用一个图来表示创建的DataSource以及相关Bean的关系：
+     *  ┌────────────────────┐       ┌──────────────────┐
+		│@Primary            │<──────│   JdbcTemplate   │
+		│RoutingDataSource   │       └──────────────────┘
+		│ ┌────────────────┐ │       ┌──────────────────┐
+		│ │MasterDataSource│ │<──────│DataSource        │
+		│ └────────────────┘ │       │TransactionManager│
+		│ ┌────────────────┐ │       └──────────────────┘
+		│ │  ReplicaGroup  │ │
+		│ │ ┌────────────┐ │ │
+		│ │ │ Replica ...│ │ │
+		│ │ └────────────┘ │ │
+		│ └────────────────┘ │
+	    └────────────────────┘
+	 * 注意到DataSourceTransactionManager和JdbcTemplate引用的都是RoutingDataSource，所以，这种设计的一个限制就是：在一个请求中，一旦切换了内部数据源，在同一个事务中，不能再切到另一个，否则，DataSourceTransactionManager和JdbcTemplate操作的就不是同一个数据库连接。
+	 * 因此RoutingDataSource外面再包一层LazyConnectionDataSourceProxy：事务开始时拿到的只是一个代理连接，
+	 * 直到第一次执行SQL时才真正从RoutingDataSource获取连接，此时事务的readOnly标志已经设置好，key在整个事务中只确定一次。
+	 */
+	@Override
+	protected DataSource determineTargetDataSource() {
+		Object key = determineCurrentLookupKey();
+		DataSource ds;
+		if (RoutingDataSourceContext.SLAVE_DATASOURCE.equals(key)) {
+			// 刚写入过数据的Session读主库，所有从库都不可用时也回退到主库:
+			Replica replica = RoutingDataSourceContext.isWrittenWithin(readYourWritesWindow) ? null : replicaGroup.choose();
+			ds = replica != null ? replica : masterDataSource;
+		} else {
+			ds = super.determineTargetDataSource();
+		}
+		if (metrics != null) {
+			metrics.recordDecision(String.valueOf(key), nameOf(ds));
+		}
+		// 逐次打印的日志开销很大，只在DEBUG级别下按采样率输出:
+		if (traceSampleRate > 0 && logger.isDebugEnabled() && ThreadLocalRandom.current().nextDouble() < traceSampleRate) {
+			logger.debug("determin target datasource: key = {}, target = {}", key, ds);
+		}
+		return ds;
+	}
+
+	private static String nameOf(DataSource ds) {
+		return ds instanceof Replica ? ((Replica) ds).getName() : RoutingDataSourceContext.MASTER_DATASOURCE;
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		long start = System.nanoTime();
+		DataSource ds = determineTargetDataSource();
+		Connection conn;
+		if (ds instanceof Replica) {
+			try {
+				conn = ds.getConnection();
+			} catch (SQLException e) {
+				logger.warn("get connection from {} failed, spill over to master: {}", ds, e.getMessage());
+				replicaGroup.recordSpillOverOnError();
+				ds = masterDataSource;
+				conn = ds.getConnection();
+			}
+		} else {
+			conn = ds.getConnection();
+		}
+		if (metrics != null) {
+			metrics.recordAcquire(nameOf(ds), System.nanoTime() - start);
+		}
+		return conn;
+	}
+
+	@Override
+	public Connection getConnection(String username, String password) throws SQLException {
+		long start = System.nanoTime();
+		DataSource ds = determineTargetDataSource();
+		Connection conn;
+		if (ds instanceof Replica) {
+			try {
+				conn = ds.getConnection(username, password);
+			} catch (SQLException e) {
+				logger.warn("get connection from {} failed, spill over to master: {}", ds, e.getMessage());
+				replicaGroup.recordSpillOverOnError();
+				ds = masterDataSource;
+				conn = ds.getConnection(username, password);
+			}
+		} else {
+			conn = ds.getConnection(username, password);
+		}
+		if (metrics != null) {
+			metrics.recordAcquire(nameOf(ds), System.nanoTime() - start);
+		}
+		return conn;
+	}
+}
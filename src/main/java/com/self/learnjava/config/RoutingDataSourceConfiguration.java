@@ -5,15 +5,14 @@ import java.util.Map;
 
 import javax.sql.DataSource;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Primary;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.datasource.DataSourceTransactionManager;
-import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
 
 /*
  * 此外，上述两个DataSource的Bean名称分别为masterDataSource和slaveDataSource，
@@ -28,14 +27,32 @@ public class RoutingDataSourceConfiguration {
 	@Primary
 	@Bean
 	DataSource dataSource(@Autowired @Qualifier(RoutingDataSourceContext.MASTER_DATASOURCE)DataSource masterDataSource,
-			@Autowired @Qualifier(RoutingDataSourceContext.SLAVE_DATASOURCE)DataSource slaveDataSource) {
-		RoutingDataSource ds = new RoutingDataSource();
+			@Autowired @Qualifier(RoutingDataSourceContext.SLAVE_DATASOURCE)DataSource slaveDataSource,
+			@Autowired ReplicaGroup replicaGroup,
+			@Autowired @Qualifier("slaveDataSourceProperties")SlaveDataSourceProperties slaveProperties,
+			@Autowired RoutingMetrics routingMetrics,
+			@Value("${spring.datasource-routing.trace-sample-rate:0}") double traceSampleRate) {
+		RoutingDataSource ds = new RoutingDataSource(masterDataSource, replicaGroup);
 		Map<Object, Object> info = new HashMap<>();// 关联两个DataSource:
 		info.put(RoutingDataSourceContext.MASTER_DATASOURCE, masterDataSource);
 		info.put(RoutingDataSourceContext.SLAVE_DATASOURCE, slaveDataSource);
 		ds.setTargetDataSources(info);
 		ds.setDefaultTargetDataSource(masterDataSource);// 默认使用masterDataSource:
-		return ds;
+		ds.setReadYourWritesWindow(slaveProperties.getReadYourWritesWindow());
+		ds.setMetrics(routingMetrics);
+		ds.setTraceSampleRate(traceSampleRate);
+		ds.afterPropertiesSet();
+		// 延迟到第一次执行SQL时才获取真正的连接，这样只读事务可以自动路由到从库:
+		return new LazyConnectionDataSourceProxy(ds);
+	}
+	
+	/*
+	 * 路由决策、获取连接耗时和各连接池的指标，作为MeterBinder由Spring Boot绑定到Actuator：
+	 */
+	@Bean
+	RoutingMetrics routingMetrics(@Autowired @Qualifier(RoutingDataSourceContext.MASTER_DATASOURCE)DataSource masterDataSource,
+			@Autowired ReplicaGroup replicaGroup) {
+		return new RoutingMetrics(masterDataSource, replicaGroup);
 	}
 	
 	/*
@@ -64,41 +81,3 @@ public class RoutingDataSourceConfiguration {
 	}
 }
 
-/*
- * RoutingDataSource本身并不是真正的DataSource，它通过Map关联一组DataSource，下面的代码创建了包含两个DataSource的RoutingDataSource，关联的key分别为masterDataSource和slaveDataSource：
- */
-class RoutingDataSource extends AbstractRoutingDataSource {
-	
-	private final Logger logger = LoggerFactory.getLogger(getClass());
-	
-	@Override
-	protected Object determineCurrentLookupKey() {
-        // 从ThreadLocal中取出key:
-		return RoutingDataSourceContext.getDataSourceRoutingKey();
-	}
-	
-	/*
-	 * 如果我们想要确认是否真的切换了DataSource，可以覆写determineTargetDataSource()方法并打印出DataSource的名称
-	 * 访问不同的URL，可以在日志中看到两个DataSource，分别是HikariPool-1和hikariPool-2：
-	 * 2020-06-14 17:55:21.676  INFO 91561 --- [nio-8080-exec-7] c.i.learnjava.config.RoutingDataSource   : determin target datasource: HikariDataSource (HikariPool-1)
-     * 2020-06-14 17:57:08.992  INFO 91561 --- [io-8080-exec-10] c.i.learnjava.config.RoutingDataSource   : determin target datasource: HikariDataSource (HikariPool-2)
-     * 我们用一个图来表示创建的DataSource以及相关Bean的关系：
-     *  ┌────────────────────┐       ┌──────────────────┐
-		│@Primary            │<──────│   JdbcTemplate   │
-		│RoutingDataSource   │       └──────────────────┘
-		│ ┌────────────────┐ │       ┌──────────────────┐
-		│ │MasterDataSource│ │<──────│DataSource        │
-		│ └────────────────┘ │       │TransactionManager│
-		│ ┌────────────────┐ │       └──────────────────┘
-		│ │SlaveDataSource │ │
-		│ └────────────────┘ │
-	    └────────────────────┘
-	 * 注意到DataSourceTransactionManager和JdbcTemplate引用的都是RoutingDataSource，所以，这种设计的一个限制就是：在一个请求中，一旦切换了内部数据源，在同一个事务中，不能再切到另一个，否则，DataSourceTransactionManager和JdbcTemplate操作的就不是同一个数据库连接。
-	 */
-	@Override
-	protected DataSource determineTargetDataSource() {
-		DataSource ds = super.determineTargetDataSource();
-		logger.info("determin target datasource: {}", ds);
-		return ds;
-	}
-}
@@ -1,23 +1,83 @@
 package com.self.learnjava.config;
 
+import java.time.Duration;
+
+import javax.servlet.http.HttpSession;
+
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
 public class RoutingDataSourceContext implements AutoCloseable{
 	public static final String MASTER_DATASOURCE = "masterDataSource";
 	public static final String SLAVE_DATASOURCE = "slaveDataSource";
 	
+	//最后一次写入的时间戳，存放在HttpSession中:
+	public static final String KEY_LAST_WRITE = "__lastwrite__";
+	
 	//holds data source key in thread local
 	static final ThreadLocal<String> threadLocalDataSourceKey = new ThreadLocal<>();
 	
+	/*
+	 * 读写事务总是使用主库，即使被@RoutingWithSlave的方法调用，也不会把写操作发到从库；
+	 * 只读事务(@Transactional(readOnly = true))在没有显式指定key时自动使用从库：
+	 */
 	public static String getDataSourceRoutingKey() {
+		if (TransactionSynchronizationManager.isActualTransactionActive()
+				&& !TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+			return MASTER_DATASOURCE;
+		}
 		String key = threadLocalDataSourceKey.get();
-		return key == null ? MASTER_DATASOURCE : key;
+		if (key != null) {
+			return key;
+		}
+		return TransactionSynchronizationManager.isCurrentTransactionReadOnly() ? SLAVE_DATASOURCE : MASTER_DATASOURCE;
 	}
 	
+	/*
+	 * 记录当前Session的最后写入时间。只在已经有Session时记录，不为没有Session的调用方（例如不带Cookie的API客户端）创建Session；
+	 * 不在Web请求中时（例如后台线程）什么也不做：
+	 */
+	public static void markLastWrite() {
+		RequestAttributes attrs = RequestContextHolder.getRequestAttributes();
+		if (attrs instanceof ServletRequestAttributes) {
+			HttpSession session = ((ServletRequestAttributes) attrs).getRequest().getSession(false);
+			if (session != null) {
+				session.setAttribute(KEY_LAST_WRITE, System.currentTimeMillis());
+			}
+		}
+	}
+	
+	/*
+	 * 当前Session是否在window之内写入过数据：
+	 */
+	public static boolean isWrittenWithin(Duration window) {
+		if (window == null || window.isZero() || window.isNegative()) {
+			return false;
+		}
+		RequestAttributes attrs = RequestContextHolder.getRequestAttributes();
+		if (attrs == null) {
+			return false;
+		}
+		Long lastWrite = (Long) attrs.getAttribute(KEY_LAST_WRITE, RequestAttributes.SCOPE_SESSION);
+		return lastWrite != null && System.currentTimeMillis() - lastWrite < window.toMillis();
+	}
+	
+	//嵌套使用时（例如@RoutingWithSlave中又强制读主库），close后恢复外层的key:
+	private final String previousKey;
+	
 	public RoutingDataSourceContext(String key) {
+		this.previousKey = threadLocalDataSourceKey.get();
 		threadLocalDataSourceKey.set(key);
 	}
 	
 	@Override
 	public void close() {
-		threadLocalDataSourceKey.remove();
+		if (previousKey == null) {
+			threadLocalDataSourceKey.remove();
+		} else {
+			threadLocalDataSourceKey.set(previousKey);
+		}
 	}
 }
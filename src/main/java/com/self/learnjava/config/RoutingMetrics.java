@@ -0,0 +1,88 @@
+package com.self.learnjava.config;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+
+import javax.sql.DataSource;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/*
+ * RoutingDataSource的监控指标，代替每次获取连接时打印INFO日志，可在/actuator/metrics中查看：
+ * datasource.routing.decisions：路由决策次数，key为请求的路由key，target为实际使用的数据源；
+ * datasource.connection.acquire：获取连接的耗时（含直方图），count即获取连接的次数；
+ * datasource.pool.active/idle/pending：每个HikariCP连接池的活动、空闲和等待连接的线程数。
+ * Meter在第一次用到时创建并缓存，绑定到MeterRegistry之前的调用直接忽略。
+ */
+public class RoutingMetrics implements MeterBinder {
+
+	private final DataSource masterDataSource;
+	private final ReplicaGroup replicaGroup;
+
+	private volatile MeterRegistry registry;
+
+	private final ConcurrentMap<String, ConcurrentMap<String, Counter>> decisions = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Timer> acquireTimers = new ConcurrentHashMap<>();
+
+	public RoutingMetrics(DataSource masterDataSource, ReplicaGroup replicaGroup) {
+		this.masterDataSource = masterDataSource;
+		this.replicaGroup = replicaGroup;
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		bindPool(registry, RoutingDataSourceContext.MASTER_DATASOURCE, masterDataSource);
+		for (Replica r : replicaGroup.getReplicas()) {
+			bindPool(registry, r.getName(), r.getTargetDataSource());
+		}
+		this.registry = registry;
+	}
+
+	private void bindPool(MeterRegistry registry, String name, DataSource ds) {
+		if (!(ds instanceof HikariDataSource)) {
+			return;
+		}
+		HikariDataSource hds = (HikariDataSource) ds;
+		Gauge.builder("datasource.pool.active", hds, x -> poolValue(x, HikariPoolMXBean::getActiveConnections))
+				.tag("pool", name).register(registry);
+		Gauge.builder("datasource.pool.idle", hds, x -> poolValue(x, HikariPoolMXBean::getIdleConnections))
+				.tag("pool", name).register(registry);
+		Gauge.builder("datasource.pool.pending", hds, x -> poolValue(x, HikariPoolMXBean::getThreadsAwaitingConnection))
+				.tag("pool", name).register(registry);
+	}
+
+	private static double poolValue(HikariDataSource ds, ToIntFunction<HikariPoolMXBean> f) {
+		HikariPoolMXBean pool = ds.getHikariPoolMXBean();
+		return pool == null ? 0 : f.applyAsInt(pool);
+	}
+
+	void recordDecision(String key, String target) {
+		MeterRegistry registry = this.registry;
+		if (registry == null) {
+			return;
+		}
+		decisions.computeIfAbsent(key, k -> new ConcurrentHashMap<>())
+				.computeIfAbsent(target, t -> Counter.builder("datasource.routing.decisions")
+						.tag("key", key).tag("target", t).register(registry))
+				.increment();
+	}
+
+	void recordAcquire(String target, long nanos) {
+		MeterRegistry registry = this.registry;
+		if (registry == null) {
+			return;
+		}
+		acquireTimers.computeIfAbsent(target, t -> Timer.builder("datasource.connection.acquire")
+				.tag("target", t).publishPercentileHistogram().register(registry))
+				.record(nanos, TimeUnit.NANOSECONDS);
+	}
+}
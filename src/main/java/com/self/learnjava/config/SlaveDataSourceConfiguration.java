@@ -1,12 +1,19 @@
 package com.self.learnjava.config;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import javax.sql.DataSource;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
-import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
 import org.springframework.context.annotation.Bean;
+import org.springframework.core.env.Environment;
+
+import com.zaxxer.hikari.HikariDataSource;
 
 /*
  * 注意到上述class并未添加@Configuration和@Component，要使之生效，可以使用@Import导入：
@@ -16,12 +23,54 @@ public class SlaveDataSourceConfiguration {
 	
 	@Bean("slaveDataSourceProperties")
 	@ConfigurationProperties("spring.datasource-slave")
-	DataSourceProperties dataSourceProperties() {
-		return new DataSourceProperties();
+	SlaveDataSourceProperties dataSourceProperties() {
+		return new SlaveDataSourceProperties();
 	}
 	
+	/*
+	 * spring.datasource-slave.hikari绑定到第一个从库的连接池（auto-commit、maximum-pool-size等）：
+	 */
 	@Bean(RoutingDataSourceContext.SLAVE_DATASOURCE)
-	DataSource dataSource(@Autowired @Qualifier("slaveDataSourceProperties")DataSourceProperties props) {
-		return props.initializeDataSourceBuilder().build();
+	@ConfigurationProperties("spring.datasource-slave.hikari")
+	HikariDataSource dataSource(@Autowired @Qualifier("slaveDataSourceProperties")SlaveDataSourceProperties props) {
+		return props.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+	}
+	
+	/*
+	 * slaveDataSource作为第一个从库，replicas列表中的每一项再各自创建一个连接池，
+	 * 它们一起组成ReplicaGroup，由RoutingDataSource按负载均衡策略选择。
+	 * 每个从库的连接池先使用spring.datasource-slave.hikari的设置，再由replicas[n].hikari覆盖：
+	 */
+	@Bean
+	ReplicaGroup replicaGroup(@Autowired @Qualifier(RoutingDataSourceContext.SLAVE_DATASOURCE)DataSource slaveDataSource,
+			@Autowired @Qualifier("slaveDataSourceProperties")SlaveDataSourceProperties props, @Autowired Environment environment) {
+		Binder binder = Binder.get(environment);
+		List<Replica> replicas = new ArrayList<>();
+		replicas.add(new Replica(RoutingDataSourceContext.SLAVE_DATASOURCE, slaveDataSource, props.getWeight(),
+				new CircuitBreaker(props.getFailureThreshold(), props.getCoolDown())));
+		int index = 1;
+		for (SlaveDataSourceProperties.ReplicaProperties rp : props.getReplicas()) {
+			String name = RoutingDataSourceContext.SLAVE_DATASOURCE + "-" + index;
+			HikariDataSource dataSource = rp.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+			binder.bind("spring.datasource-slave.hikari", Bindable.ofInstance(dataSource));
+			binder.bind("spring.datasource-slave.replicas[" + (index - 1) + "].hikari", Bindable.ofInstance(dataSource));
+			if (dataSource.getPoolName() == null) {
+				dataSource.setPoolName(name);
+			}
+			replicas.add(new Replica(name, dataSource, rp.getWeight(),
+					new CircuitBreaker(props.getFailureThreshold(), props.getCoolDown())));
+			index++;
+		}
+		ReplicaGroup group = new ReplicaGroup(replicas, ReplicaSelectionStrategy.of(props.getLoadBalance()), props.getHealthCheckInterval());
+		group.setSpillOverOnSaturation(props.isSpillOverOnSaturation());
+		return group;
+	}
+	
+	/*
+	 * Spring Boot会把所有MeterBinder类型的Bean绑定到Actuator的MeterRegistry，可在/actuator/metrics中查看：
+	 */
+	@Bean
+	ReplicaGroupMetrics replicaGroupMetrics(@Autowired ReplicaGroup replicaGroup) {
+		return new ReplicaGroupMetrics(replicaGroup);
 	}
 }
@@ -0,0 +1,99 @@
+package com.self.learnjava.config;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+
+/*
+ * spring.datasource-slave本身仍然按Spring Boot默认的格式描述第一个从库，
+ * 额外的从库写在replicas列表中，每个从库都可以指定权重：
+ * spring:
+	  datasource-slave:
+	    url: jdbc:hsqldb:file:testdb
+	    load-balance: round-robin
+	    health-check-interval: 5s
+	    read-your-writes-window: 2s
+	    failure-threshold: 3
+	    cool-down: 10s
+	    spill-over-on-saturation: true
+	    replicas:
+	      - url: jdbc:hsqldb:file:testdb2
+	        weight: 2
+	        hikari:
+	          maximum-pool-size: 10
+ * 每个从库的hikari默认与spring.datasource-slave.hikari相同，可以在replicas中单独覆盖。
+ * load-balance可选round-robin、weighted、least-active，不配置时默认为round-robin。
+ * read-your-writes-window是从库的最大复制延迟，同一个Session在写入后的这段时间内读主库，设为0则关闭。
+ * 从库连续failure-threshold次获取连接失败后断路器打开，cool-down期间读操作溢出到主库；
+ * spill-over-on-saturation为true时，从库连接池已满的读操作也直接溢出到主库，而不是排队等待。
+ */
+public class SlaveDataSourceProperties extends DataSourceProperties {
+	private int weight = 1;
+	private String loadBalance = ReplicaSelectionStrategy.ROUND_ROBIN;
+	private Duration healthCheckInterval = Duration.ofSeconds(5);
+	private Duration readYourWritesWindow = Duration.ofSeconds(2);
+	private int failureThreshold = 3;
+	private Duration coolDown = Duration.ofSeconds(10);
+	private boolean spillOverOnSaturation = true;
+	private List<ReplicaProperties> replicas = new ArrayList<>();
+	public int getWeight() {
+		return weight;
+	}
+	public void setWeight(int weight) {
+		this.weight = weight;
+	}
+	public String getLoadBalance() {
+		return loadBalance;
+	}
+	public void setLoadBalance(String loadBalance) {
+		this.loadBalance = loadBalance;
+	}
+	public Duration getHealthCheckInterval() {
+		return healthCheckInterval;
+	}
+	public void setHealthCheckInterval(Duration healthCheckInterval) {
+		this.healthCheckInterval = healthCheckInterval;
+	}
+	public Duration getReadYourWritesWindow() {
+		return readYourWritesWindow;
+	}
+	public void setReadYourWritesWindow(Duration readYourWritesWindow) {
+		this.readYourWritesWindow = readYourWritesWindow;
+	}
+	public int getFailureThreshold() {
+		return failureThreshold;
+	}
+	public void setFailureThreshold(int failureThreshold) {
+		this.failureThreshold = failureThreshold;
+	}
+	public Duration getCoolDown() {
+		return coolDown;
+	}
+	public void setCoolDown(Duration coolDown) {
+		this.coolDown = coolDown;
+	}
+	public boolean isSpillOverOnSaturation() {
+		return spillOverOnSaturation;
+	}
+	public void setSpillOverOnSaturation(boolean spillOverOnSaturation) {
+		this.spillOverOnSaturation = spillOverOnSaturation;
+	}
+	public List<ReplicaProperties> getReplicas() {
+		return replicas;
+	}
+	public void setReplicas(List<ReplicaProperties> replicas) {
+		this.replicas = replicas;
+	}
+
+	public static class ReplicaProperties extends DataSourceProperties {
+		private int weight = 1;
+		public int getWeight() {
+			return weight;
+		}
+		public void setWeight(int weight) {
+			this.weight = weight;
+		}
+	}
+}
@@ -0,0 +1,10 @@
+package com.self.learnjava.service;
+
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+
+@FunctionalInterface
+public interface AsyncCommandCallback<T> {
+    // 在此发出异步Redis命令，不要在回调中等待结果:
+	RedisFuture<T> doInConnection(RedisAsyncCommands<String, String> commands);
+}
@@ -0,0 +1,9 @@
+package com.self.learnjava.service;
+
+import io.lettuce.core.api.sync.RedisCommands;
+
+@FunctionalInterface
+public interface BinaryCommandCallback<T> {
+    // 在此操作Redis，值为byte[]:
+	T doInConnection(RedisCommands<String, byte[]> commands);
+}
@@ -0,0 +1,12 @@
+package com.self.learnjava.service;
+
+import java.util.List;
+
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+
+@FunctionalInterface
+public interface BinaryPipelineCallback<T> {
+    // 与PipelineCallback相同，但值为byte[]，用于写入ValueCodec编码后的数据:
+	List<RedisFuture<T>> doInPipeline(RedisAsyncCommands<String, byte[]> commands);
+}
@@ -0,0 +1,52 @@
+package com.self.learnjava.service;
+
+import java.io.IOException;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/*
+ * 默认的序列化方案：JSON，直接读写byte[]，不经过中间的String。
+ * 换成Smile或CBOR只需传入用SmileFactory/CBORFactory创建的ObjectMapper。
+ */
+@Component
+@Order(Ordered.LOWEST_PRECEDENCE)
+public class JacksonValueCodec implements ValueCodec {
+
+	@Autowired
+	ObjectMapper objectMapper;
+
+	public JacksonValueCodec() {
+	}
+
+	public JacksonValueCodec(ObjectMapper objectMapper) {
+		this.objectMapper = objectMapper;
+	}
+
+	@Override
+	public boolean supports(Class<?> type) {
+		return true;
+	}
+
+	@Override
+	public byte[] encode(Object value) {
+		try {
+			return objectMapper.writeValueAsBytes(value);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public <T> T decode(byte[] bytes, Class<T> type) {
+		try {
+			return objectMapper.readValue(bytes, type);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
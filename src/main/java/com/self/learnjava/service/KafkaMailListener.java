@@ -0,0 +1,70 @@
+package com.self.learnjava.service;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.self.learnjava.service.impl.KafkaMessageTransport;
+import com.self.learnjava.web.MailMessage;
+
+/*
+ * 设定messaging.transport为kafka时，代替MailMessageListener从Kafka的topic mail接收邮件消息：
+ * 每次poll得到的一批消息（spring.kafka.listener.type=batch）交给MailService.sendAll批量发送，
+ * 方法返回后才提交这一批的offset；仍然失败的邮件发送到mail.DLT，不阻塞同一分区后面的消息。
+ * 消息按email分区，同一个用户的邮件按顺序发送；concurrency个消费者线程分摊所有分区，
+ * 要提高吞吐量就增加分区数（messaging.kafka.partitions）和消费者数。
+ */
+@Component
+@ConditionalOnProperty(value="messaging.transport", havingValue="kafka")
+public class KafkaMailListener {
+
+	final Logger logger = LoggerFactory.getLogger(getClass());
+
+	@Autowired
+	ObjectMapper objectMapper;
+
+	@Autowired
+	MailService mailService;
+
+	@Autowired
+	MessageTransport messageTransport;
+
+	@Value("${mail.batch.max-attempts:3}")
+	int maxAttempts;
+
+	@KafkaListener(topics = KafkaMessageTransport.MAIL_TOPIC, concurrency = "${messaging.kafka.consumers:3}")
+	public void onMailMessages(List<ConsumerRecord<String, String>> records) {
+		List<MailMessage> mms = new ArrayList<>(records.size());
+		Map<MailMessage, String> sources = new IdentityHashMap<>();
+		for (ConsumerRecord<String, String> record : records) {
+			try {
+				MailMessage mm = objectMapper.readValue(record.value(), MailMessage.class);
+				mms.add(mm);
+				sources.put(mm, record.value());
+			} catch (JsonProcessingException e) {
+				logger.error("unable to parse mail message at {}-{}@{}, discard it: {}", record.topic(), record.partition(), record.offset(),
+						e.getMessage());
+			}
+		}
+		List<String> failed = new ArrayList<>();
+		for (MailMessage mm : mailService.sendAll(mms, maxAttempts)) {
+			failed.add(sources.get(mm));
+		}
+		if (!failed.isEmpty()) {
+			logger.error("{} mails failed, move to {}.", failed.size(), KafkaMessageTransport.MAIL_DEAD_LETTER_TOPIC);
+			messageTransport.sendTexts(KafkaMessageTransport.MAIL_DEAD_LETTER_TOPIC, failed);
+		}
+	}
+}
@@ -0,0 +1,214 @@
+package com.self.learnjava.service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.PreDestroy;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jms.support.JmsUtils;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.self.learnjava.web.MailMessage;
+
+/*
+ * mail.consumer.mode设定为batch时，代替MailMessageListener批量消费/jms/queue/mail：
+ * 每个消费线程用一个事务Session收取最多batch-size条消息，或者等待max-wait后收到多少算多少，
+ * 交给MailService.sendAll按MailMessage.Type分组批量发送，每组只占用一次SMTP连接，
+ * 部分失败时只逐条重试失败的邮件，最多max-attempts次；仍然失败的邮件在同一个事务中重新发送到队列（带上重投次数），
+ * 超过max-redeliveries次后发送到dead-letter-queue，最后一次commit确认整批消息。
+ * 因此成功的邮件不会因为同一批中其他邮件失败而重发；进程在commit之前崩溃时整批重新投递（至少一次）。
+ */
+@Component
+@ConditionalOnExpression("'${messaging.transport:jms}' == 'jms' and '${mail.consumer.mode:dispatch}' == 'batch'")
+public class MailBatchConsumer {
+
+	final Logger logger = LoggerFactory.getLogger(getClass());
+
+	static final String REDELIVERIES = "mailRedeliveries";
+
+	@Autowired
+	ConnectionFactory connectionFactory;
+
+	@Autowired
+	ObjectMapper objectMapper;
+
+	@Autowired
+	MailService mailService;
+
+	@Value("${mail.batch.consumers:2}")
+	int consumers;
+
+	@Value("${mail.batch.size:100}")
+	int batchSize;
+
+	@Value("${mail.batch.max-wait:500ms}")
+	Duration maxWait;
+
+	@Value("${mail.batch.max-attempts:3}")
+	int maxAttempts;
+
+	@Value("${mail.batch.max-redeliveries:5}")
+	int maxRedeliveries;
+
+	@Value("${mail.batch.dead-letter-queue:/jms/queue/mail.dlq}")
+	String deadLetterQueue;
+
+	private volatile boolean running;
+	private Connection connection;
+	private final List<Thread> workers = new ArrayList<>();
+
+	@EventListener(ApplicationReadyEvent.class)
+	public synchronized void start() throws JMSException {
+		this.connection = connectionFactory.createConnection();
+		this.connection.start();
+		this.running = true;
+		for (int i = 0; i < consumers; i++) {
+			Thread t = new Thread(this::consume, "mail-batch-consumer-" + (i + 1));
+			t.setDaemon(true);
+			workers.add(t);
+			t.start();
+		}
+		logger.info("started {} mail batch consumers, batch size {}, max wait {}.", consumers, batchSize, maxWait);
+	}
+
+	@PreDestroy
+	public synchronized void stop() throws InterruptedException {
+		this.running = false;
+		for (Thread t : workers) {
+			t.join(10000);
+		}
+		JmsUtils.closeConnection(connection, true);
+	}
+
+	void consume() {
+		while (running) {
+			Session session = null;
+			try {
+				session = connection.createSession(true, Session.SESSION_TRANSACTED);
+				MessageConsumer consumer = session.createConsumer(session.createQueue(MessaginService.MAIL_QUEUE));
+				MessageProducer producer = session.createProducer(null);
+				while (running) {
+					List<Message> batch = receiveBatch(consumer);
+					if (!batch.isEmpty()) {
+						process(session, producer, batch);
+						session.commit();
+					}
+				}
+			} catch (JMSException | RuntimeException e) {
+				if (!running) {
+					break;
+				}
+				logger.warn("mail batch consumer failed, batch will be redelivered.", e);
+				rollback(session);
+				pause();
+			} finally {
+				JmsUtils.closeSession(session);
+			}
+		}
+	}
+
+	/*
+	 * 第一条消息最多等待1秒（以便检查running），之后从收到第一条开始最多再等max-wait：
+	 */
+	private List<Message> receiveBatch(MessageConsumer consumer) throws JMSException {
+		Message first = consumer.receive(1000);
+		if (first == null) {
+			return Collections.emptyList();
+		}
+		List<Message> batch = new ArrayList<>(batchSize);
+		batch.add(first);
+		long deadline = System.currentTimeMillis() + maxWait.toMillis();
+		while (batch.size() < batchSize) {
+			long remaining = deadline - System.currentTimeMillis();
+			Message m = remaining > 0 ? consumer.receive(remaining) : consumer.receiveNoWait();
+			if (m == null) {
+				break;
+			}
+			batch.add(m);
+		}
+		return batch;
+	}
+
+	void process(Session session, MessageProducer producer, List<Message> batch) throws JMSException {
+		List<MailMessage> mms = new ArrayList<>(batch.size());
+		Map<MailMessage, Message> sources = new IdentityHashMap<>();
+		for (Message message : batch) {
+			MailMessage mm = parse(message);
+			if (mm != null) {
+				mms.add(mm);
+				sources.put(mm, message);
+			}
+		}
+		for (MailMessage mm : mailService.sendAll(mms, maxAttempts)) {
+			redeliver(session, producer, sources.get(mm));
+		}
+	}
+
+	/*
+	 * 无法解析的消息记录日志后随整批确认，不再重投：
+	 */
+	private MailMessage parse(Message message) throws JMSException {
+		if (!(message instanceof TextMessage)) {
+			logger.error("unable to process non-text message!");
+			return null;
+		}
+		try {
+			return objectMapper.readValue(((TextMessage) message).getText(), MailMessage.class);
+		} catch (JsonProcessingException e) {
+			logger.error("unable to parse mail message, discard it: {}", e.getMessage());
+			return null;
+		}
+	}
+
+	private void redeliver(Session session, MessageProducer producer, Message source) throws JMSException {
+		int redeliveries = source.propertyExists(REDELIVERIES) ? source.getIntProperty(REDELIVERIES) + 1 : 1;
+		TextMessage copy = session.createTextMessage(((TextMessage) source).getText());
+		copy.setIntProperty(REDELIVERIES, redeliveries);
+		String queue = redeliveries > maxRedeliveries ? deadLetterQueue : MessaginService.MAIL_QUEUE;
+		if (queue.equals(deadLetterQueue)) {
+			logger.error("mail message failed {} times, move to {}.", redeliveries - 1, deadLetterQueue);
+		}
+		producer.send(session.createQueue(queue), copy);
+	}
+
+	private static void rollback(Session session) {
+		if (session != null) {
+			try {
+				session.rollback();
+			} catch (JMSException e) {
+				// 连接已断开时Artemis会自动回滚
+			}
+		}
+	}
+
+	private void pause() {
+		try {
+			Thread.sleep(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			running = false;
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package com.self.learnjava.service;
+
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.self.learnjava.web.MailMessage;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/*
+ * 监听器和MailService之间的发送阶段：
+ * 监听线程把邮件放入有界队列后立刻返回，由mail.dispatch.threads个发送线程调用MailService，
+ * 发送邮件的阻塞I/O不再占用JMS监听线程，吞吐量由发送线程数决定。
+ * 队列满时dispatch阻塞监听线程（背压），监听线程不再从Artemis取消息，而不是丢弃或无限堆积。
+ * 发送失败时间隔retry-interval重试，最多max-attempts次，之后返回的CompletableFuture以异常结束。
+ * 每个阶段的耗时记录到mail.dispatch{stage=enqueue|queue|send}：
+ * enqueue为监听线程因队列满等待的时间，queue为在队列中等待的时间，send为发送（包括重试）的时间。
+ */
+@Component
+public class MailDispatcher implements MeterBinder {
+
+	final Logger logger = LoggerFactory.getLogger(getClass());
+
+	@Autowired
+	MailService mailService;
+
+	@Value("${mail.dispatch.threads:20}")
+	int threads;
+
+	@Value("${mail.dispatch.queue-capacity:200}")
+	int queueCapacity;
+
+	@Value("${mail.dispatch.max-attempts:3}")
+	int maxAttempts;
+
+	@Value("${mail.dispatch.retry-interval:1s}")
+	Duration retryInterval;
+
+	private ThreadPoolExecutor executor;
+
+	private volatile Timer enqueueTimer;
+	private volatile Timer queueTimer;
+	private volatile Timer sendTimer;
+	private volatile Counter retries;
+	private volatile Counter failures;
+
+	@PostConstruct
+	public void init() {
+		AtomicInteger n = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity), r -> {
+			Thread t = new Thread(r, "mail-sender-" + n.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}, (r, e) -> {
+			// 队列满时阻塞调用线程，直到有空位；每次等待前检查是否已经shutdown，避免放入永远不会执行的任务:
+			try {
+				while (!e.isShutdown()) {
+					if (e.getQueue().offer(r, 100, TimeUnit.MILLISECONDS)) {
+						return;
+					}
+				}
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException(ie);
+			}
+			throw new RejectedExecutionException("Mail dispatcher is shut down");
+		});
+	}
+
+	/*
+	 * 等待正在发送和队列中的邮件，超时后未发送的邮件没有被确认，由Artemis重新投递：
+	 */
+	@PreDestroy
+	public void shutdown() throws InterruptedException {
+		executor.shutdown();
+		if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+			logger.warn("mail dispatcher did not finish in time, {} mails left in queue.", executor.getQueue().size());
+			executor.shutdownNow();
+		}
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		Gauge.builder("mail.dispatch.queue.size", this, d -> d.executor.getQueue().size())
+				.description("Mails waiting for a sender thread").register(registry);
+		Gauge.builder("mail.dispatch.active", this, d -> d.executor.getActiveCount())
+				.description("Sender threads sending mails").register(registry);
+		this.enqueueTimer = timer(registry, "enqueue");
+		this.queueTimer = timer(registry, "queue");
+		this.sendTimer = timer(registry, "send");
+		this.retries = Counter.builder("mail.dispatch.retries").register(registry);
+		this.failures = Counter.builder("mail.dispatch.failures").register(registry);
+	}
+
+	private static Timer timer(MeterRegistry registry, String stage) {
+		return Timer.builder("mail.dispatch").tag("stage", stage).publishPercentiles(0.5, 0.99).register(registry);
+	}
+
+	/*
+	 * 提交一封邮件，队列满时阻塞，发送完成后返回的CompletableFuture结束；
+	 * 已经shutdown时返回的CompletableFuture以RejectedExecutionException结束：
+	 */
+	public CompletableFuture<Void> dispatch(MailMessage mm) {
+		CompletableFuture<Void> future = new CompletableFuture<>();
+		long submitted = System.nanoTime();
+		Runnable task = () -> {
+			record(queueTimer, System.nanoTime() - submitted);
+			long start = System.nanoTime();
+			try {
+				send(mm);
+				future.complete(null);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				future.completeExceptionally(e);
+			} catch (RuntimeException e) {
+				increment(failures);
+				future.completeExceptionally(e);
+			} finally {
+				record(sendTimer, System.nanoTime() - start);
+			}
+		};
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			future.completeExceptionally(e);
+			return future;
+		}
+		record(enqueueTimer, System.nanoTime() - submitted);
+		return future;
+	}
+
+	private void send(MailMessage mm) throws InterruptedException {
+		for (int attempt = 1;; attempt++) {
+			try {
+				mailService.sendRegistrationMail(mm);
+				return;
+			} catch (RuntimeException e) {
+				if (attempt >= maxAttempts) {
+					throw e;
+				}
+				increment(retries);
+				logger.warn("send mail to {} failed, retry {}/{}: {}", mm.email, attempt, maxAttempts - 1, e.getMessage());
+				Thread.sleep(retryInterval.toMillis());
+			}
+		}
+	}
+
+	private static void record(Timer timer, long nanos) {
+		if (timer != null) {
+			timer.record(nanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	private static void increment(Counter counter) {
+		if (counter != null) {
+			counter.increment();
+		}
+	}
+}
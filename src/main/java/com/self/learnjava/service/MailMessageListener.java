@@ -1,17 +1,36 @@
 package com.self.learnjava.service;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
 import javax.jms.JMSException;
 import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
 import javax.jms.TextMessage;
 
+import org.apache.activemq.artemis.api.jms.ActiveMQJMSConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.jms.annotation.JmsListener;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jms.connection.SingleConnectionFactory;
+import org.springframework.jms.support.JmsUtils;
 import org.springframework.stereotype.Component;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.self.learnjava.web.MailMessage;
 
@@ -39,30 +58,195 @@ import com.self.learnjava.web.MailMessage;
  * 发送消息时只需要引入JmsTemplate：
  * 接收消息时只需要标注@JmsListener：
  * 可见，应用程序收发消息的逻辑和Spring中使用JMS完全相同，只是通过Spring Boot，我们把工程简化到只需要设定Artemis相关配置。
+ * 这里没有使用@JmsListener：JMS的Session只能由一个线程使用，而邮件由MailDispatcher的发送线程异步发送，
+ * 因此每个消费线程持有自己的INDIVIDUAL_ACKNOWLEDGE Session，发送线程只把结果放入该线程的完成队列，
+ * 由消费线程确认发送成功的消息；最终失败的消息在消费线程上重新发送到队列（带上重投次数），
+ * 超过max-redeliveries次后发送到dead-letter-queue，然后确认原消息。进程崩溃时未确认的消息由Artemis重新投递。
+ * 消费连接不使用自动配置的CachingConnectionFactory：它缓存Session和MessageConsumer，关闭Session只是放回缓存，
+ * 已经投递但未确认的消息仍然属于缓存的Consumer，不会重新投递。因此直接使用它包装的ActiveMQConnectionFactory，
+ * 消费线程出错时关闭的是真正的Session，未确认的消息由Artemis重新投递。
  * 小结
  * 在Spring Boot中使用Artemis作为JMS服务时，只需引入spring-boot-starter-artemis依赖，即可直接使用JMS。
  */
 @Component
+@ConditionalOnExpression("'${messaging.transport:jms}' == 'jms' and '${mail.consumer.mode:dispatch}' == 'dispatch'")
 public class MailMessageListener {
 	
 	private final Logger logger = LoggerFactory.getLogger(getClass());
 	
+	@Autowired
+	ConnectionFactory connectionFactory;
+	
 	@Autowired
 	ObjectMapper objectMapper;
 	
 	@Autowired
-	MailService mailService;
+	MailDispatcher mailDispatcher;
+	
+	@Value("${mail.dispatch.consumers:10}")
+	int consumers;
+	
+	@Value("${mail.dispatch.max-redeliveries:5}")
+	int maxRedeliveries;
+	
+	@Value("${mail.dispatch.dead-letter-queue:/jms/queue/mail.dlq}")
+	String deadLetterQueue;
+	
+	@Value("${mail.dispatch.shutdown-timeout:10s}")
+	Duration shutdownTimeout;
+	
+	private volatile boolean running;
+	private Connection connection;
+	private final List<Thread> workers = new ArrayList<>();
+	
+	@EventListener(ApplicationReadyEvent.class)
+	public synchronized void start() throws JMSException {
+		this.connection = consumerConnectionFactory().createConnection();
+		this.connection.start();
+		this.running = true;
+		for (int i = 0; i < consumers; i++) {
+			Thread t = new Thread(this::consume, "mail-consumer-" + (i + 1));
+			t.setDaemon(true);
+			workers.add(t);
+			t.start();
+		}
+		logger.info("started {} mail consumers.", consumers);
+	}
+	
+	@PreDestroy
+	public synchronized void stop() throws InterruptedException {
+		this.running = false;
+		for (Thread t : workers) {
+			t.join(shutdownTimeout.toMillis() + 1000);
+		}
+		JmsUtils.closeConnection(connection, true);
+	}
+	
+	private ConnectionFactory consumerConnectionFactory() {
+		if (connectionFactory instanceof SingleConnectionFactory) {
+			ConnectionFactory target = ((SingleConnectionFactory) connectionFactory).getTargetConnectionFactory();
+			if (target != null) {
+				return target;
+			}
+		}
+		return connectionFactory;
+	}
+	
+	/*
+	 * 消费线程：先处理已经发送完成的邮件，再收取下一条消息交给MailDispatcher。
+	 * receive最多等待100毫秒，没有新消息时发送完成的消息也能及时确认；MailDispatcher的队列满时dispatch阻塞本线程（背压）。
+	 */
+	void consume() {
+		while (running) {
+			Session session = null;
+			Queue<Completion> completions = new ConcurrentLinkedQueue<>();
+			AtomicInteger pending = new AtomicInteger();
+			try {
+				session = connection.createSession(false, ActiveMQJMSConstants.INDIVIDUAL_ACKNOWLEDGE);
+				MessageConsumer consumer = session.createConsumer(session.createQueue(MessaginService.MAIL_QUEUE));
+				MessageProducer producer = session.createProducer(null);
+				while (running) {
+					complete(session, producer, completions, pending);
+					Message message = consumer.receive(100);
+					if (message != null) {
+						onMailMessageReceived(message, completions, pending);
+					}
+				}
+				// 停止时等待已经交给MailDispatcher的邮件，超时后未确认的消息由Artemis重新投递:
+				consumer.close();
+				long deadline = System.currentTimeMillis() + shutdownTimeout.toMillis();
+				while (pending.get() > 0 && System.currentTimeMillis() < deadline) {
+					complete(session, producer, completions, pending);
+					Thread.sleep(20);
+				}
+				complete(session, producer, completions, pending);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				running = false;
+			} catch (JMSException | RuntimeException e) {
+				if (!running) {
+					break;
+				}
+				logger.warn("mail consumer failed, unacknowledged messages will be redelivered.", e);
+				pause();
+			} finally {
+				JmsUtils.closeSession(session);
+			}
+		}
+	}
 	
-	//接收消息时只需要标注@JmsListener：
-	@JmsListener(destination="/jms/queue/mail", concurrency="10")
-	public void onMailMessageReceived(Message message) throws JMSException, JsonMappingException, JsonProcessingException {
+	/*
+	 * 无法解析的消息直接确认并丢弃，否则它会一直不被确认：
+	 */
+	private void onMailMessageReceived(Message message, Queue<Completion> completions, AtomicInteger pending) throws JMSException {
 		logger.info("received message: " + message);
 		if (message instanceof TextMessage) {
-			String text = ((TextMessage)message).getText();
-			MailMessage mm = objectMapper.readValue(text, MailMessage.class);
-			mailService.sendRegistrationMail(mm);
+			MailMessage mm;
+			try {
+				mm = objectMapper.readValue(((TextMessage)message).getText(), MailMessage.class);
+			} catch (JsonProcessingException e) {
+				logger.error("unable to parse mail message, discard it: {}", e.getMessage());
+				message.acknowledge();
+				return;
+			}
+			pending.incrementAndGet();
+			mailDispatcher.dispatch(mm).whenComplete((r, e) -> completions.add(new Completion(message, mm, e)));
 		} else {
 			logger.error("unable to process non-text message!");
+			message.acknowledge();
+		}
+	}
+	
+	/*
+	 * 只在消费线程上确认消息或重投：发送成功的直接确认，最终失败的重新发送一份后再确认原消息。
+	 * MailDispatcher已经停止而没有发送的消息不确认，由Artemis重新投递。
+	 */
+	private void complete(Session session, MessageProducer producer, Queue<Completion> completions, AtomicInteger pending) throws JMSException {
+		Completion c;
+		while ((c = completions.poll()) != null) {
+			pending.decrementAndGet();
+			if (c.error == null) {
+				c.message.acknowledge();
+			} else if (!(c.error instanceof RejectedExecutionException)) {
+				logger.error("send mail to {} failed.", c.mail.email, c.error);
+				redeliver(session, producer, c.message);
+				c.message.acknowledge();
+			}
+		}
+	}
+	
+	private void redeliver(Session session, MessageProducer producer, Message source) throws JMSException {
+		int redeliveries = source.propertyExists(MailBatchConsumer.REDELIVERIES) ? source.getIntProperty(MailBatchConsumer.REDELIVERIES) + 1 : 1;
+		TextMessage copy = session.createTextMessage(((TextMessage) source).getText());
+		copy.setIntProperty(MailBatchConsumer.REDELIVERIES, redeliveries);
+		String queue = redeliveries > maxRedeliveries ? deadLetterQueue : MessaginService.MAIL_QUEUE;
+		if (queue.equals(deadLetterQueue)) {
+			logger.error("mail message failed {} times, move to {}.", redeliveries - 1, deadLetterQueue);
+		}
+		producer.send(session.createQueue(queue), copy);
+	}
+	
+	private void pause() {
+		try {
+			Thread.sleep(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			running = false;
+		}
+	}
+	
+	/*
+	 * 发送线程交给消费线程的发送结果：
+	 */
+	static class Completion {
+		final Message message;
+		final MailMessage mail;
+		final Throwable error;
+		
+		Completion(Message message, MailMessage mail, Throwable error) {
+			this.message = message;
+			this.mail = mail;
+			this.error = error;
 		}
 	}
 }
@@ -1,5 +1,11 @@
 package com.self.learnjava.service;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
@@ -19,4 +25,57 @@ public class MailService {
 		}
 		logger.info("[send mail] registration mail was sent to {}.", mm.email);
 	}
+	
+	/*
+	 * 批量发送同一类型的邮件，所有收件人共用一个SMTP连接，耗时与发送一封邮件相近。
+	 * 返回发送失败的邮件，调用方只需要重试失败的部分：
+	 */
+	public List<MailMessage> sendMails(MailMessage.Type type, List<MailMessage> mms) {
+		if (mms.isEmpty()) {
+			return Collections.emptyList();
+		}
+		logger.info("[send mail] sending {} {} mails...", mms.size(), type);
+		try {
+			Thread.sleep(3000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return new ArrayList<>(mms);
+		}
+		logger.info("[send mail] {} {} mails were sent.", mms.size(), type);
+		return Collections.emptyList();
+	}
+	
+	/*
+	 * 按MailMessage.Type分组后批量发送，部分失败时只逐条重试失败的邮件，最多maxAttempts次，
+	 * 返回最终仍然失败的邮件（传入的同一个对象），由调用方决定重新投递还是丢弃：
+	 */
+	public List<MailMessage> sendAll(List<MailMessage> mms, int maxAttempts) {
+		Map<MailMessage.Type, List<MailMessage>> groups = new EnumMap<>(MailMessage.Type.class);
+		for (MailMessage mm : mms) {
+			groups.computeIfAbsent(mm.type == null ? MailMessage.Type.REGISTRATION : mm.type, t -> new ArrayList<>()).add(mm);
+		}
+		List<MailMessage> failedAll = new ArrayList<>();
+		for (Map.Entry<MailMessage.Type, List<MailMessage>> group : groups.entrySet()) {
+			List<MailMessage> failed = trySend(group.getKey(), group.getValue());
+			for (int attempt = 2; attempt <= maxAttempts && !failed.isEmpty(); attempt++) {
+				List<MailMessage> stillFailed = new ArrayList<>();
+				for (MailMessage mm : failed) {
+					stillFailed.addAll(trySend(group.getKey(), Collections.singletonList(mm)));
+				}
+				failed = stillFailed;
+			}
+			logger.info("sent {} {} mails in batch, {} failed.", group.getValue().size() - failed.size(), group.getKey(), failed.size());
+			failedAll.addAll(failed);
+		}
+		return failedAll;
+	}
+	
+	private List<MailMessage> trySend(MailMessage.Type type, List<MailMessage> mms) {
+		try {
+			return sendMails(type, mms);
+		} catch (RuntimeException e) {
+			logger.warn("send {} {} mails failed: {}", mms.size(), type, e.getMessage());
+			return mms;
+		}
+	}
 }
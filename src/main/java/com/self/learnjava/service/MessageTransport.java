@@ -0,0 +1,17 @@
+package com.self.learnjava.service;
+
+import java.util.List;
+
+/*
+ * 消息的发送方式，与StorageService一样通过配置选择实现，messaging.transport：
+ * jms：默认，通过Artemis发送到队列，见MessaginService，接收端为MailMessageListener或MailBatchConsumer；
+ * kafka：发送到Kafka的topic，见KafkaMessageTransport，接收端为KafkaMailListener。
+ * destination统一使用JMS的队列名（如MessaginService.MAIL_QUEUE），Kafka取最后一段作为topic。
+ */
+public interface MessageTransport {
+
+	/*
+	 * 把已经序列化好的消息批量发送到destination，全部发送成功后才返回，失败时抛出RuntimeException：
+	 */
+	void sendTexts(String destination, List<String> texts);
+}
@@ -1,38 +1,151 @@
 package com.self.learnjava.service;
 
-import javax.jms.JMSException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.jms.CompletionListener;
+import javax.jms.Destination;
 import javax.jms.Message;
-import javax.jms.Session;
+import javax.jms.MessageProducer;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.jms.core.JmsTemplate;
-import org.springframework.jms.core.MessageCreator;
+import org.springframework.jms.support.JmsUtils;
 import org.springframework.stereotype.Component;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.self.learnjava.web.MailMessage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
 
+/*
+ * 发送消息。Spring Boot自动配置的ConnectionFactory是CachingConnectionFactory，
+ * 通过spring.jms.cache.session-cache-size缓存Session和MessageProducer，发送时不再每次创建Session和Producer。
+ * messaging.async-send为true时使用JMS 2.0的异步发送：send立刻返回，服务器确认后回调CompletionListener，
+ * 整批消息发出后再统一等待确认，一批消息只需要等待一次往返，而不是每条消息一次（需要Artemis的confirmationWindowSize，见JmsConfiguration）。
+ * 发送耗时记录到messaging.publish{mode=sync|async}，异步模式下为发出到服务器确认的时间。
+ */
 @Component
-public class MessaginService {
+@ConditionalOnProperty(value="messaging.transport", havingValue="jms", matchIfMissing=true)
+public class MessaginService implements MessageTransport, MeterBinder {
 	
-	@Autowired
-	ObjectMapper objectMapper;
+	public static final String MAIL_QUEUE = "/jms/queue/mail";
 	
 	@Autowired
 	JmsTemplate jmsTemplate;
 	
+	@Value("${messaging.async-send:false}")
+	boolean asyncSend;
+	
+	@Value("${messaging.confirmation-timeout:30s}")
+	Duration confirmationTimeout;
+	
+	private volatile Timer publishTimer;
+	private volatile Counter published;
+	private volatile Counter failures;
+	
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		this.publishTimer = Timer.builder("messaging.publish").tag("mode", asyncSend ? "async" : "sync")
+				.publishPercentiles(0.5, 0.99).register(registry);
+		this.published = Counter.builder("messaging.published").register(registry);
+		this.failures = Counter.builder("messaging.failures").register(registry);
+	}
+	
 	/*
-	 * 和Spring版本的JMS代码相比，使用Spring Boot集成JMS时，只要引入了spring-boot-starter-artemis，Spring Boot会自动创建JMS相关的ConnectionFactory、JmsListenerContainerFactory、JmsTemplate等，无需我们再手动配置了。
-     * 发送消息时只需要引入JmsTemplate：
+	 * 把已经序列化好的消息批量发送到destination，所有消息都被服务器确认后才返回，OutboxRelay使用：
 	 */
-	public void sendMailMessage(MailMessage msg) throws Exception {
-		System.out.println("发送jms/queue/mail");
-		String text = objectMapper.writeValueAsString(msg);
-		jmsTemplate.send("/jms/queue/mail", new MessageCreator(){
-			@Override
-			public Message createMessage(Session session) throws JMSException {
-				return session.createTextMessage(text);
-			}
-		});
+	@Override
+	public void sendTexts(String destinationName, List<String> texts) {
+		if (texts.isEmpty()) {
+			return;
+		}
+		publish(destinationName, texts);
+	}
+	
+	/*
+	 * 所有消息共用一个Session和MessageProducer。异步模式下先发出整批消息，再在同一个线程中等待所有确认，
+	 * 最多等待confirmation-timeout，然后才关闭Producer：JMS 2.0的close会阻塞到所有CompletionListener执行完，
+	 * 先显式等待可以设置超时，并把失败的消息作为异常抛出，而不是在close中隐式地阻塞。
+	 */
+	private void publish(String destinationName, List<String> texts) {
+		try {
+			jmsTemplate.execute(session -> {
+				Destination destination = jmsTemplate.getDestinationResolver().resolveDestinationName(session, destinationName, jmsTemplate.isPubSubDomain());
+				MessageProducer producer = session.createProducer(destination);
+				try {
+					List<CompletableFuture<Void>> futures = new ArrayList<>(texts.size());
+					for (String text : texts) {
+						long start = System.nanoTime();
+						if (asyncSend) {
+							CompletableFuture<Void> future = new CompletableFuture<>();
+							producer.send(session.createTextMessage(text), new CompletionListener() {
+								@Override
+								public void onCompletion(Message message) {
+									recordSent(start);
+									future.complete(null);
+								}
+							
+								@Override
+								public void onException(Message message, Exception exception) {
+									increment(failures);
+									future.completeExceptionally(exception);
+								}
+							});
+							futures.add(future);
+						} else {
+							producer.send(session.createTextMessage(text));
+							recordSent(start);
+						}
+					}
+					awaitConfirmations(futures);
+					JmsUtils.commitIfNecessary(session);
+				} finally {
+					JmsUtils.closeMessageProducer(producer);
+				}
+				return null;
+			}, true);
+		} catch (RuntimeException e) {
+			increment(failures);
+			throw e;
+		}
+	}
+	
+	private void awaitConfirmations(List<CompletableFuture<Void>> futures) {
+		if (futures.isEmpty()) {
+			return;
+		}
+		try {
+			CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]))
+					.get(confirmationTimeout.toMillis(), TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Send message failed.", e.getCause());
+		} catch (TimeoutException e) {
+			throw new RuntimeException("Send message not confirmed in " + confirmationTimeout.toMillis() + " ms.", e);
+		}
+	}
+	
+	private void recordSent(long start) {
+		Timer timer = this.publishTimer;
+		if (timer != null) {
+			timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		}
+		increment(published);
+	}
+	
+	private static void increment(Counter counter) {
+		if (counter != null) {
+			counter.increment();
+		}
 	}
 }
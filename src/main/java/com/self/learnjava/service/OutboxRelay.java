@@ -0,0 +1,214 @@
+package com.self.learnjava.service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/*
+ * 把outbox表中未发送的消息发送出去：
+ * 后台线程每隔poll-interval（或OutboxService所在的事务提交后立刻）按id顺序取出最多batch-size条未发送的消息，
+ * 按destination分组后通过MessageTransport批量发送，再把它们标记为已发送（sentAt）。
+ * 发送成功但标记之前崩溃时这批消息会再发送一次，因此消费者需要容忍重复消息。
+ * 多个节点通过Redis锁__outbox_relay__保证同一时间只有一个节点在发送，避免重复；Redis不可用时仍然发送。
+ * 已发送超过retention的记录定期删除。
+ */
+@Component
+public class OutboxRelay implements MeterBinder {
+
+	final Logger logger = LoggerFactory.getLogger(getClass());
+
+	static final String LOCK_KEY = "__outbox_relay__";
+
+	@Autowired
+	JdbcTemplate jdbcTemplate;
+
+	@Autowired
+	PlatformTransactionManager transactionManager;
+
+	@Autowired
+	MessageTransport messageTransport;
+
+	@Autowired
+	RedisService redisService;
+
+	@Value("${outbox.batch-size:100}")
+	int batchSize;
+
+	@Value("${outbox.poll-interval:1s}")
+	Duration pollInterval;
+
+	@Value("${outbox.lock-ttl:30s}")
+	Duration lockTtl;
+
+	@Value("${outbox.retention:1d}")
+	Duration retention;
+
+	private TransactionTemplate transactionTemplate;
+
+	private final String token = UUID.randomUUID().toString();
+	private final Object signal = new Object();
+	private boolean signaled;
+	private volatile boolean running;
+	private Thread worker;
+	private long lastCleanup;
+
+	private volatile Counter published;
+	private volatile Counter failures;
+	private volatile Timer lag;
+
+	@PostConstruct
+	public void init() {
+		this.transactionTemplate = new TransactionTemplate(transactionManager);
+	}
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void start() {
+		this.running = true;
+		Thread t = new Thread(this::run, "outbox-relay");
+		t.setDaemon(true);
+		this.worker = t;
+		t.start();
+	}
+
+	@PreDestroy
+	public void stop() throws InterruptedException {
+		this.running = false;
+		Thread t = this.worker;
+		if (t != null) {
+			wakeUp();
+			t.join(5000);
+		}
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		this.published = Counter.builder("outbox.published").register(registry);
+		this.failures = Counter.builder("outbox.failures").register(registry);
+		// 从写入outbox到发送完成的时间:
+		this.lag = Timer.builder("outbox.lag").publishPercentiles(0.5, 0.99).register(registry);
+	}
+
+	public void wakeUp() {
+		synchronized (signal) {
+			signaled = true;
+			signal.notifyAll();
+		}
+	}
+
+	void run() {
+		while (running) {
+			int sent = 0;
+			try {
+				sent = relayWithLock();
+				cleanup();
+			} catch (RuntimeException e) {
+				increment(failures);
+				logger.warn("relay outbox failed, will retry: {}", e.getMessage());
+			}
+			// 取满一批说明还有未发送的消息，继续发送:
+			if (sent < batchSize) {
+				try {
+					synchronized (signal) {
+						if (!signaled) {
+							signal.wait(pollInterval.toMillis());
+						}
+						signaled = false;
+					}
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		}
+	}
+
+	private int relayWithLock() {
+		boolean locked;
+		try {
+			locked = redisService.tryLock(LOCK_KEY, token, lockTtl);
+		} catch (RuntimeException e) {
+			logger.warn("acquire outbox lock failed, relay without lock: {}", e.getMessage());
+			return relay();
+		}
+		if (!locked) {
+			return 0;
+		}
+		try {
+			return relay();
+		} finally {
+			try {
+				redisService.unlock(LOCK_KEY, token);
+			} catch (RuntimeException e) {
+				logger.warn("release outbox lock failed: {}", e.getMessage());
+			}
+		}
+	}
+
+	int relay() {
+		List<Map<String, Object>> rows = transactionTemplate.execute(status -> jdbcTemplate.queryForList(
+				"SELECT id, destination, payload, createdAt FROM outbox WHERE sentAt IS NULL ORDER BY id LIMIT ?", batchSize));
+		if (rows.isEmpty()) {
+			return 0;
+		}
+		Map<String, List<String>> payloads = new LinkedHashMap<>();
+		List<Object[]> ids = new ArrayList<>(rows.size());
+		for (Map<String, Object> row : rows) {
+			payloads.computeIfAbsent((String) row.get("destination"), d -> new ArrayList<>()).add((String) row.get("payload"));
+		}
+		for (Map.Entry<String, List<String>> entry : payloads.entrySet()) {
+			messageTransport.sendTexts(entry.getKey(), entry.getValue());
+		}
+		long now = System.currentTimeMillis();
+		for (Map<String, Object> row : rows) {
+			ids.add(new Object[] { now, row.get("id") });
+			if (lag != null) {
+				lag.record(now - ((Number) row.get("createdAt")).longValue(), TimeUnit.MILLISECONDS);
+			}
+		}
+		transactionTemplate.execute(status -> jdbcTemplate.batchUpdate("UPDATE outbox SET sentAt = ? WHERE id = ?", ids));
+		increment(published, rows.size());
+		logger.debug("relayed {} outbox messages.", rows.size());
+		return rows.size();
+	}
+
+	private void cleanup() {
+		long now = System.currentTimeMillis();
+		if (now - lastCleanup < 60000) {
+			return;
+		}
+		lastCleanup = now;
+		transactionTemplate.execute(status -> jdbcTemplate.update("DELETE FROM outbox WHERE sentAt < ?", now - retention.toMillis()));
+	}
+
+	private static void increment(Counter counter) {
+		increment(counter, 1);
+	}
+
+	private static void increment(Counter counter, double amount) {
+		if (counter != null) {
+			counter.increment(amount);
+		}
+	}
+}
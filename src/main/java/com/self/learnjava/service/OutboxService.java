@@ -0,0 +1,74 @@
+package com.self.learnjava.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/*
+ * 事务发件箱：要发送的消息先写入outbox表，与业务数据在同一个事务中提交，
+ * 事务回滚时消息也不会发出，提交后由OutboxRelay在后台发送到destination，
+ * 请求线程不需要等待消息服务器，消息至少发送一次。
+ * 只能在事务中调用（Propagation.MANDATORY），提交后立刻唤醒OutboxRelay，不必等到下一次轮询。
+ */
+@Component
+@Transactional(propagation = Propagation.MANDATORY)
+public class OutboxService {
+
+	static final String INSERT_SQL = "INSERT INTO outbox (destination, payload, createdAt) VALUES (?,?,?)";
+
+	@Autowired
+	JdbcTemplate jdbcTemplate;
+
+	@Autowired
+	ObjectMapper objectMapper;
+
+	@Autowired
+	OutboxRelay outboxRelay;
+
+	public void add(String destination, Object message) {
+		jdbcTemplate.update(INSERT_SQL, destination, toJson(message), System.currentTimeMillis());
+		wakeUpAfterCommit();
+	}
+
+	public void addAll(String destination, List<?> messages) {
+		if (messages.isEmpty()) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		List<Object[]> args = new ArrayList<>(messages.size());
+		for (Object message : messages) {
+			args.add(new Object[] { destination, toJson(message), now });
+		}
+		jdbcTemplate.batchUpdate(INSERT_SQL, args);
+		wakeUpAfterCommit();
+	}
+
+	private String toJson(Object message) {
+		try {
+			return objectMapper.writeValueAsString(message);
+		} catch (JsonProcessingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void wakeUpAfterCommit() {
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCommit() {
+					outboxRelay.wakeUp();
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,12 @@
+package com.self.learnjava.service;
+
+import java.util.List;
+
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+
+@FunctionalInterface
+public interface PipelineCallback<T> {
+    // 在此发出多个Redis命令，并返回每个命令的Future，命令会在回调结束后一次性发送:
+	List<RedisFuture<T>> doInPipeline(RedisAsyncCommands<String, String> commands);
+}
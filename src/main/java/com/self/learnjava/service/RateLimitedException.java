@@ -0,0 +1,24 @@
+package com.self.learnjava.service;
+
+/*
+ * 请求超过频率限制，Web层应返回429 Too Many Requests，retryAfterMillis后可以重试：
+ */
+public class RateLimitedException extends RuntimeException {
+
+	private final long retryAfterMillis;
+
+	public RateLimitedException(String message, long retryAfterMillis) {
+		super(message);
+		this.retryAfterMillis = retryAfterMillis;
+	}
+
+	public long getRetryAfterMillis() {
+		return retryAfterMillis;
+	}
+
+	// 不需要堆栈，被限流的请求越多越不应该花时间生成它:
+	@Override
+	public synchronized Throwable fillInStackTrace() {
+		return this;
+	}
+}
@@ -0,0 +1,11 @@
+package com.self.learnjava.service;
+
+import org.reactivestreams.Publisher;
+
+import io.lettuce.core.api.reactive.RedisReactiveCommands;
+
+@FunctionalInterface
+public interface ReactiveCommandCallback<T> {
+    // 返回Mono或Flux，订阅时才真正发送命令:
+	Publisher<T> doInConnection(RedisReactiveCommands<String, String> commands);
+}
@@ -0,0 +1,278 @@
+package com.self.learnjava.service;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import io.lettuce.core.RedisChannelHandler;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisCommandExecutionException;
+import io.lettuce.core.RedisConnectionStateAdapter;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.codec.ByteArrayCodec;
+import io.lettuce.core.codec.RedisCodec;
+import io.lettuce.core.codec.StringCodec;
+import io.lettuce.core.output.StatusOutput;
+import io.lettuce.core.protocol.CommandArgs;
+import io.lettuce.core.protocol.CommandType;
+import io.lettuce.core.pubsub.RedisPubSubAdapter;
+import io.lettuce.core.pubsub.StatefulRedisPubSubConnection;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+/*
+ * Redis 6的客户端缓存（CLIENT TRACKING）：
+ * 通过专用连接读取的key由服务器记录下来，key被任何客户端修改后，服务器向__redis__:invalidate频道推送失效消息，
+ * 本地缓存收到后删除该key的所有field，重复读取热点key时直接从本地内存返回，不需要网络往返。
+ * 本地缓存的条目就是Redis的key，条目的值是已读取的field，失效时按key直接删除条目，不需要扫描整个缓存。
+ * Lettuce 5.3只支持RESP2，因此使用REDIRECT模式：失效消息发给另一个订阅连接，而不是RESP3的push消息。
+ * 任一连接断开或重连时服务器端的跟踪状态会丢失，此时清空本地缓存，下次读取时重新开启跟踪。
+ * 跟踪的粒度是key，Hash中任一field被修改都会使整个Hash在本地失效。
+ * 本地缓存的条目最多保存expire-after-write，即使漏掉了失效消息，读到旧数据的时间也有上限。
+ * 通过spring.redis.client-cache.enabled开启，服务器不支持CLIENT TRACKING时自动退化为直接读取。
+ */
+@Component
+public class RedisClientSideCache implements MeterBinder {
+
+	final Logger logger = LoggerFactory.getLogger(getClass());
+
+	static final String INVALIDATE_CHANNEL = "__redis__:invalidate";
+
+	static final RedisCodec<String, byte[]> CODEC = RedisCodec.of(StringCodec.UTF8, ByteArrayCodec.INSTANCE);
+
+	@Autowired
+	RedisClient redisClient;
+
+	@Value("${spring.redis.client-cache.enabled:false}")
+	boolean enabled;
+
+	@Value("${spring.redis.client-cache.maximum-size:10000}")
+	long maximumSize;
+
+	@Value("${spring.redis.client-cache.expire-after-write:1m}")
+	Duration expireAfterWrite;
+
+	// Redis的key -> 已读取的field，GET读取的String类型key保存在空field下:
+	private Cache<String, Map<String, byte[]>> cache;
+
+	private volatile StatefulRedisConnection<String, byte[]> connection;
+	private volatile StatefulRedisPubSubConnection<String, String> invalidationConnection;
+
+	private volatile boolean tracking;
+	private volatile boolean unsupported;
+
+	// 每收到一次失效消息加1，读取期间发生过失效的结果不放入缓存:
+	private final AtomicLong invalidations = new AtomicLong();
+
+	@PostConstruct
+	public void init() {
+		this.cache = Caffeine.newBuilder().maximumSize(maximumSize)
+				.expireAfterWrite(expireAfterWrite.toMillis(), TimeUnit.MILLISECONDS).recordStats().build();
+		if (enabled) {
+			redisClient.addListener(new RedisConnectionStateAdapter() {
+				@Override
+				public void onRedisConnected(RedisChannelHandler<?, ?> handler, SocketAddress local) {
+					onConnectionChanged(handler);
+				}
+
+				@Override
+				public void onRedisDisconnected(RedisChannelHandler<?, ?> handler) {
+					onConnectionChanged(handler);
+				}
+			});
+		}
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (invalidationConnection != null) {
+			invalidationConnection.close();
+		}
+		if (connection != null) {
+			connection.close();
+		}
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		if (enabled) {
+			CaffeineCacheMetrics.monitor(registry, cache, "redis.client-cache");
+			Gauge.builder("redis.client-cache.invalidations", invalidations, AtomicLong::get)
+					.description("Invalidation messages received from Redis").register(registry);
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled && !unsupported;
+	}
+
+	/*
+	 * 先查本地缓存，未命中时通过开启了跟踪的连接读取，key或field不存在时不缓存：
+	 */
+	public byte[] get(String key) {
+		return read(key, "", key);
+	}
+
+	public byte[] hget(String key, String field) {
+		return read(key, field, null);
+	}
+
+	private byte[] read(String key, String field, String stringKey) {
+		StatefulRedisConnection<String, byte[]> conn = this.connection;
+		if (conn == null || (!tracking && !unsupported)) {
+			conn = ensureTracking();
+		}
+		long version = invalidations.get();
+		Map<String, byte[]> fields = cache.getIfPresent(key);
+		byte[] bytes = fields == null ? null : fields.get(field);
+		if (bytes != null) {
+			return bytes;
+		}
+		bytes = stringKey != null ? conn.sync().get(stringKey) : conn.sync().hget(key, field);
+		if (bytes != null && tracking && version == invalidations.get()) {
+			cache.get(key, k -> new ConcurrentHashMap<>()).put(field, bytes);
+			// 写入本地缓存的同时收到了失效消息，删除可能已经过期的条目:
+			if (version != invalidations.get()) {
+				cache.invalidate(key);
+			}
+		}
+		return bytes;
+	}
+
+	private synchronized StatefulRedisConnection<String, byte[]> ensureTracking() {
+		if (connection == null) {
+			connection = redisClient.connect(CODEC);
+			InvalidationCodec codec = new InvalidationCodec();
+			invalidationConnection = redisClient.connectPubSub(codec);
+			invalidationConnection.addListener(new RedisPubSubAdapter<String, String>() {
+				@Override
+				public void message(String channel, String message) {
+					onInvalidation(codec.drain());
+				}
+			});
+		}
+		if (!tracking && !unsupported) {
+			try {
+				// 订阅连接重连后client id会变化，每次都重新查询:
+				Long clientId = invalidationConnection.sync().clientId();
+				invalidationConnection.sync().subscribe(INVALIDATE_CHANNEL);
+				clientTracking(false, null);
+				clientTracking(true, clientId);
+				cache.invalidateAll();
+				tracking = true;
+				logger.info("redis client tracking enabled, redirect to client {}.", clientId);
+			} catch (RuntimeException e) {
+				if (isTrackingUnsupported(e)) {
+					unsupported = true;
+					logger.warn("redis server does not support CLIENT TRACKING, client-side cache disabled: {}", e.getMessage());
+				} else {
+					throw e;
+				}
+			}
+		}
+		return connection;
+	}
+
+	private void clientTracking(boolean on, Long redirect) {
+		CommandArgs<String, byte[]> args = new CommandArgs<>(CODEC).add("TRACKING").add(on ? "ON" : "OFF");
+		if (redirect != null) {
+			args.add("REDIRECT").add(redirect);
+		}
+		connection.sync().dispatch(CommandType.CLIENT, new StatusOutput<>(CODEC), args);
+	}
+
+	/*
+	 * Redis 6以前的版本没有CLIENT TRACKING（或CLIENT ID），返回未知子命令或语法错误；
+	 * CLIENT被rename-command禁用时返回未知命令。其他错误（例如连接失败）不应该永久关闭客户端缓存：
+	 */
+	static boolean isTrackingUnsupported(RuntimeException e) {
+		if (!(e instanceof RedisCommandExecutionException) || e.getMessage() == null) {
+			return false;
+		}
+		String message = e.getMessage();
+		return startsWithIgnoreCase(message, "ERR unknown subcommand") || startsWithIgnoreCase(message, "ERR unknown command")
+				|| startsWithIgnoreCase(message, "ERR syntax error, try CLIENT");
+	}
+
+	private static boolean startsWithIgnoreCase(String s, String prefix) {
+		return s.regionMatches(true, 0, prefix, 0, prefix.length());
+	}
+
+	/*
+	 * RESP2下失效消息的内容是被修改的key的数组，FLUSHALL/FLUSHDB时为null，此时清空全部缓存：
+	 */
+	void onInvalidation(List<String> keys) {
+		invalidations.incrementAndGet();
+		if (keys == null || keys.isEmpty()) {
+			cache.invalidateAll();
+			return;
+		}
+		cache.invalidateAll(keys);
+	}
+
+	private void onConnectionChanged(RedisChannelHandler<?, ?> handler) {
+		if (handler == connection || handler == invalidationConnection) {
+			tracking = false;
+			invalidations.incrementAndGet();
+			cache.invalidateAll();
+		}
+	}
+
+	/*
+	 * Lettuce 5.3的PubSubOutput把消息内容解码为一个值，数组只保留最后一个元素，null数组则没有值。
+	 * 因此订阅连接使用这个编解码器，在decodeValue中收集数组中的每一个key，由随后在同一个I/O线程上调用的message()取出；
+	 * 没有收集到任何key（null）表示服务器清空了数据库。
+	 */
+	static class InvalidationCodec implements RedisCodec<String, String> {
+
+		private final List<String> keys = new ArrayList<>();
+
+		@Override
+		public String decodeKey(ByteBuffer bytes) {
+			return StringCodec.UTF8.decodeKey(bytes);
+		}
+
+		@Override
+		public synchronized String decodeValue(ByteBuffer bytes) {
+			String key = StringCodec.UTF8.decodeValue(bytes);
+			keys.add(key);
+			return key;
+		}
+
+		@Override
+		public ByteBuffer encodeKey(String key) {
+			return StringCodec.UTF8.encodeKey(key);
+		}
+
+		@Override
+		public ByteBuffer encodeValue(String value) {
+			return StringCodec.UTF8.encodeValue(value);
+		}
+
+		synchronized List<String> drain() {
+			List<String> drained = new ArrayList<>(keys);
+			keys.clear();
+			return drained;
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package com.self.learnjava.service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+import org.apache.commons.pool2.impl.GenericObjectPool;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/*
+ * RedisService连接池的监控指标，可在/actuator/metrics中查看：
+ * redis.pool.active/idle/waiters/max：活动连接数、空闲连接数、排队等待的线程数和当前的max-total；
+ * redis.pool.created/destroyed：累计创建和销毁的连接数；
+ * 以上指标的tag codec=string/binary分别对应String值和byte[]值的两个连接池；
+ * redis.pool.borrow：借连接的等待时间（含直方图）；
+ * redis.command：借到连接后执行命令的耗时（含直方图）。
+ * borrow高而command正常说明连接池不够用，command高说明是Redis服务器或网络慢。
+ * shared模式下没有连接池，只有redis.command。
+ */
+@Component
+public class RedisPoolMetrics implements MeterBinder {
+
+	static final String STRING = "string";
+	static final String BINARY = "binary";
+
+	private volatile GenericObjectPool<?> pool;
+	private volatile GenericObjectPool<?> binaryPool;
+
+	private volatile Timer borrowTimer;
+	private volatile Timer commandTimer;
+
+	void setPools(GenericObjectPool<?> pool, GenericObjectPool<?> binaryPool) {
+		this.pool = pool;
+		this.binaryPool = binaryPool;
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		for (String codec : new String[] { STRING, BINARY }) {
+			gauge(registry, "redis.pool.active", codec, GenericObjectPool::getNumActive);
+			gauge(registry, "redis.pool.idle", codec, GenericObjectPool::getNumIdle);
+			gauge(registry, "redis.pool.waiters", codec, GenericObjectPool::getNumWaiters);
+			gauge(registry, "redis.pool.max", codec, GenericObjectPool::getMaxTotal);
+			FunctionCounter.builder("redis.pool.created", this, m -> poolValue(m, codec, GenericObjectPool::getCreatedCount))
+					.tag("codec", codec).register(registry);
+			FunctionCounter.builder("redis.pool.destroyed", this, m -> poolValue(m, codec, GenericObjectPool::getDestroyedCount))
+					.tag("codec", codec).register(registry);
+		}
+		this.borrowTimer = Timer.builder("redis.pool.borrow").publishPercentileHistogram().register(registry);
+		this.commandTimer = Timer.builder("redis.command").publishPercentileHistogram().register(registry);
+	}
+
+	private void gauge(MeterRegistry registry, String name, String codec, ToDoubleFunction<GenericObjectPool<?>> f) {
+		Gauge.builder(name, this, m -> poolValue(m, codec, f)).tag("codec", codec).register(registry);
+	}
+
+	private static double poolValue(RedisPoolMetrics m, String codec, ToDoubleFunction<GenericObjectPool<?>> f) {
+		GenericObjectPool<?> pool = BINARY.equals(codec) ? m.binaryPool : m.pool;
+		return pool == null ? 0 : f.applyAsDouble(pool);
+	}
+
+	void recordBorrow(long nanos) {
+		Timer timer = this.borrowTimer;
+		if (timer != null) {
+			timer.record(nanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	void recordCommand(long nanos) {
+		Timer timer = this.commandTimer;
+		if (timer != null) {
+			timer.record(nanos, TimeUnit.NANOSECONDS);
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package com.self.learnjava.service;
+
+import java.time.Duration;
+
+/*
+ * RedisService连接池的配置，对应spring.redis.pool：
+ * spring:
+	  redis:
+	    pool:
+	      max-total: 20
+	      max-idle: 5
+	      min-idle: 0
+	      max-wait: 3s
+	      adaptive:
+	        enabled: true
+	        min-total: 4
+	        max-total: 64
+	        interval: 10s
+	        grow-threshold: 1ms
+	        step: 2
+ * max-wait是借连接的最长等待时间，超时抛出异常而不是无限等待。
+ * adaptive.enabled为true时，每隔interval根据这段时间内借连接的平均等待时间调整max-total：
+ * 平均等待超过grow-threshold或有线程在排队时增加step个，一直没有等待且活动连接的峰值远低于上限时减少step个，
+ * 始终保持在adaptive.min-total和adaptive.max-total之间，配置的max-total超出这个范围时启动时先调整到范围之内。
+ * max-idle不随max-total增加，空闲连接始终不超过配置的max-idle。
+ */
+public class RedisPoolProperties {
+	private int maxTotal = 20;
+	private int maxIdle = 5;
+	private int minIdle = 0;
+	private Duration maxWait = Duration.ofSeconds(3);
+	private boolean testOnReturn = true;
+	private boolean testWhileIdle = true;
+	private Duration timeBetweenEvictionRuns = Duration.ofSeconds(30);
+	private Adaptive adaptive = new Adaptive();
+
+	public int getMaxTotal() {
+		return maxTotal;
+	}
+	public void setMaxTotal(int maxTotal) {
+		this.maxTotal = maxTotal;
+	}
+	public int getMaxIdle() {
+		return maxIdle;
+	}
+	public void setMaxIdle(int maxIdle) {
+		this.maxIdle = maxIdle;
+	}
+	public int getMinIdle() {
+		return minIdle;
+	}
+	public void setMinIdle(int minIdle) {
+		this.minIdle = minIdle;
+	}
+	public Duration getMaxWait() {
+		return maxWait;
+	}
+	public void setMaxWait(Duration maxWait) {
+		this.maxWait = maxWait;
+	}
+	public boolean isTestOnReturn() {
+		return testOnReturn;
+	}
+	public void setTestOnReturn(boolean testOnReturn) {
+		this.testOnReturn = testOnReturn;
+	}
+	public boolean isTestWhileIdle() {
+		return testWhileIdle;
+	}
+	public void setTestWhileIdle(boolean testWhileIdle) {
+		this.testWhileIdle = testWhileIdle;
+	}
+	public Duration getTimeBetweenEvictionRuns() {
+		return timeBetweenEvictionRuns;
+	}
+	public void setTimeBetweenEvictionRuns(Duration timeBetweenEvictionRuns) {
+		this.timeBetweenEvictionRuns = timeBetweenEvictionRuns;
+	}
+	public Adaptive getAdaptive() {
+		return adaptive;
+	}
+	public void setAdaptive(Adaptive adaptive) {
+		this.adaptive = adaptive;
+	}
+
+	public static class Adaptive {
+		private boolean enabled = false;
+		private int minTotal = 4;
+		private int maxTotal = 64;
+		private Duration interval = Duration.ofSeconds(10);
+		private Duration growThreshold = Duration.ofMillis(1);
+		private int step = 2;
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+		public int getMinTotal() {
+			return minTotal;
+		}
+		public void setMinTotal(int minTotal) {
+			this.minTotal = minTotal;
+		}
+		public int getMaxTotal() {
+			return maxTotal;
+		}
+		public void setMaxTotal(int maxTotal) {
+			this.maxTotal = maxTotal;
+		}
+		public Duration getInterval() {
+			return interval;
+		}
+		public void setInterval(Duration interval) {
+			this.interval = interval;
+		}
+		public Duration getGrowThreshold() {
+			return growThreshold;
+		}
+		public void setGrowThreshold(Duration growThreshold) {
+			this.growThreshold = growThreshold;
+		}
+		public int getStep() {
+			return step;
+		}
+		public void setStep(int step) {
+			this.step = step;
+		}
+	}
+}
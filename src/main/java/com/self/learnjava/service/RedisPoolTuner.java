@@ -0,0 +1,97 @@
+package com.self.learnjava.service;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.pool2.impl.GenericObjectPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * 根据借连接的等待时间自动调整连接池大小，规则见RedisPoolProperties。
+ * 每次借连接时记录等待时间和活动连接数，每隔interval统计一次并清零。
+ */
+class RedisPoolTuner {
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final GenericObjectPool<?> pool;
+	private final RedisPoolProperties.Adaptive config;
+	private final int maxIdle;
+
+	private final LongAdder borrowCount = new LongAdder();
+	private final LongAdder borrowNanos = new LongAdder();
+	private final AtomicInteger peakActive = new AtomicInteger();
+
+	private ScheduledExecutorService scheduler;
+
+	RedisPoolTuner(GenericObjectPool<?> pool, RedisPoolProperties properties) {
+		this.pool = pool;
+		this.config = properties.getAdaptive();
+		this.maxIdle = properties.getMaxIdle();
+	}
+
+	/*
+	 * 配置的max-total不在adaptive的范围内时，启动时先调整到范围之内：
+	 */
+	void start() {
+		int initial = Math.max(config.getMinTotal(), Math.min(config.getMaxTotal(), pool.getMaxTotal()));
+		if (initial != pool.getMaxTotal()) {
+			logger.info("clamp redis pool max-total {} -> {} (adaptive range {}-{})", pool.getMaxTotal(), initial,
+					config.getMinTotal(), config.getMaxTotal());
+			resize(initial);
+		}
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "redis-pool-tuner");
+			t.setDaemon(true);
+			return t;
+		});
+		long millis = config.getInterval().toMillis();
+		this.scheduler.scheduleWithFixedDelay(this::adjust, millis, millis, TimeUnit.MILLISECONDS);
+	}
+
+	void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+	}
+
+	void recordBorrow(long nanos) {
+		borrowCount.increment();
+		borrowNanos.add(nanos);
+		peakActive.accumulateAndGet(pool.getNumActive(), Math::max);
+	}
+
+	void adjust() {
+		long count = borrowCount.sumThenReset();
+		long nanos = borrowNanos.sumThenReset();
+		int peak = peakActive.getAndSet(0);
+		if (count == 0) {
+			return;
+		}
+		int current = pool.getMaxTotal();
+		long meanWait = nanos / count;
+		int target = current;
+		if (meanWait > config.getGrowThreshold().toNanos() || pool.getNumWaiters() > 0) {
+			target = Math.min(config.getMaxTotal(), current + config.getStep());
+		} else if (meanWait < config.getGrowThreshold().toNanos() / 10 && peak + config.getStep() * 2 <= current) {
+			target = Math.max(config.getMinTotal(), current - config.getStep());
+		}
+		if (target != current) {
+			logger.info("adjust redis pool max-total {} -> {} (mean borrow wait {} us, peak active {})", current, target,
+					meanWait / 1000, peak);
+			resize(target);
+		}
+	}
+
+	/*
+	 * max-idle保持为配置值，只在max-total比它更小时跟着缩小，空闲连接不会超过配置的数量：
+	 */
+	private void resize(int maxTotal) {
+		pool.setMaxTotal(maxTotal);
+		pool.setMaxIdle(Math.min(maxIdle, maxTotal));
+	}
+}
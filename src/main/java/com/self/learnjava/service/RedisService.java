@@ -1,7 +1,13 @@
 package com.self.learnjava.service;
 
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
@@ -11,12 +17,25 @@ import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import io.lettuce.core.KeyValue;
+import io.lettuce.core.LettuceFutures;
 import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisCommandTimeoutException;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.SetArgs;
 import io.lettuce.core.api.StatefulRedisConnection;
 import io.lettuce.core.api.sync.RedisCommands;
+import io.lettuce.core.codec.ByteArrayCodec;
+import io.lettuce.core.codec.RedisCodec;
+import io.lettuce.core.codec.StringCodec;
+import io.lettuce.core.pubsub.RedisPubSubAdapter;
+import io.lettuce.core.pubsub.StatefulRedisPubSubConnection;
 import io.lettuce.core.support.ConnectionPoolSupport;
+import reactor.core.publisher.Flux;
 
 /*
  * 访问Redis
@@ -100,47 +119,434 @@ public class RedisService {
 	@Autowired
 	RedisClient redisClient;
 	
+	/*
+	 * 连接模式，通过spring.redis.mode配置：
+	 * pooled：默认，executeSync每次从连接池借一个连接，适合需要独占连接的操作（如MULTI、阻塞命令）；
+	 * shared：所有线程共用一个连接。Lettuce的连接是线程安全的，命令在同一个连接上多路复用，
+	 * 不需要borrowObject排队，也没有testOnReturn的ping，吞吐量只受网络限制。
+	 * executeAsync和executeReactive本身不阻塞，无论哪种模式都使用共享连接。
+	 * 值为byte[]的executeBinary/executeBinaryPipelined同样按mode选择：pooled模式下使用另一个配置相同的连接池
+	 * （Lettuce的连接只能有一种codec），shared模式下使用值为byte[]的共享连接。
+	 */
+	public static final String MODE_POOLED = "pooled";
+	public static final String MODE_SHARED = "shared";
+	
+	@Value("${spring.redis.mode:pooled}")
+	String mode;
+	
+	static final RedisCodec<String, byte[]> BINARY_CODEC = RedisCodec.of(StringCodec.UTF8, ByteArrayCodec.INSTANCE);
+	
 	private GenericObjectPool<StatefulRedisConnection<String, String>> redisConnectionPool;
 	
+	private GenericObjectPool<StatefulRedisConnection<String, byte[]>> binaryConnectionPool;
+	
+	private volatile StatefulRedisConnection<String, String> sharedConnection;
+	
+	@Autowired
+	RedisPoolProperties poolProperties;
+	
+	@Autowired
+	RedisPoolMetrics poolMetrics;
+	
+	private RedisPoolTuner poolTuner;
+	
+	private RedisPoolTuner binaryPoolTuner;
+	
+	/*
+	 * get(key, Class)和set(key, T)通过executeBinary读写，值由ValueCodec编码。
+	 * spring.redis.value-codec为json时所有类型都用JSON写入，否则按@Order选第一个支持该类型的ValueCodec。
+	 * value-codec只决定写入的格式，读取时由该类型的ValueCodec按数据本身判断格式（JSON以'{'开头，紧凑格式以版本字节开头），
+	 * 因此切换value-codec后Redis中已有的数据仍然可以读取，不需要清空。
+	 */
+	@Autowired
+	List<ValueCodec> valueCodecs;
+	
+	@Autowired
+	JacksonValueCodec jacksonValueCodec;
+	
+	@Value("${spring.redis.value-codec:compact}")
+	String valueCodec;
+	
+	@Autowired
+	RedisClientSideCache clientSideCache;
+	
+	private volatile StatefulRedisConnection<String, byte[]> binaryConnection;
+	
+	// 订阅需要一个专用的连接，Lettuce断线重连后会自动重新订阅:
+	private final List<StatefulRedisPubSubConnection<String, String>> pubSubConnections = new ArrayList<>();
+	
 	@PostConstruct
 	public void init() {
-		GenericObjectPoolConfig<StatefulRedisConnection<String, String>> poolConfig = new GenericObjectPoolConfig<>();
-		poolConfig.setMaxTotal(20);
-		poolConfig.setMaxIdle(5);
-		poolConfig.setTestOnReturn(true);
-		poolConfig.setTestWhileIdle(true);
-		this.redisConnectionPool = ConnectionPoolSupport.createGenericObjectPool(()->redisClient.connect(), poolConfig);
+		if (isShared()) {
+			logger.info("use shared redis connection.");
+			return;
+		}
+		this.redisConnectionPool = ConnectionPoolSupport.createGenericObjectPool(()->redisClient.connect(), poolConfig());
+		this.binaryConnectionPool = ConnectionPoolSupport.createGenericObjectPool(()->redisClient.connect(BINARY_CODEC), poolConfig());
+		poolMetrics.setPools(redisConnectionPool, binaryConnectionPool);
+		if (poolProperties.getAdaptive().isEnabled()) {
+			this.poolTuner = new RedisPoolTuner(redisConnectionPool, poolProperties);
+			this.poolTuner.start();
+			this.binaryPoolTuner = new RedisPoolTuner(binaryConnectionPool, poolProperties);
+			this.binaryPoolTuner.start();
+		}
+	}
+	
+	private <T> GenericObjectPoolConfig<T> poolConfig() {
+		GenericObjectPoolConfig<T> poolConfig = new GenericObjectPoolConfig<>();
+		poolConfig.setMaxTotal(poolProperties.getMaxTotal());
+		poolConfig.setMaxIdle(poolProperties.getMaxIdle());
+		poolConfig.setMinIdle(poolProperties.getMinIdle());
+		poolConfig.setMaxWaitMillis(poolProperties.getMaxWait().toMillis());
+		poolConfig.setTestOnReturn(poolProperties.isTestOnReturn());
+		poolConfig.setTestWhileIdle(poolProperties.isTestWhileIdle());
+		poolConfig.setTimeBetweenEvictionRunsMillis(poolProperties.getTimeBetweenEvictionRuns().toMillis());
+		return poolConfig;
 	}
 	
 	@PreDestroy
 	public void shutdown() {
-		this.redisConnectionPool.close();
+		synchronized (pubSubConnections) {
+			for (StatefulRedisPubSubConnection<String, String> conn : pubSubConnections) {
+				conn.close();
+			}
+		}
+		if (this.sharedConnection != null) {
+			this.sharedConnection.close();
+		}
+		if (this.binaryConnection != null) {
+			this.binaryConnection.close();
+		}
+		if (this.poolTuner != null) {
+			this.poolTuner.stop();
+		}
+		if (this.binaryPoolTuner != null) {
+			this.binaryPoolTuner.stop();
+		}
+		if (this.redisConnectionPool != null) {
+			this.redisConnectionPool.close();
+		}
+		if (this.binaryConnectionPool != null) {
+			this.binaryConnectionPool.close();
+		}
 		this.redisClient.shutdown();
 	}
 	
+	private boolean isShared() {
+		return MODE_SHARED.equals(mode);
+	}
+	
+	/*
+	 * 第一次使用时才创建共享连接，Redis暂时不可用不影响应用启动：
+	 */
+	private StatefulRedisConnection<String, String> sharedConnection() {
+		StatefulRedisConnection<String, String> conn = this.sharedConnection;
+		if (conn == null) {
+			synchronized (this) {
+				conn = this.sharedConnection;
+				if (conn == null) {
+					conn = redisClient.connect();
+					this.sharedConnection = conn;
+				}
+			}
+		}
+		return conn;
+	}
+	
+	private StatefulRedisConnection<String, byte[]> binaryConnection() {
+		StatefulRedisConnection<String, byte[]> conn = this.binaryConnection;
+		if (conn == null) {
+			synchronized (this) {
+				conn = this.binaryConnection;
+				if (conn == null) {
+					conn = redisClient.connect(BINARY_CODEC);
+					this.binaryConnection = conn;
+				}
+			}
+		}
+		return conn;
+	}
+	
 	public <T> T executeSync(SyncCommandCallback<T> callback) {
-		try(StatefulRedisConnection<String, String> connection = redisConnectionPool.borrowObject()) {
+		if (isShared()) {
+			long start = System.nanoTime();
+			try {
+				return callback.doInConnection(sharedConnection().sync());
+			} catch (Exception e) {
+				logger.warn("executeSync redis failed.", e);
+				throw new RuntimeException(e);
+			} finally {
+				poolMetrics.recordCommand(System.nanoTime() - start);
+			}
+		}
+		try(StatefulRedisConnection<String, String> connection = borrowConnection(redisConnectionPool, poolTuner)) {
 			connection.setAutoFlushCommands(true);
 			RedisCommands<String, String> commands = connection.sync();
-			return callback.doInConnection(commands);
+			long start = System.nanoTime();
+			try {
+				return callback.doInConnection(commands);
+			} finally {
+				poolMetrics.recordCommand(System.nanoTime() - start);
+			}
 		} catch (Exception e) {
 			logger.warn("executeSync redis failed.", e);
 			throw new RuntimeException(e);
 		}
 	}
 	
+	/*
+	 * 异步执行，立刻返回CompletableFuture，不占用调用线程等待Redis响应：
+	 */
+	public <T> CompletableFuture<T> executeAsync(AsyncCommandCallback<T> callback) {
+		try {
+			return callback.doInConnection(sharedConnection().async()).toCompletableFuture();
+		} catch (RuntimeException e) {
+			CompletableFuture<T> future = new CompletableFuture<>();
+			future.completeExceptionally(e);
+			return future;
+		}
+	}
+	
+	/*
+	 * 响应式执行，返回的Flux在订阅时才发送命令：
+	 */
+	public <T> Flux<T> executeReactive(ReactiveCommandCallback<T> callback) {
+		return Flux.defer(() -> callback.doInConnection(sharedConnection().reactive()));
+	}
+	
+	/*
+	 * 管道方式执行：关闭自动flush，回调中发出的命令先在本地排队，回调结束后一次flush发送，
+	 * 再等待所有结果返回，N个命令只需要一次网络往返。返回的结果与回调返回的Future顺序一致。
+	 * 共享连接不能关闭自动flush（会影响其他线程），此时直接发出异步命令再统一等待，同样不会逐条等待往返：
+	 */
+	public <T> List<T> executePipelined(PipelineCallback<T> callback) {
+		if (isShared()) {
+			try {
+				StatefulRedisConnection<String, String> connection = sharedConnection();
+				return awaitAll(connection.getTimeout(), callback.doInPipeline(connection.async()));
+			} catch (Exception e) {
+				logger.warn("executePipelined redis failed.", e);
+				throw new RuntimeException(e);
+			}
+		}
+		try(StatefulRedisConnection<String, String> connection = borrowConnection(redisConnectionPool, poolTuner)) {
+			connection.setAutoFlushCommands(false);
+			try {
+				List<RedisFuture<T>> futures = callback.doInPipeline(connection.async());
+				connection.flushCommands();
+				return awaitAll(connection.getTimeout(), futures);
+			} finally {
+				// 归还连接前恢复自动flush，并把回调异常时可能残留的命令发出去:
+				connection.setAutoFlushCommands(true);
+				connection.flushCommands();
+			}
+		} catch (Exception e) {
+			logger.warn("executePipelined redis failed.", e);
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/*
+	 * 与executePipelined相同，值为byte[]：
+	 */
+	public <T> List<T> executeBinaryPipelined(BinaryPipelineCallback<T> callback) {
+		if (isShared()) {
+			try {
+				StatefulRedisConnection<String, byte[]> connection = binaryConnection();
+				return awaitAll(connection.getTimeout(), callback.doInPipeline(connection.async()));
+			} catch (Exception e) {
+				logger.warn("executeBinaryPipelined redis failed.", e);
+				throw new RuntimeException(e);
+			}
+		}
+		try(StatefulRedisConnection<String, byte[]> connection = borrowConnection(binaryConnectionPool, binaryPoolTuner)) {
+			connection.setAutoFlushCommands(false);
+			try {
+				List<RedisFuture<T>> futures = callback.doInPipeline(connection.async());
+				connection.flushCommands();
+				return awaitAll(connection.getTimeout(), futures);
+			} finally {
+				connection.setAutoFlushCommands(true);
+				connection.flushCommands();
+			}
+		} catch (Exception e) {
+			logger.warn("executeBinaryPipelined redis failed.", e);
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/*
+	 * 从连接池借连接，记录等待时间，用来区分是连接池不够还是Redis本身慢：
+	 */
+	private <K, V> StatefulRedisConnection<K, V> borrowConnection(GenericObjectPool<StatefulRedisConnection<K, V>> pool, RedisPoolTuner tuner) throws Exception {
+		long start = System.nanoTime();
+		StatefulRedisConnection<K, V> connection = pool.borrowObject();
+		long waited = System.nanoTime() - start;
+		poolMetrics.recordBorrow(waited);
+		if (tuner != null) {
+			tuner.recordBorrow(waited);
+		}
+		return connection;
+	}
+	
+	private <T> List<T> awaitAll(Duration timeout, List<RedisFuture<T>> futures) throws Exception {
+		if (!LettuceFutures.awaitAll(timeout.toMillis(), TimeUnit.MILLISECONDS, futures.toArray(new RedisFuture[futures.size()]))) {
+			throw new RedisCommandTimeoutException("executePipelined redis timeout.");
+		}
+		List<T> results = new ArrayList<>(futures.size());
+		for (RedisFuture<T> future : futures) {
+			results.add(future.get());
+		}
+		return results;
+	}
+	
 	public String set(String key, String value) {
 		return executeSync(commands -> commands.set(key, value));
 	}
 	
+	/*
+	 * 使用毫秒精度的PSETEX，SETEX的单位是秒，不足一秒的timeout会变成0而报错：
+	 */
 	public String set(String key, String value, Duration timeout) {
-		return executeSync(commands -> commands.setex(key, timeout.toNanos(), value));
+		return executeSync(commands -> commands.psetex(key, timeout.toMillis(), value));
+	}
+	
+	/*
+	 * 简单的分布式租约：SET key token NX PX，只有key不存在时才能拿到，到期自动释放。
+	 * token用于释放时确认租约仍属于自己，避免删除已经过期后被其他节点拿到的租约：
+	 */
+	public boolean tryLock(String key, String token, Duration ttl) {
+		return "OK".equals(executeSync(commands -> commands.set(key, token, SetArgs.Builder.nx().px(ttl.toMillis()))));
+	}
+	
+	static final String UNLOCK_SCRIPT = "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) else return 0 end";
+	
+	public boolean unlock(String key, String token) {
+		Long n = executeSync(commands -> commands.eval(UNLOCK_SCRIPT, ScriptOutputType.INTEGER, new String[] { key }, token));
+		return n != null && n > 0;
 	}
 	
 	public String get(String key) {
 		return executeSync(commands -> commands.get(key));
 	}
 	
+	/*
+	 * 读写Java对象，序列化由ValueCodec完成，key不存在时get返回null：
+	 */
+	public <T> T get(String key, Class<T> type) {
+		byte[] bytes = executeBinary(commands -> commands.get(key));
+		return bytes == null ? null : decode(bytes, type);
+	}
+	
+	public <T> String set(String key, T value) {
+		byte[] bytes = encode(value);
+		return executeBinary(commands -> commands.set(key, bytes));
+	}
+	
+	public <T> T hget(String key, String field, Class<T> type) {
+		byte[] bytes = executeBinary(commands -> commands.hget(key, field));
+		return bytes == null ? null : decode(bytes, type);
+	}
+	
+	/*
+	 * 与get(key, Class)相同，开启spring.redis.client-cache后优先从本地缓存读取：
+	 */
+	public <T> T getCached(String key, Class<T> type) {
+		if (!clientSideCache.isEnabled()) {
+			return get(key, type);
+		}
+		byte[] bytes;
+		try {
+			bytes = clientSideCache.get(key);
+		} catch (RuntimeException e) {
+			logger.warn("getCached redis failed.", e);
+			throw e;
+		}
+		return bytes == null ? null : decode(bytes, type);
+	}
+	
+	/*
+	 * 与hget(key, field, Class)相同，开启spring.redis.client-cache后优先从本地缓存读取，
+	 * 适合读多写少的热点Hash：
+	 */
+	public <T> T hgetCached(String key, String field, Class<T> type) {
+		if (!clientSideCache.isEnabled()) {
+			return hget(key, field, type);
+		}
+		byte[] bytes;
+		try {
+			bytes = clientSideCache.hget(key, field);
+		} catch (RuntimeException e) {
+			logger.warn("hgetCached redis failed.", e);
+			throw e;
+		}
+		return bytes == null ? null : decode(bytes, type);
+	}
+	
+	public <T> boolean hset(String key, String field, T value) {
+		byte[] bytes = encode(value);
+		return executeBinary(commands -> commands.hset(key, field, bytes));
+	}
+	
+	public byte[] encode(Object value) {
+		return codecFor(value.getClass()).encode(value);
+	}
+	
+	/*
+	 * 读取时总是使用该类型的ValueCodec，它能识别JSON和自己的格式，与value-codec的设置无关：
+	 */
+	public <T> T decode(byte[] bytes, Class<T> type) {
+		for (ValueCodec codec : valueCodecs) {
+			if (codec.supports(type)) {
+				return codec.decode(bytes, type);
+			}
+		}
+		return jacksonValueCodec.decode(bytes, type);
+	}
+	
+	ValueCodec codecFor(Class<?> type) {
+		if (!"json".equals(valueCodec)) {
+			for (ValueCodec codec : valueCodecs) {
+				if (codec.supports(type)) {
+					return codec;
+				}
+			}
+		}
+		return jacksonValueCodec;
+	}
+	
+	/*
+	 * 与executeSync相同，值为byte[]，用于读写ValueCodec编码后的数据：
+	 */
+	public <T> T executeBinary(BinaryCommandCallback<T> callback) {
+		if (isShared()) {
+			long start = System.nanoTime();
+			try {
+				return callback.doInConnection(binaryConnection().sync());
+			} catch (RuntimeException e) {
+				logger.warn("executeBinary redis failed.", e);
+				throw e;
+			} finally {
+				poolMetrics.recordCommand(System.nanoTime() - start);
+			}
+		}
+		try(StatefulRedisConnection<String, byte[]> connection = borrowConnection(binaryConnectionPool, binaryPoolTuner)) {
+			connection.setAutoFlushCommands(true);
+			long start = System.nanoTime();
+			try {
+				return callback.doInConnection(connection.sync());
+			} finally {
+				poolMetrics.recordCommand(System.nanoTime() - start);
+			}
+		} catch (RuntimeException e) {
+			logger.warn("executeBinary redis failed.", e);
+			throw e;
+		} catch (Exception e) {
+			logger.warn("executeBinary redis failed.", e);
+			throw new RuntimeException(e);
+		}
+	}
+	
 	public boolean hset(String key, String field, String value) {
 		return executeSync(commands -> commands.hset(key, field, value));
 	}
@@ -152,4 +558,92 @@ public class RedisService {
 	public Map<String, String> hgetall(String key) {
 		return executeSync(commands -> commands.hgetall(key));
 	}
+	
+	/*
+	 * 批量操作：mset/mget/hmset/hmget本身就是一条命令，一次往返即可完成：
+	 */
+	public String mset(Map<String, String> map) {
+		return executeSync(commands -> commands.mset(map));
+	}
+	
+	public Map<String, String> mget(String... keys) {
+		return toMap(executeSync(commands -> commands.mget(keys)));
+	}
+	
+	public String hmset(String key, Map<String, String> map) {
+		return executeSync(commands -> commands.hmset(key, map));
+	}
+	
+	public Map<String, String> hmget(String key, String... fields) {
+		return toMap(executeSync(commands -> commands.hmget(key, fields)));
+	}
+	
+	/*
+	 * 批量写入多个带过期时间的key，用管道一次发送：
+	 */
+	public void setex(Map<String, String> map, Duration timeout) {
+		long millis = timeout.toMillis();
+		executePipelined(commands -> {
+			List<RedisFuture<String>> futures = new ArrayList<>(map.size());
+			for (Map.Entry<String, String> entry : map.entrySet()) {
+				futures.add(commands.psetex(entry.getKey(), millis, entry.getValue()));
+			}
+			return futures;
+		});
+	}
+	
+	/*
+	 * 从多个Hash中读取同一个field，用管道一次发送，返回key到值的映射，不存在的key不包含在结果中：
+	 */
+	public Map<String, String> hget(List<String> keys, String field) {
+		List<String> values = executePipelined(commands -> {
+			List<RedisFuture<String>> futures = new ArrayList<>(keys.size());
+			for (String key : keys) {
+				futures.add(commands.hget(key, field));
+			}
+			return futures;
+		});
+		Map<String, String> map = new LinkedHashMap<>();
+		for (int i = 0; i < keys.size(); i++) {
+			if (values.get(i) != null) {
+				map.put(keys.get(i), values.get(i));
+			}
+		}
+		return map;
+	}
+	
+	private static Map<String, String> toMap(List<KeyValue<String, String>> list) {
+		Map<String, String> map = new LinkedHashMap<>();
+		for (KeyValue<String, String> kv : list) {
+			if (kv.hasValue()) {
+				map.put(kv.getKey(), kv.getValue());
+			}
+		}
+		return map;
+	}
+	
+	public long hdel(String key, String... fields) {
+		return executeSync(commands -> commands.hdel(key, fields));
+	}
+	
+	public long publish(String channel, String message) {
+		return executeSync(commands -> commands.publish(channel, message));
+	}
+	
+	/*
+	 * 订阅频道，收到消息时在Lettuce的事件线程中回调listener(channel, message)，listener中不要执行阻塞操作：
+	 */
+	public void subscribe(String channel, BiConsumer<String, String> listener) {
+		StatefulRedisPubSubConnection<String, String> conn = redisClient.connectPubSub();
+		conn.addListener(new RedisPubSubAdapter<String, String>() {
+			@Override
+			public void message(String ch, String message) {
+				listener.accept(ch, message);
+			}
+		});
+		conn.sync().subscribe(channel);
+		synchronized (pubSubConnections) {
+			pubSubConnections.add(conn);
+		}
+	}
 }
@@ -0,0 +1,199 @@
+package com.self.learnjava.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.self.learnjava.entity.User;
+
+import io.lettuce.core.KeyValue;
+import io.lettuce.core.RedisFuture;
+
+/*
+ * 把HttpSession保存在Redis中，每个Session是一个Hash：__session__:<id>。
+ * 以#开头的field是Session自身的信息（创建时间、最后访问时间、超时时间），其余field是Session属性，
+ * 属性值为类名 + ValueCodec编码后的数据，读取时按类名解码。类名来自Redis，不能信任，
+ * 只解码ATTRIBUTE_TYPES中的类型（User、String和基本类型的包装类型），其他类名当作属性不存在。
+ * Hash的过期时间就是Session的超时时间，每次请求时刷新，实现滑动过期。
+ */
+@Component
+public class RedisSessionRepository {
+
+	final Logger logger = LoggerFactory.getLogger(getClass());
+
+	public static final String KEY_PREFIX = "__session__:";
+
+	static final String FIELD_CREATED = "#created";
+	static final String FIELD_LAST_ACCESSED = "#lastAccessed";
+	static final String FIELD_MAX_INACTIVE = "#maxInactive";
+
+	// 允许保存在Session中的属性类型，类名 -> 类型:
+	static final Map<String, Class<?>> ATTRIBUTE_TYPES;
+
+	static {
+		Map<String, Class<?>> types = new HashMap<>();
+		for (Class<?> type : Arrays.asList(User.class, String.class, Boolean.class, Character.class, Byte.class, Short.class,
+				Integer.class, Long.class, Float.class, Double.class)) {
+			types.put(type.getName(), type);
+		}
+		ATTRIBUTE_TYPES = Collections.unmodifiableMap(types);
+	}
+
+	@Autowired
+	RedisService redisService;
+
+	@Value("${server.servlet.session.timeout:30m}")
+	Duration defaultTimeout;
+
+	public static class SessionInfo {
+		public long creationTime;
+		public long lastAccessedTime;
+		public int maxInactiveInterval;
+	}
+
+	public String createId() {
+		return UUID.randomUUID().toString();
+	}
+
+	public int getDefaultMaxInactiveInterval() {
+		return (int) defaultTimeout.getSeconds();
+	}
+
+	/*
+	 * 只读取Session自身的信息，属性在第一次访问时才读取，Session不存在或已过期返回null：
+	 */
+	public SessionInfo load(String id) {
+		List<KeyValue<String, String>> values = redisService
+				.executeSync(commands -> commands.hmget(key(id), FIELD_CREATED, FIELD_LAST_ACCESSED, FIELD_MAX_INACTIVE));
+		if (values.isEmpty() || !values.get(0).hasValue()) {
+			return null;
+		}
+		SessionInfo info = new SessionInfo();
+		info.creationTime = Long.parseLong(values.get(0).getValue());
+		info.lastAccessedTime = values.get(1).hasValue() ? Long.parseLong(values.get(1).getValue()) : info.creationTime;
+		info.maxInactiveInterval = values.get(2).hasValue() ? Integer.parseInt(values.get(2).getValue())
+				: getDefaultMaxInactiveInterval();
+		return info;
+	}
+
+	public Object loadAttribute(String id, String name) {
+		byte[] bytes = redisService.executeBinary(commands -> commands.hget(key(id), name));
+		return bytes == null ? null : decode(bytes);
+	}
+
+	public Set<String> loadAttributeNames(String id) {
+		List<String> fields = redisService.executeSync(commands -> commands.hkeys(key(id)));
+		Set<String> names = new HashSet<>();
+		for (String field : fields) {
+			if (!field.startsWith("#")) {
+				names.add(field);
+			}
+		}
+		return names;
+	}
+
+	/*
+	 * 只写入本次请求修改或删除的属性，并刷新最后访问时间和过期时间，所有命令用管道一次发送。
+	 * 创建时间和超时时间只在新建或修改时写入，maxInactiveInterval小于等于0表示永不过期：
+	 */
+	public void save(String id, SessionInfo info, boolean metadataChanged, Map<String, Object> changed, Set<String> removed) {
+		String key = key(id);
+		redisService.executeBinaryPipelined(commands -> {
+			List<RedisFuture<?>> futures = new ArrayList<>();
+			if (metadataChanged) {
+				futures.add(commands.hset(key, FIELD_CREATED, bytes(info.creationTime)));
+				futures.add(commands.hset(key, FIELD_MAX_INACTIVE, bytes(info.maxInactiveInterval)));
+			}
+			futures.add(commands.hset(key, FIELD_LAST_ACCESSED, bytes(info.lastAccessedTime)));
+			for (Map.Entry<String, Object> entry : changed.entrySet()) {
+				futures.add(commands.hset(key, entry.getKey(), encode(entry.getValue())));
+			}
+			if (!removed.isEmpty()) {
+				futures.add(commands.hdel(key, removed.toArray(new String[removed.size()])));
+			}
+			if (info.maxInactiveInterval > 0) {
+				futures.add(commands.expire(key, info.maxInactiveInterval));
+			} else {
+				futures.add(commands.persist(key));
+			}
+			@SuppressWarnings({ "unchecked", "rawtypes" })
+			List<RedisFuture<Object>> result = (List) futures;
+			return result;
+		});
+	}
+
+	public static boolean isSupportedType(Class<?> type) {
+		return ATTRIBUTE_TYPES.get(type.getName()) == type;
+	}
+
+	public void delete(String id) {
+		redisService.executeSync(commands -> commands.del(key(id)));
+	}
+
+	/*
+	 * 登录后更换Session ID防止会话固定攻击，新Session还没有写入过时旧key可能不存在：
+	 */
+	public void rename(String oldId, String newId) {
+		redisService.executeSync(commands -> {
+			if (commands.exists(key(oldId)) > 0) {
+				commands.rename(key(oldId), key(newId));
+			}
+			return null;
+		});
+	}
+
+	static String key(String id) {
+		return KEY_PREFIX + id;
+	}
+
+	private static byte[] bytes(long n) {
+		return Long.toString(n).getBytes(StandardCharsets.UTF_8);
+	}
+
+	byte[] encode(Object value) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		try (DataOutputStream output = new DataOutputStream(bytes)) {
+			output.writeUTF(value.getClass().getName());
+			output.write(redisService.encode(value));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	Object decode(byte[] bytes) {
+		try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes))) {
+			String className = input.readUTF();
+			int offset = bytes.length - input.available();
+			Class<?> type = ATTRIBUTE_TYPES.get(className);
+			if (type == null) {
+				logger.warn("ignore session attribute of unsupported type: {}", className);
+				return null;
+			}
+			return redisService.decode(Arrays.copyOfRange(bytes, offset, bytes.length), type);
+		} catch (IOException | RuntimeException e) {
+			// 格式已变化时当作属性不存在:
+			logger.warn("decode session attribute failed: {}", e.getMessage());
+			return null;
+		}
+	}
+}
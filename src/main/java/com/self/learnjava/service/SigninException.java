@@ -0,0 +1,11 @@
+package com.self.learnjava.service;
+
+/*
+ * 登录失败：用户不存在或口令错误。只有这种失败才计入登录限流，数据库等故障不计入：
+ */
+public class SigninException extends RuntimeException {
+
+	public SigninException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,351 @@
+package com.self.learnjava.service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import io.lettuce.core.RedisNoScriptException;
+import io.lettuce.core.ScriptOutputType;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/*
+ * 登录限流：每个email和每个客户端IP各一个令牌桶，桶容量为capacity，每个per时间补满，只有登录失败才扣减令牌。
+ * 登录前调用check：任一个桶没有令牌时抛出RateLimitedException，由Web层返回429，不会访问数据库，check本身不扣减令牌；
+ * 登录失败（SigninException）后调用recordFailure，两个桶各扣减一个令牌。因此正常登录、已登录的请求不会被限流，
+ * per时间内同一个email或同一个IP失败capacity次后才会被拒绝。
+ * 令牌桶保存在Redis的Hash中（__ratelimit__:{signin}:email:xxx），email和IP两个桶由同一个Lua脚本原子地检查或扣减，
+ * 时间取Redis服务器的TIME，所有节点共享同一个桶。key中的{signin}是hash tag，保证Redis Cluster中两个key在同一个slot。
+ * 本地令牌桶：每个节点按相同的参数维护本地令牌桶，每次访问Redis后用Redis返回的剩余令牌数校准（取较小值）。
+ * check时本地桶的令牌数都不低于容量的local-threshold时直接放行，不访问Redis，正常登录不会产生Redis往返；
+ * 接近阈值时才用Redis检查。其他节点上的失败要等本节点下一次访问Redis时才同步过来，
+ * 因此每个节点最多多放行一次失败的尝试，这次失败的recordFailure会同步Redis中的令牌数。
+ * 本地桶没有令牌时直接拒绝；Redis拒绝后，在需要等待的时间内已经没有令牌的那个桶也直接在本地拒绝，
+ * 只阻塞没有令牌的桶，一个email被锁定不会连带锁定同一个IP的其他email。
+ * Redis不可用时只使用本地令牌桶。
+ */
+@Component
+public class SigninRateLimiter implements MeterBinder {
+
+	final Logger logger = LoggerFactory.getLogger(getClass());
+
+	static final String KEY_PREFIX = "__ratelimit__:{signin}:";
+
+	/*
+	 * KEYS：所有令牌桶；ARGV[1]：check只检查，take扣减一个令牌；ARGV[2i]、ARGV[2i+1]：第i个桶的容量和每毫秒补充的令牌数。
+	 * 按KEYS的顺序返回每个桶需要等待的毫秒数（0表示该桶还有令牌，take时为扣减之后）和剩余的令牌数（取整），共2n个值：
+	 */
+	static final String SCRIPT = "redis.replicate_commands()\n"
+			+ "local t = redis.call('TIME')\n"
+			+ "local now = tonumber(t[1]) * 1000 + math.floor(tonumber(t[2]) / 1000)\n"
+			+ "local take = ARGV[1] == 'take'\n"
+			+ "local waits = {}\n"
+			+ "for i, key in ipairs(KEYS) do\n"
+			+ "  local capacity = tonumber(ARGV[i * 2])\n"
+			+ "  local rate = tonumber(ARGV[i * 2 + 1])\n"
+			+ "  local data = redis.call('HMGET', key, 't', 'ts')\n"
+			+ "  local tokens = tonumber(data[1]) or capacity\n"
+			+ "  local ts = tonumber(data[2]) or now\n"
+			+ "  tokens = math.min(capacity, tokens + math.max(0, now - ts) * rate)\n"
+			+ "  if take then\n"
+			+ "    tokens = math.max(0, tokens - 1)\n"
+			+ "    redis.call('HSET', key, 't', tostring(tokens), 'ts', tostring(now))\n"
+			+ "    redis.call('PEXPIRE', key, math.ceil(capacity / rate))\n"
+			+ "  end\n"
+			+ "  waits[i * 2 - 1] = 0\n"
+			+ "  if tokens < 1 then\n"
+			+ "    waits[i * 2 - 1] = math.ceil((1 - tokens) / rate)\n"
+			+ "  end\n"
+			+ "  waits[i * 2] = math.floor(tokens)\n"
+			+ "end\n"
+			+ "return waits\n";
+
+	static final String CHECK = "check";
+	static final String TAKE = "take";
+
+	@Autowired
+	RedisService redisService;
+
+	@Value("${users.signin.rate-limit.enabled:true}")
+	boolean enabled;
+
+	@Value("${users.signin.rate-limit.email.capacity:5}")
+	int emailCapacity;
+
+	@Value("${users.signin.rate-limit.email.per:1m}")
+	Duration emailPer;
+
+	@Value("${users.signin.rate-limit.ip.capacity:20}")
+	int ipCapacity;
+
+	@Value("${users.signin.rate-limit.ip.per:1m}")
+	Duration ipPer;
+
+	@Value("${users.signin.rate-limit.local-threshold:0.5}")
+	double localThreshold;
+
+	private String sha;
+	private Cache<String, LocalBucket> localBuckets;
+
+	private volatile Counter rejectedLocal;
+	private volatile Counter rejectedRedis;
+	private volatile Counter failures;
+
+	@PostConstruct
+	public void init() {
+		this.sha = sha1(SCRIPT);
+		// 桶在per时间后一定会补满，因此本地桶最多保存per时间:
+		long expire = Math.max(emailPer.toMillis(), ipPer.toMillis());
+		this.localBuckets = Caffeine.newBuilder().maximumSize(100000).expireAfterWrite(expire, TimeUnit.MILLISECONDS).build();
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		this.rejectedLocal = Counter.builder("users.signin.rate-limited").tag("by", "local").register(registry);
+		this.rejectedRedis = Counter.builder("users.signin.rate-limited").tag("by", "redis").register(registry);
+		this.failures = Counter.builder("users.signin.failures").register(registry);
+	}
+
+	/*
+	 * 登录前检查，不扣减令牌，任一个桶没有令牌时抛出RateLimitedException：
+	 */
+	public void check(String email, String ip) {
+		if (!enabled) {
+			return;
+		}
+		Buckets buckets = buckets(email, ip);
+		long wait = 0;
+		for (LocalBucket bucket : buckets.local) {
+			wait = Math.max(wait, bucket.waitTime());
+		}
+		if (wait > 0) {
+			increment(rejectedLocal);
+			throw new RateLimitedException("Too many signin attempts", wait);
+		}
+		if (buckets.keys.isEmpty() || buckets.aboveThreshold()) {
+			return;
+		}
+		try {
+			wait = sync(buckets, eval(CHECK, buckets));
+		} catch (RuntimeException e) {
+			logger.warn("rate limit by redis failed, use local limit only: {}", e.getMessage());
+			return;
+		}
+		if (wait > 0) {
+			increment(rejectedRedis);
+			throw new RateLimitedException("Too many signin attempts", wait);
+		}
+	}
+
+	/*
+	 * 登录失败后调用，email和IP的桶各扣减一个令牌，Redis失败时只扣减本地的桶：
+	 */
+	public void recordFailure(String email, String ip) {
+		if (!enabled) {
+			return;
+		}
+		increment(failures);
+		Buckets buckets = buckets(email, ip);
+		for (LocalBucket bucket : buckets.local) {
+			bucket.take();
+		}
+		if (buckets.keys.isEmpty()) {
+			return;
+		}
+		try {
+			sync(buckets, eval(TAKE, buckets));
+		} catch (RuntimeException e) {
+			logger.warn("record signin failure in redis failed: {}", e.getMessage());
+		}
+	}
+
+	private Buckets buckets(String email, String ip) {
+		Buckets buckets = new Buckets();
+		if (email != null && !email.isEmpty()) {
+			buckets.add(KEY_PREFIX + "email:" + email.trim().toLowerCase(), emailCapacity, emailPer);
+		}
+		if (ip != null && !ip.isEmpty()) {
+			buckets.add(KEY_PREFIX + "ip:" + ip, ipCapacity, ipPer);
+		}
+		return buckets;
+	}
+
+	/*
+	 * 用Redis返回的剩余令牌数校准本地的桶，没有令牌的桶在本地按Redis返回的时间阻塞，返回其中最长的等待时间：
+	 */
+	private static long sync(Buckets buckets, List<Object> result) {
+		long max = 0;
+		for (int i = 0; i * 2 + 1 < result.size() && i < buckets.local.size(); i++) {
+			long wait = ((Number) result.get(i * 2)).longValue();
+			long tokens = ((Number) result.get(i * 2 + 1)).longValue();
+			LocalBucket bucket = buckets.local.get(i);
+			bucket.sync(tokens);
+			if (wait > 0) {
+				bucket.blockFor(wait);
+				max = Math.max(max, wait);
+			}
+		}
+		return max;
+	}
+
+	/*
+	 * 优先用EVALSHA只发送脚本的SHA1，Redis中没有该脚本（例如刚重启）时用EVAL发送完整脚本：
+	 */
+	private List<Object> eval(String mode, Buckets buckets) {
+		String[] keys = buckets.keys.toArray(new String[buckets.keys.size()]);
+		String[] args = new String[1 + buckets.args.size()];
+		args[0] = mode;
+		for (int i = 0; i < buckets.args.size(); i++) {
+			args[i + 1] = buckets.args.get(i);
+		}
+		List<Object> result;
+		try {
+			result = redisService.executeSync(commands -> commands.evalsha(sha, ScriptOutputType.MULTI, keys, args));
+		} catch (RuntimeException e) {
+			if (!isNoScript(e)) {
+				throw e;
+			}
+			result = redisService.executeSync(commands -> commands.eval(SCRIPT, ScriptOutputType.MULTI, keys, args));
+		}
+		return result == null ? Collections.emptyList() : result;
+	}
+
+	private static boolean isNoScript(Throwable e) {
+		for (Throwable t = e; t != null; t = t.getCause()) {
+			if (t instanceof RedisNoScriptException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private LocalBucket local(String key, int capacity, Duration per) {
+		LocalBucket bucket = localBuckets.getIfPresent(key);
+		if (bucket == null) {
+			bucket = localBuckets.asMap().computeIfAbsent(key, k -> new LocalBucket(capacity, rate(capacity, per)));
+		}
+		return bucket;
+	}
+
+	private static double rate(int capacity, Duration per) {
+		return (double) capacity / per.toMillis();
+	}
+
+	/*
+	 * 一次检查涉及的令牌桶，keys、args与local一一对应：
+	 */
+	class Buckets {
+		final List<String> keys = new ArrayList<>(2);
+		final List<String> args = new ArrayList<>(4);
+		final List<LocalBucket> local = new ArrayList<>(2);
+
+		void add(String key, int capacity, Duration per) {
+			keys.add(key);
+			args.add(Integer.toString(capacity));
+			args.add(Double.toString(rate(capacity, per)));
+			local.add(local(key, capacity, per));
+		}
+
+		/*
+		 * 所有本地桶的令牌数都不低于容量的localThreshold，离限流还很远，不需要访问Redis：
+		 */
+		boolean aboveThreshold() {
+			for (LocalBucket bucket : local) {
+				if (!bucket.hasAtLeast(bucket.capacity * localThreshold)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private static void increment(Counter counter) {
+		if (counter != null) {
+			counter.increment();
+		}
+	}
+
+	private static String sha1(String s) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-1").digest(s.getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder(40);
+			for (byte b : hash) {
+				sb.append(String.format("%02x", b));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/*
+	 * 本节点的令牌桶，与Redis中的令牌桶参数相同：
+	 */
+	static class LocalBucket {
+		private final int capacity;
+		private final double rate;
+		private double tokens;
+		private long updatedAt;
+		private long blockedUntil;
+
+		LocalBucket(int capacity, double rate) {
+			this.capacity = capacity;
+			this.rate = rate;
+			this.tokens = capacity;
+			this.updatedAt = System.currentTimeMillis();
+		}
+
+		synchronized long waitTime() {
+			long now = System.currentTimeMillis();
+			if (now < blockedUntil) {
+				return blockedUntil - now;
+			}
+			refill(now);
+			return tokens < 1 ? (long) Math.ceil((1 - tokens) / rate) : 0;
+		}
+
+		synchronized void take() {
+			refill(System.currentTimeMillis());
+			tokens = Math.max(0, tokens - 1);
+		}
+
+		synchronized boolean hasAtLeast(double threshold) {
+			refill(System.currentTimeMillis());
+			return tokens >= threshold;
+		}
+
+		/*
+		 * Redis中的桶包含所有节点的失败，本地的桶只有本节点的失败，取两者中较小的令牌数：
+		 */
+		synchronized void sync(long shared) {
+			refill(System.currentTimeMillis());
+			tokens = Math.min(tokens, shared);
+		}
+
+		private void refill(long now) {
+			tokens = Math.min(capacity, tokens + (now - updatedAt) * rate);
+			updatedAt = now;
+		}
+
+		synchronized void blockFor(long millis) {
+			blockedUntil = Math.max(blockedUntil, System.currentTimeMillis() + millis);
+		}
+	}
+}
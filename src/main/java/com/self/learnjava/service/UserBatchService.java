@@ -0,0 +1,240 @@
+package com.self.learnjava.service;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.self.learnjava.config.MarkLastWrite;
+import com.self.learnjava.entity.User;
+import com.self.learnjava.web.MailMessage;
+
+/*
+ * 批量注册：把用户按batch-size分块，每块在一个事务中用JdbcTemplate.batchUpdate一次性插入，
+ * 代替逐个调用UserService.register带来的每个用户一次往返、一次提交。
+ * 邮箱已存在或在请求中重复的用户不会插入，而是在结果中报告错误；
+ * 如果批量插入仍然失败（例如并发注册了同一个邮箱），该块退回到逐条插入，以便找出具体失败的行。
+ * 结果中的error是固定的错误码，message是固定的说明，数据库返回的错误信息只记录在服务端日志中。
+ */
+@Component
+public class UserBatchService {
+	final Logger logger = LoggerFactory.getLogger(getClass());
+
+	static final String INSERT_SQL = "INSERT INTO users (email, password, name, createdAt) VALUES (?,?,?,?)";
+
+	// 缺少字段或字段超长等数据库拒绝的值:
+	public static final String ERROR_INVALID = "INVALID";
+	// 邮箱在请求中重复或已经注册:
+	public static final String ERROR_DUPLICATE_EMAIL = "DUPLICATE_EMAIL";
+	// 其他数据库错误:
+	public static final String ERROR_REGISTER_FAILED = "REGISTER_FAILED";
+
+	@Autowired
+	JdbcTemplate jdbcTemplate;
+
+	@Autowired
+	PlatformTransactionManager transactionManager;
+
+	@Autowired
+	OutboxService outboxService;
+
+	@Value("${users.register.batch-size:500}")
+	int batchSize;
+
+	TransactionTemplate transactionTemplate;
+
+	@PostConstruct
+	public void init() {
+		this.transactionTemplate = new TransactionTemplate(transactionManager);
+	}
+
+	public static class RegisterResult {
+		public int index;
+		public String email;
+		public Long id;
+		public String error;
+		public String message;
+
+		void fail(String error, String message) {
+			this.error = error;
+			this.message = message;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("RegisterResult[index=%s, email=%s, id=%s, error=%s]", index, email, id, error);
+		}
+	}
+
+	/*
+	 * 返回的结果与传入的users一一对应，成功的带有id，失败的带有error和message：
+	 */
+	@MarkLastWrite
+	public List<RegisterResult> registerBatch(List<User> users) {
+		logger.info("try register {} users in batch...", users.size());
+		List<RegisterResult> results = new ArrayList<>(users.size());
+		List<User> pending = new ArrayList<>(users.size());
+		List<RegisterResult> pendingResults = new ArrayList<>(users.size());
+		Set<String> seen = new HashSet<>();
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < users.size(); i++) {
+			User user = users.get(i);
+			RegisterResult result = new RegisterResult();
+			result.index = i;
+			result.email = user.getEmail();
+			results.add(result);
+			if (isBlank(user.getEmail()) || isBlank(user.getPassword()) || isBlank(user.getName())) {
+				result.fail(ERROR_INVALID, "Missing email, password or name");
+			} else if (!seen.add(user.getEmail())) {
+				result.fail(ERROR_DUPLICATE_EMAIL, "Duplicate email in request");
+			} else {
+				user.setCreatedAt(now);
+				pending.add(user);
+				pendingResults.add(result);
+			}
+		}
+		for (int from = 0; from < pending.size(); from += batchSize) {
+			int to = Math.min(from + batchSize, pending.size());
+			insertChunk(pending.subList(from, to), pendingResults.subList(from, to));
+		}
+		return results;
+	}
+
+	private void insertChunk(List<User> users, List<RegisterResult> results) {
+		try {
+			transactionTemplate.execute(status -> {
+				Set<String> existing = findExistingEmails(users);
+				List<User> toInsert = new ArrayList<>(users.size());
+				for (int i = 0; i < users.size(); i++) {
+					if (existing.contains(users.get(i).getEmail())) {
+						results.get(i).fail(ERROR_DUPLICATE_EMAIL, "Email already registered");
+					} else {
+						toInsert.add(users.get(i));
+					}
+				}
+				jdbcTemplate.batchUpdate(INSERT_SQL, new BatchPreparedStatementSetter() {
+					@Override
+					public void setValues(PreparedStatement ps, int i) throws SQLException {
+						User user = toInsert.get(i);
+						ps.setObject(1, user.getEmail());
+						ps.setObject(2, user.getPassword());
+						ps.setObject(3, user.getName());
+						ps.setObject(4, user.getCreatedAt());
+					}
+
+					@Override
+					public int getBatchSize() {
+						return toInsert.size();
+					}
+				});
+				fillIds(toInsert, users, results);
+				addRegistrationMails(toInsert);
+				return null;
+			});
+		} catch (DataAccessException e) {
+			logger.warn("batch insert failed, fall back to row by row: {}", e.getMessage());
+			insertRowByRow(users, results);
+		}
+	}
+
+	private void insertRowByRow(List<User> users, List<RegisterResult> results) {
+		for (int i = 0; i < users.size(); i++) {
+			User user = users.get(i);
+			RegisterResult result = results.get(i);
+			result.fail(null, null);
+			try {
+				transactionTemplate.execute(status -> {
+					jdbcTemplate.update(INSERT_SQL, user.getEmail(), user.getPassword(), user.getName(), user.getCreatedAt());
+					fillIds(Collections.singletonList(user), Collections.singletonList(user), Collections.singletonList(result));
+					addRegistrationMails(Collections.singletonList(user));
+					return null;
+				});
+			} catch (DuplicateKeyException e) {
+				result.fail(ERROR_DUPLICATE_EMAIL, "Email already registered");
+			} catch (DataIntegrityViolationException e) {
+				logger.warn("register {} rejected by database: {}", user.getEmail(), e.getMostSpecificCause().getMessage());
+				result.fail(ERROR_INVALID, "Invalid email, password or name");
+			} catch (DataAccessException e) {
+				logger.error("register {} failed.", user.getEmail(), e);
+				result.fail(ERROR_REGISTER_FAILED, "Register failed");
+			}
+		}
+	}
+
+	/*
+	 * 注册邮件消息与用户在同一个事务中写入发件箱：
+	 */
+	private void addRegistrationMails(List<User> inserted) {
+		List<MailMessage> messages = new ArrayList<>(inserted.size());
+		for (User user : inserted) {
+			messages.add(MailMessage.registration(user.getEmail(), user.getName()));
+		}
+		outboxService.addAll(MessaginService.MAIL_QUEUE, messages);
+	}
+
+	private Set<String> findExistingEmails(List<User> users) {
+		List<String> emails = new ArrayList<>(users.size());
+		for (User user : users) {
+			emails.add(user.getEmail());
+		}
+		return new HashSet<>(jdbcTemplate.queryForList("SELECT email FROM users WHERE email IN (" + placeholders(emails.size()) + ")",
+				String.class, emails.toArray()));
+	}
+
+	/*
+	 * batchUpdate不返回自增主键，插入后按email一次查回所有id：
+	 */
+	private void fillIds(List<User> inserted, List<User> users, List<RegisterResult> results) {
+		if (inserted.isEmpty()) {
+			return;
+		}
+		Object[] emails = new Object[inserted.size()];
+		for (int i = 0; i < emails.length; i++) {
+			emails[i] = inserted.get(i).getEmail();
+		}
+		Map<String, Long> ids = new HashMap<>();
+		jdbcTemplate.query("SELECT id, email FROM users WHERE email IN (" + placeholders(emails.length) + ")", emails,
+				rs -> {
+					ids.put(rs.getString("email"), rs.getLong("id"));
+				});
+		for (int i = 0; i < users.size(); i++) {
+			Long id = ids.get(users.get(i).getEmail());
+			if (id != null) {
+				users.get(i).setId(id);
+				results.get(i).id = id;
+			}
+		}
+	}
+
+	private static String placeholders(int n) {
+		StringBuilder sb = new StringBuilder(n * 2);
+		for (int i = 0; i < n; i++) {
+			sb.append(i == 0 ? "?" : ",?");
+		}
+		return sb.toString();
+	}
+
+	private static boolean isBlank(String s) {
+		return s == null || s.trim().isEmpty();
+	}
+}
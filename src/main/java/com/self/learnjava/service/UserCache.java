@@ -0,0 +1,350 @@
+package com.self.learnjava.service;
+
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.self.learnjava.entity.User;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+/*
+ * UserService前面的两级缓存：
+ * L1：进程内缓存，按id和email各缓存一份User。
+ * 使用Caffeine：按maximum-size淘汰（W-TinyLFU准入策略，命中率接近最优），写入expire-after-write后过期。
+ * 同一个key同时未命中时，SingleFlight只让一个线程去加载，其他线程等待结果；多个节点之间再通过Redis租约合并，见loadWithLease。
+ * L2：Redis，User由RedisService的ValueCodec编码后通过UserRedisStore存放（与UserController写入的格式相同），同时保存email到id的索引，
+ * key的布局由users.redis.layout决定。
+ * 读取顺序为L1 -> L2 -> 数据库，从数据库（通常是从库，见UserService）读到的User会写回L2，
+ * 刚被invalidate的User在墓碑过期前不会写回L2，见UserRedisStore；这时读到的可能是从库上的旧数据，也不放入L1。
+ * 用户被修改时，删除本地L1和Redis中的L2，并通过Redis的pub/sub广播失效消息，所有节点收到后删除各自的L1。
+ * 命中、未命中和淘汰次数通过Actuator导出，指标名为cache.gets、cache.evictions等，tag为cache=users.byId/users.byEmail；
+ * users.cache.loads统计L2未命中后的加载，result=leader/follower/timeout分别表示抢到租约、等到其他节点的结果、等待超时。
+ * 注意缓存返回的是共享的User实例，调用方不要修改它。
+ */
+@Component
+public class UserCache implements MeterBinder {
+
+	public static final String KEY_USERS = "__users__";
+
+	public static final String KEY_USER_EMAILS = "__user_emails__";
+
+	static final String KEY_LEASE_PREFIX = "__user_lease__:";
+
+	final Logger logger = LoggerFactory.getLogger(getClass());
+
+	@Autowired
+	RedisService redisService;
+
+	@Autowired
+	UserRedisStore userRedisStore;
+
+	@Value("${users.cache.enabled:true}")
+	boolean enabled;
+
+	@Value("${users.cache.maximum-size:10000}")
+	long maximumSize;
+
+	@Value("${users.cache.expire-after-write:10m}")
+	Duration expireAfterWrite;
+
+	@Value("${users.cache.l2.enabled:true}")
+	boolean l2Enabled;
+
+	@Value("${users.cache.invalidation-channel:__users_invalidate__}")
+	String invalidationChannel;
+
+	@Value("${users.cache.lease.enabled:true}")
+	boolean leaseEnabled;
+
+	@Value("${users.cache.lease.ttl:3s}")
+	Duration leaseTtl;
+
+	@Value("${users.cache.lease.wait:200ms}")
+	Duration leaseWait;
+
+	@Value("${users.cache.lease.poll-interval:20ms}")
+	Duration leasePollInterval;
+
+	private Cache<Long, User> byId;
+	private Cache<String, User> byEmail;
+
+	private final SingleFlight<Long, User> byIdFlight = new SingleFlight<>();
+	private final SingleFlight<String, User> byEmailFlight = new SingleFlight<>();
+
+	// 每次删除L1加1，用来丢弃加载期间已经失效的结果:
+	private final AtomicLong invalidations = new AtomicLong();
+
+	private volatile Counter loadsByLeader;
+	private volatile Counter loadsByFollower;
+	private volatile Counter loadsAfterTimeout;
+
+	@PostConstruct
+	public void init() {
+		this.byId = Caffeine.newBuilder().maximumSize(maximumSize)
+				.expireAfterWrite(expireAfterWrite.toMillis(), TimeUnit.MILLISECONDS).recordStats().build();
+		this.byEmail = Caffeine.newBuilder().maximumSize(maximumSize)
+				.expireAfterWrite(expireAfterWrite.toMillis(), TimeUnit.MILLISECONDS).recordStats().build();
+		if (enabled) {
+			try {
+				redisService.subscribe(invalidationChannel, (channel, message) -> onInvalidation(message));
+			} catch (RuntimeException e) {
+				// Redis不可用时仍然可以启动，只是其他节点的修改要等L1过期后才能看到:
+				logger.warn("subscribe {} failed, L1 cache will not be invalidated by other nodes.", invalidationChannel, e);
+			}
+		}
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		CaffeineCacheMetrics.monitor(registry, byId, "users.byId");
+		CaffeineCacheMetrics.monitor(registry, byEmail, "users.byEmail");
+		this.loadsByLeader = Counter.builder("users.cache.loads").tag("result", "leader").register(registry);
+		this.loadsByFollower = Counter.builder("users.cache.loads").tag("result", "follower").register(registry);
+		this.loadsAfterTimeout = Counter.builder("users.cache.loads").tag("result", "timeout").register(registry);
+	}
+
+	/*
+	 * L1未命中时，同一个key在本进程内只有一个线程去加载，加载期间被invalidate的结果不放入L1：
+	 */
+	public User getById(long id, Function<Long, User> loader) {
+		if (!enabled) {
+			return loader.apply(id);
+		}
+		User user = byId.getIfPresent(id);
+		if (user == null) {
+			long generation = invalidations.get();
+			user = byIdFlight.load(id, () -> loadById(id, loader));
+			putLocal(user, generation);
+		}
+		return user;
+	}
+
+	public User getByEmail(String email, Function<String, User> loader) {
+		if (!enabled) {
+			return loader.apply(email);
+		}
+		User user = byEmail.getIfPresent(email);
+		if (user == null) {
+			long generation = invalidations.get();
+			user = byEmailFlight.load(email, () -> loadByEmail(email, loader));
+			putLocal(user, generation);
+		}
+		return user;
+	}
+
+	private void putLocal(User user, long generation) {
+		if (user != null && generation == invalidations.get()) {
+			byId.put(user.getId(), user);
+			byEmail.put(user.getEmail(), user);
+		}
+	}
+
+	private User loadById(Long id, Function<Long, User> loader) {
+		User user = readL2(id);
+		if (user == null) {
+			user = loadWithLease("id:" + id, () -> readL2(id), () -> {
+				User u = loader.apply(id);
+				writeL2OrSkipL1(u);
+				return u;
+			});
+		}
+		return user;
+	}
+
+	private User loadByEmail(String email, Function<String, User> loader) {
+		User user = readL2ByEmail(email);
+		if (user == null) {
+			user = loadWithLease("email:" + email, () -> readL2ByEmail(email), () -> {
+				User u = loader.apply(email);
+				writeL2OrSkipL1(u);
+				return u;
+			});
+		}
+		return user;
+	}
+
+	/*
+	 * 跨节点的合并加载：L2也未命中时，先用SET NX PX抢一个租约，抢到的节点查数据库并写入L2；
+	 * 没抢到的节点每隔poll-interval读一次L2，等待最多lease.wait，超时仍然没有数据再自己查数据库。
+	 * 这样缓存失效或刚部署时，同一个User只有一个节点访问数据库。Redis不可用时直接查数据库。
+	 */
+	private User loadWithLease(String name, Supplier<User> l2, Supplier<User> db) {
+		if (!leaseEnabled || !l2Enabled) {
+			return db.get();
+		}
+		String key = KEY_LEASE_PREFIX + name;
+		String token = UUID.randomUUID().toString();
+		boolean acquired;
+		try {
+			acquired = redisService.tryLock(key, token, leaseTtl);
+		} catch (RuntimeException e) {
+			logger.warn("acquire lease {} failed: {}", key, e.getMessage());
+			return db.get();
+		}
+		if (acquired) {
+			increment(loadsByLeader);
+			try {
+				return db.get();
+			} finally {
+				try {
+					redisService.unlock(key, token);
+				} catch (RuntimeException e) {
+					// 释放失败时租约会在lease.ttl后自动过期:
+					logger.warn("release lease {} failed: {}", key, e.getMessage());
+				}
+			}
+		}
+		long deadline = System.nanoTime() + leaseWait.toNanos();
+		try {
+			while (System.nanoTime() < deadline) {
+				Thread.sleep(leasePollInterval.toMillis());
+				User user = l2.get();
+				if (user != null) {
+					increment(loadsByFollower);
+					return user;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		increment(loadsAfterTimeout);
+		return db.get();
+	}
+
+	private static void increment(Counter counter) {
+		if (counter != null) {
+			counter.increment();
+		}
+	}
+
+	private User readL2ByEmail(String email) {
+		if (!l2Enabled) {
+			return null;
+		}
+		User user = null;
+		try {
+			Long id = userRedisStore.getIdByEmail(email);
+			if (id != null) {
+				user = readL2(id);
+			}
+		} catch (RuntimeException e) {
+			logger.warn("read user from redis failed: {}", e.getMessage());
+		}
+		return user != null && email.equals(user.getEmail()) ? user : null;
+	}
+
+	/*
+	 * L2读写失败不影响业务，直接回退到数据库：
+	 */
+	private User readL2(Long id) {
+		if (!l2Enabled) {
+			return null;
+		}
+		try {
+			return userRedisStore.get(id);
+		} catch (RuntimeException e) {
+			logger.warn("read user from redis failed: {}", e.getMessage());
+			return null;
+		}
+	}
+
+	/*
+	 * 墓碑拒绝写入时，增加invalidations使正在进行的加载都不放入L1：
+	 */
+	private void writeL2OrSkipL1(User user) {
+		if (!l2Enabled || user == null) {
+			return;
+		}
+		try {
+			if (!userRedisStore.put(user)) {
+				invalidations.incrementAndGet();
+			}
+		} catch (RuntimeException e) {
+			logger.warn("write user to redis failed: {}", e.getMessage());
+		}
+	}
+
+	/*
+	 * 立刻删除，在事务中时提交后再删除一次，防止其他线程在提交前把旧数据又加载回缓存：
+	 */
+	public void invalidate(Long id, String email) {
+		evictAll(id, email);
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCommit() {
+					evictAll(id, email);
+				}
+			});
+		}
+	}
+
+	private void evictAll(Long id, String email) {
+		String oldEmail = evictLocal(id, email);
+		if (!enabled) {
+			return;
+		}
+		try {
+			if (l2Enabled) {
+				userRedisStore.delete(id, email, oldEmail != null && !oldEmail.equals(email) ? oldEmail : null);
+			}
+			// 消息格式为"id:email"，id或email未知时为空:
+			redisService.publish(invalidationChannel, (id == null ? "" : id.toString()) + ":" + (email == null ? "" : email));
+		} catch (RuntimeException e) {
+			logger.warn("invalidate user in redis failed: {}", e.getMessage());
+		}
+	}
+
+	void onInvalidation(String message) {
+		int pos = message.indexOf(':');
+		if (pos < 0) {
+			return;
+		}
+		String id = message.substring(0, pos);
+		String email = message.substring(pos + 1);
+		evictLocal(id.isEmpty() ? null : Long.valueOf(id), email.isEmpty() ? null : email);
+	}
+
+	/*
+	 * 删除本地L1，返回缓存中User原来的email：
+	 */
+	String evictLocal(Long id, String email) {
+		invalidations.incrementAndGet();
+		String oldEmail = null;
+		if (id != null) {
+			User cached = byId.getIfPresent(id);
+			byId.invalidate(id);
+			if (cached != null) {
+				oldEmail = cached.getEmail();
+				byEmail.invalidate(oldEmail);
+			}
+		}
+		if (email != null) {
+			User cached = byEmail.getIfPresent(email);
+			byEmail.invalidate(email);
+			if (cached != null) {
+				byId.invalidate(cached.getId());
+			}
+		}
+		return oldEmail;
+	}
+}
@@ -0,0 +1,169 @@
+package com.self.learnjava.service;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import com.self.learnjava.config.RoutingDataSourceContext;
+import com.self.learnjava.entity.User;
+
+/*
+ * 把数据库中的User预热到Redis（UserCache的L2），用于Redis清空或主从切换之后：
+ * 按id分页从UserService读取，每页用管道一次写入Redis（只写入不存在的，不覆盖更新的数据），
+ * 写入速度不超过users.cache.warm-up.rate个/秒，避免压垮数据库和Redis。
+ * users.cache.warm-up.on-startup为true时启动后自动在后台执行，也可以通过/actuator/usercachewarmup手动触发。
+ * 同时作为HealthIndicator：预热进行中且未达到fill-level时为OUT_OF_SERVICE，
+ * 加入readiness健康组后，负载均衡在缓存预热到一定程度之前不会把流量转发过来。
+ * 预热失败时报告UP并附带错误信息，此时请求回退到数据库，仍然可以服务。
+ */
+@Component
+public class UserCacheWarmer implements HealthIndicator {
+
+	final Logger logger = LoggerFactory.getLogger(getClass());
+
+	public static enum State {
+		IDLE, RUNNING, DONE, FAILED;
+	}
+
+	@Autowired
+	UserService userService;
+
+	@Autowired
+	UserRedisStore userRedisStore;
+
+	@Value("${users.cache.warm-up.on-startup:false}")
+	boolean onStartup;
+
+	@Value("${users.cache.warm-up.page-size:500}")
+	int pageSize;
+
+	// 每秒最多写入的User数:
+	@Value("${users.cache.warm-up.rate:5000}")
+	int rate;
+
+	// 写入的比例达到多少后报告ready，0到1之间:
+	@Value("${users.cache.warm-up.fill-level:0.9}")
+	double fillLevel;
+
+	private volatile State state = State.IDLE;
+	private volatile long total;
+	private volatile long loaded;
+	private volatile long startedAt;
+	private volatile long finishedAt;
+	private volatile String error;
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void onApplicationReady() {
+		if (onStartup) {
+			start();
+		}
+	}
+
+	/*
+	 * 在后台线程中开始预热，正在预热时返回false：
+	 */
+	public synchronized boolean start() {
+		if (state == State.RUNNING) {
+			return false;
+		}
+		this.state = State.RUNNING;
+		this.loaded = 0;
+		this.total = 0;
+		this.error = null;
+		this.startedAt = System.currentTimeMillis();
+		this.finishedAt = 0;
+		Thread t = new Thread(this::warmUp, "user-cache-warm-up");
+		t.setDaemon(true);
+		t.start();
+		return true;
+	}
+
+	void warmUp() {
+		try {
+			this.total = userService.countUsers();
+			logger.info("start warming up {} users into redis...", total);
+			// HSQLDB的IDENTITY从0开始，与ApiController一样从Long.MIN_VALUE开始:
+			long afterId = Long.MIN_VALUE;
+			long start = System.nanoTime();
+			List<User> users;
+			do {
+				// 从主库分页读取，避免把从库上尚未同步的旧数据写入Redis:
+				try (RoutingDataSourceContext ctx = new RoutingDataSourceContext(RoutingDataSourceContext.MASTER_DATASOURCE)) {
+					users = userService.getUsers(afterId, pageSize);
+				}
+				if (!users.isEmpty()) {
+					userRedisStore.putAllIfAbsent(users);
+					afterId = users.get(users.size() - 1).getId();
+					this.loaded += users.size();
+					throttle(start);
+				}
+			} while (users.size() == pageSize);
+			this.state = State.DONE;
+			logger.info("warm up finished: {} users in {} ms.", loaded, System.currentTimeMillis() - startedAt);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			fail("interrupted");
+		} catch (RuntimeException e) {
+			logger.warn("warm up user cache failed.", e);
+			fail(e.getMessage());
+		} finally {
+			this.finishedAt = System.currentTimeMillis();
+		}
+	}
+
+	private void fail(String message) {
+		this.error = message;
+		this.state = State.FAILED;
+	}
+
+	// 按已写入的数量计算应该用掉的时间，写得太快就等一会:
+	private void throttle(long startNanos) throws InterruptedException {
+		if (rate <= 0) {
+			return;
+		}
+		long expectedMillis = loaded * 1000 / rate;
+		long elapsedMillis = (System.nanoTime() - startNanos) / 1000000;
+		if (expectedMillis > elapsedMillis) {
+			Thread.sleep(expectedMillis - elapsedMillis);
+		}
+	}
+
+	public boolean isReady() {
+		if (state != State.RUNNING) {
+			return true;
+		}
+		long t = this.total;
+		return t > 0 && loaded >= t * fillLevel;
+	}
+
+	public Map<String, Object> getProgress() {
+		Map<String, Object> progress = new LinkedHashMap<>();
+		progress.put("state", state);
+		progress.put("total", total);
+		progress.put("loaded", loaded);
+		progress.put("percent", total == 0 ? 0 : loaded * 100 / total);
+		progress.put("ready", isReady());
+		if (startedAt > 0) {
+			progress.put("elapsedMillis", (finishedAt > 0 ? finishedAt : System.currentTimeMillis()) - startedAt);
+		}
+		if (error != null) {
+			progress.put("error", error);
+		}
+		return progress;
+	}
+
+	@Override
+	public Health health() {
+		return (isReady() ? Health.up() : Health.outOfService()).withDetails(getProgress()).build();
+	}
+}
@@ -0,0 +1,113 @@
+package com.self.learnjava.service;
+
+/*
+ * User在Redis中的存放方式，通过users.redis.layout选择：
+ * single：旧的方式，所有User放在一个Hash __users__中，email索引放在__user_emails__中，
+ * 这两个key会无限增长、不会过期，而且是集群中无法拆分的热点key；
+ * per-user：每个User一个key __user__:{id}，email索引为__user_email__:{email}，都可以设置过期时间，内存有上限；
+ * bucketed：按id的hash分到N个Hash __users__:{n}中，email索引同样分到__user_emails__:{n}，
+ * key的数量固定，在Redis Cluster中分散到不同的slot，但单个Hash中的field不会过期。
+ * key中{}部分是Redis Cluster的hash tag，决定key所在的slot。
+ * field返回null表示该key是一个普通的String而不是Hash。
+ */
+public interface UserKeyLayout {
+	String SINGLE = "single";
+	String PER_USER = "per-user";
+	String BUCKETED = "bucketed";
+
+	String userKey(long id);
+
+	String userField(long id);
+
+	String emailKey(String email);
+
+	String emailField(String email);
+
+	static UserKeyLayout of(String name, int buckets) {
+		if (name == null || SINGLE.equals(name)) {
+			return new Single();
+		}
+		if (PER_USER.equals(name)) {
+			return new PerUser();
+		}
+		if (BUCKETED.equals(name)) {
+			return new Bucketed(buckets);
+		}
+		throw new IllegalArgumentException("Unknown user key layout: " + name);
+	}
+
+	class Single implements UserKeyLayout {
+		@Override
+		public String userKey(long id) {
+			return UserCache.KEY_USERS;
+		}
+
+		@Override
+		public String userField(long id) {
+			return Long.toString(id);
+		}
+
+		@Override
+		public String emailKey(String email) {
+			return UserCache.KEY_USER_EMAILS;
+		}
+
+		@Override
+		public String emailField(String email) {
+			return email;
+		}
+	}
+
+	class PerUser implements UserKeyLayout {
+		@Override
+		public String userKey(long id) {
+			return "__user__:{" + id + "}";
+		}
+
+		@Override
+		public String userField(long id) {
+			return null;
+		}
+
+		@Override
+		public String emailKey(String email) {
+			return "__user_email__:{" + email + "}";
+		}
+
+		@Override
+		public String emailField(String email) {
+			return null;
+		}
+	}
+
+	class Bucketed implements UserKeyLayout {
+		private final int buckets;
+
+		public Bucketed(int buckets) {
+			if (buckets <= 0) {
+				throw new IllegalArgumentException("Number of buckets must be positive: " + buckets);
+			}
+			this.buckets = buckets;
+		}
+
+		@Override
+		public String userKey(long id) {
+			return UserCache.KEY_USERS + ":{" + Math.floorMod(Long.hashCode(id), buckets) + "}";
+		}
+
+		@Override
+		public String userField(long id) {
+			return Long.toString(id);
+		}
+
+		@Override
+		public String emailKey(String email) {
+			return UserCache.KEY_USER_EMAILS + ":{" + Math.floorMod(email.hashCode(), buckets) + "}";
+		}
+
+		@Override
+		public String emailField(String email) {
+			return email;
+		}
+	}
+}
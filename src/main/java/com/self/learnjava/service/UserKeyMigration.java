@@ -0,0 +1,158 @@
+package com.self.learnjava.service;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import io.lettuce.core.MapScanCursor;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.ScanArgs;
+import io.lettuce.core.ScanCursor;
+import io.lettuce.core.ScriptOutputType;
+
+/*
+ * 把旧的__users__和__user_emails__在线迁移到users.redis.layout指定的新布局：
+ * 启动后在后台线程中用HSCAN分批读取，每批先用Lua脚本从旧Hash中删除值仍然与读出时相同的field，
+ * 再只把这些field用HSETNX/SET NX写入新布局（不覆盖迁移期间写入的新数据），中断后重新启动会从剩下的数据继续。
+ * 读出之后被修改（删除）的User不会被写入新布局；删除和写入之间被修改的User由UserRedisStore的墓碑阻止写入，
+ * 因此新布局中不会留下旧数据（bucketed布局中的field不会过期）。进程恰好在删除和写入之间退出时只是少了一条缓存。
+ * 两个旧Hash都为空后迁移结束，此时可以关闭users.redis.migration.enabled。
+ */
+@Component
+public class UserKeyMigration {
+
+	final Logger logger = LoggerFactory.getLogger(getClass());
+
+	@Autowired
+	RedisService redisService;
+
+	@Autowired
+	UserRedisStore userRedisStore;
+
+	@Value("${users.redis.migration.enabled:false}")
+	boolean enabled;
+
+	@Value("${users.redis.migration.batch-size:500}")
+	int batchSize;
+
+	// 每批之间暂停一会，避免迁移占满Redis:
+	@Value("${users.redis.migration.pause:50ms}")
+	Duration pause;
+
+	/*
+	 * ARGV为field和读出时的值交替排列，只删除值没有变化的field，返回被删除的是第几对（从1开始）：
+	 */
+	static final String REMOVE_IF_UNCHANGED_SCRIPT = "local removed = {}\n"
+			+ "for i = 1, #ARGV, 2 do\n"
+			+ "  if redis.call('HGET', KEYS[1], ARGV[i]) == ARGV[i + 1] then\n"
+			+ "    redis.call('HDEL', KEYS[1], ARGV[i])\n"
+			+ "    removed[#removed + 1] = (i + 1) / 2\n"
+			+ "  end\n"
+			+ "end\n"
+			+ "return removed\n";
+
+	private final AtomicLong migratedUsers = new AtomicLong();
+	private final AtomicLong migratedEmails = new AtomicLong();
+
+	private volatile Thread worker;
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void start() {
+		if (!enabled || userRedisStore.getLayout() instanceof UserKeyLayout.Single) {
+			return;
+		}
+		Thread t = new Thread(this::migrate, "user-key-migration");
+		t.setDaemon(true);
+		this.worker = t;
+		t.start();
+	}
+
+	@PreDestroy
+	public void stop() {
+		Thread t = this.worker;
+		if (t != null) {
+			t.interrupt();
+		}
+	}
+
+	public long getMigratedUsers() {
+		return migratedUsers.get();
+	}
+
+	public long getMigratedEmails() {
+		return migratedEmails.get();
+	}
+
+	void migrate() {
+		logger.info("start migrating {} and {} to layout {}...", UserCache.KEY_USERS, UserCache.KEY_USER_EMAILS,
+				userRedisStore.getLayout().getClass().getSimpleName());
+		try {
+			migrateHash(UserCache.KEY_USERS, true);
+			migrateHash(UserCache.KEY_USER_EMAILS, false);
+			logger.info("user key migration finished: {} users, {} emails.", migratedUsers.get(), migratedEmails.get());
+		} catch (InterruptedException e) {
+			logger.info("user key migration interrupted: {} users, {} emails.", migratedUsers.get(), migratedEmails.get());
+		} catch (RuntimeException e) {
+			logger.warn("user key migration failed, will continue on next startup.", e);
+		}
+	}
+
+	private void migrateHash(String key, boolean users) throws InterruptedException {
+		ScanCursor cursor = ScanCursor.INITIAL;
+		ScanArgs args = ScanArgs.Builder.limit(batchSize);
+		do {
+			ScanCursor current = cursor;
+			MapScanCursor<String, byte[]> batch = redisService.executeBinary(commands -> commands.hscan(key, current, args));
+			Map<String, byte[]> entries = batch.getMap();
+			if (!entries.isEmpty()) {
+				int moved = moveUnchanged(key, entries, users);
+				(users ? migratedUsers : migratedEmails).addAndGet(moved);
+			}
+			cursor = batch;
+			Thread.sleep(pause.toMillis());
+		} while (!cursor.isFinished());
+	}
+
+	/*
+	 * 先删除旧field（只删除没有变化的），再写入新布局，旧Hash中的值在读出之后被删除时不会再复制过去：
+	 */
+	private int moveUnchanged(String key, Map<String, byte[]> entries, boolean users) {
+		List<Map.Entry<String, byte[]>> list = new ArrayList<>(entries.entrySet());
+		byte[][] argv = new byte[list.size() * 2][];
+		for (int i = 0; i < list.size(); i++) {
+			argv[i * 2] = list.get(i).getKey().getBytes(StandardCharsets.UTF_8);
+			argv[i * 2 + 1] = list.get(i).getValue();
+		}
+		List<Object> removed = redisService.executeBinary(commands -> commands.eval(REMOVE_IF_UNCHANGED_SCRIPT, ScriptOutputType.MULTI, new String[] { key }, argv));
+		if (removed.isEmpty()) {
+			return 0;
+		}
+		redisService.executeBinaryPipelined(commands -> {
+			List<RedisFuture<Object>> futures = new ArrayList<>(removed.size());
+			for (Object index : removed) {
+				Map.Entry<String, byte[]> entry = list.get(((Long) index).intValue() - 1);
+				if (users) {
+					userRedisStore.putIfAbsent(commands, futures, Long.parseLong(entry.getKey()), entry.getValue());
+				} else {
+					userRedisStore.putEmailIfAbsent(commands, futures, entry.getKey(), entry.getValue());
+				}
+			}
+			return futures;
+		});
+		logger.debug("migrated {} of {} fields of {}.", removed.size(), list.size(), key);
+		return removed.size();
+	}
+}
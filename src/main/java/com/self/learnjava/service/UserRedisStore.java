@@ -0,0 +1,236 @@
+package com.self.learnjava.service;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.self.learnjava.entity.User;
+
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.SetArgs;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+
+/*
+ * 按UserKeyLayout读写Redis中的User和email索引，UserCache和UserController都通过它访问Redis。
+ * per-user布局下每个key带有users.redis.ttl的过期时间，每次写入时刷新。
+ * 从single迁移到其他布局期间（users.redis.migration.enabled），新布局中读不到时再读旧的__users__，
+ * 删除时同时删除旧的__users__中的数据，避免迁移任务把已删除的旧数据又复制过来。
+ * 删除User时写入一个tombstone-ttl的墓碑key，墓碑存在期间从数据库加载的User不能写入Redis：
+ * 加载者可能在修改提交前读到旧数据、在删除之后才写入，没有墓碑时旧数据会留在Redis中直到过期（single和bucketed布局永不过期）。
+ * 墓碑和User在同一个slot（使用User所在key的hash tag），检查墓碑和写入由一个Lua脚本原子地完成。
+ */
+@Component
+public class UserRedisStore {
+
+	@Autowired
+	RedisService redisService;
+
+	@Value("${users.redis.layout:single}")
+	String layoutName;
+
+	@Value("${users.redis.buckets:64}")
+	int buckets;
+
+	@Value("${users.redis.ttl:1d}")
+	Duration ttl;
+
+	@Value("${users.redis.tombstone-ttl:5s}")
+	Duration tombstoneTtl;
+
+	@Value("${users.redis.migration.enabled:false}")
+	boolean migrating;
+
+	static final String KEY_TOMBSTONE_PREFIX = "__user_tombstone__:";
+
+	/*
+	 * KEYS[1]：墓碑，KEYS[2]：User所在的key；ARGV[1]：编码后的User，ARGV[2]：Hash的field，为空时KEYS[2]是String，
+	 * ARGV[3]：String的过期毫秒数，ARGV[4]：为1时只在不存在时写入。墓碑存在时不写入，返回0：
+	 */
+	static final String GUARDED_WRITE_SCRIPT = "if redis.call('EXISTS', KEYS[1]) == 1 then return 0 end\n"
+			+ "local nx = ARGV[4] == '1'\n"
+			+ "if ARGV[2] == '' then\n"
+			+ "  if nx then\n"
+			+ "    if redis.call('SET', KEYS[2], ARGV[1], 'PX', ARGV[3], 'NX') then return 1 end\n"
+			+ "    return 0\n"
+			+ "  end\n"
+			+ "  redis.call('SET', KEYS[2], ARGV[1], 'PX', ARGV[3])\n"
+			+ "  return 1\n"
+			+ "end\n"
+			+ "if nx then return redis.call('HSETNX', KEYS[2], ARGV[2], ARGV[1]) end\n"
+			+ "redis.call('HSET', KEYS[2], ARGV[2], ARGV[1])\n"
+			+ "return 1\n";
+
+	private UserKeyLayout layout;
+	private final UserKeyLayout legacy = new UserKeyLayout.Single();
+
+	@PostConstruct
+	public void init() {
+		this.layout = UserKeyLayout.of(layoutName, buckets);
+		if (layout instanceof UserKeyLayout.Single) {
+			this.migrating = false;
+		}
+	}
+
+	public UserKeyLayout getLayout() {
+		return layout;
+	}
+
+	public User get(long id) {
+		User user = get(layout, id, false);
+		if (user == null && migrating) {
+			user = get(legacy, id, false);
+		}
+		return user;
+	}
+
+	/*
+	 * 与get相同，但优先使用RedisService的客户端缓存：
+	 */
+	public User getCached(long id) {
+		User user = get(layout, id, true);
+		if (user == null && migrating) {
+			user = get(legacy, id, true);
+		}
+		return user;
+	}
+
+	private User get(UserKeyLayout layout, long id, boolean cached) {
+		String key = layout.userKey(id);
+		String field = layout.userField(id);
+		if (field == null) {
+			return cached ? redisService.getCached(key, User.class) : redisService.get(key, User.class);
+		}
+		return cached ? redisService.hgetCached(key, field, User.class) : redisService.hget(key, field, User.class);
+	}
+
+	public Long getIdByEmail(String email) {
+		String id = getIdByEmail(layout, email);
+		if (id == null && migrating) {
+			id = getIdByEmail(legacy, email);
+		}
+		return id == null ? null : Long.valueOf(id);
+	}
+
+	private String getIdByEmail(UserKeyLayout layout, String email) {
+		String key = layout.emailKey(email);
+		String field = layout.emailField(email);
+		return field == null ? redisService.get(key) : redisService.hget(key, field);
+	}
+
+	/*
+	 * User和email索引用管道一次写入，墓碑存在、User没有写入时返回false：
+	 */
+	public boolean put(User user) {
+		byte[] data = redisService.encode(user);
+		byte[] id = bytes(user.getId().toString());
+		List<Object> results = redisService.executeBinaryPipelined(commands -> {
+			List<RedisFuture<Object>> futures = new ArrayList<>(2);
+			futures.add(writeUser(commands, user.getId(), data, false));
+			futures.add(write(commands, layout.emailKey(user.getEmail()), layout.emailField(user.getEmail()), id, false));
+			return futures;
+		});
+		return !results.isEmpty() && Long.valueOf(1).equals(results.get(0));
+	}
+
+	/*
+	 * 批量写入，只写入Redis中还不存在的User，用于预热，不会用刚从数据库读出的数据覆盖更新的数据：
+	 */
+	public void putAllIfAbsent(List<User> users) {
+		redisService.executeBinaryPipelined(commands -> {
+			List<RedisFuture<Object>> futures = new ArrayList<>(users.size() * 2);
+			for (User user : users) {
+				putIfAbsent(commands, futures, user.getId(), redisService.encode(user));
+				putEmailIfAbsent(commands, futures, user.getEmail(), user.getId().toString().getBytes(StandardCharsets.UTF_8));
+			}
+			return futures;
+		});
+	}
+
+	/*
+	 * 迁移任务使用：只在新布局中还不存在时写入，不覆盖迁移开始后写入的新数据：
+	 */
+	void putIfAbsent(RedisAsyncCommands<String, byte[]> commands, List<RedisFuture<Object>> futures, long id, byte[] data) {
+		futures.add(writeUser(commands, id, data, true));
+	}
+
+	void putEmailIfAbsent(RedisAsyncCommands<String, byte[]> commands, List<RedisFuture<Object>> futures, String email, byte[] id) {
+		futures.add(write(commands, layout.emailKey(email), layout.emailField(email), id, true));
+	}
+
+	/*
+	 * 写入User，墓碑存在（刚被删除）时不写入：
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private RedisFuture<Object> writeUser(RedisAsyncCommands<String, byte[]> commands, long id, byte[] data, boolean ifAbsent) {
+		String key = layout.userKey(id);
+		String field = layout.userField(id);
+		String[] keys = { tombstoneKey(key, id), key };
+		return (RedisFuture) commands.eval(GUARDED_WRITE_SCRIPT, ScriptOutputType.INTEGER, keys, data, bytes(field == null ? "" : field),
+				bytes(Long.toString(ttl.toMillis())), bytes(ifAbsent ? "1" : "0"));
+	}
+
+	/*
+	 * 墓碑使用User所在key的hash tag，没有hash tag时（single布局的__users__）使用整个key：
+	 */
+	static String tombstoneKey(String userKey, long id) {
+		int start = userKey.indexOf('{');
+		int end = start < 0 ? -1 : userKey.indexOf('}', start + 1);
+		String tag = end > start + 1 ? userKey.substring(start + 1, end) : userKey;
+		return KEY_TOMBSTONE_PREFIX + "{" + tag + "}:" + id;
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private RedisFuture<Object> write(RedisAsyncCommands<String, byte[]> commands, String key, String field, byte[] value, boolean ifAbsent) {
+		if (field != null) {
+			return (RedisFuture) (ifAbsent ? commands.hsetnx(key, field, value) : commands.hset(key, field, value));
+		}
+		SetArgs args = SetArgs.Builder.px(ttl.toMillis());
+		return (RedisFuture) commands.set(key, value, ifAbsent ? args.nx() : args);
+	}
+
+	/*
+	 * 删除User和它的email索引，email可以传入多个（例如修改前后的email），null会被忽略。
+	 * 先写入墓碑，tombstone-ttl之内不会再把数据库中读到的User写入Redis：
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public void delete(Long id, String... emails) {
+		redisService.executeBinaryPipelined(commands -> {
+			List<RedisFuture<Object>> futures = new ArrayList<>();
+			if (id != null) {
+				futures.add((RedisFuture) commands.set(tombstoneKey(layout.userKey(id), id), bytes("1"), SetArgs.Builder.px(tombstoneTtl.toMillis())));
+			}
+			delete(commands, futures, layout, id, emails);
+			if (migrating) {
+				delete(commands, futures, legacy, id, emails);
+			}
+			return futures;
+		});
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static void delete(RedisAsyncCommands<String, byte[]> commands, List<RedisFuture<Object>> futures, UserKeyLayout layout,
+			Long id, String... emails) {
+		if (id != null) {
+			String field = layout.userField(id);
+			futures.add((RedisFuture) (field == null ? commands.del(layout.userKey(id)) : commands.hdel(layout.userKey(id), field)));
+		}
+		for (String email : emails) {
+			if (email != null) {
+				String field = layout.emailField(email);
+				futures.add((RedisFuture) (field == null ? commands.del(layout.emailKey(email)) : commands.hdel(layout.emailKey(email), field)));
+			}
+		}
+	}
+}
@@ -8,6 +8,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.jdbc.core.BeanPropertyRowMapper;
+import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.support.GeneratedKeyHolder;
@@ -15,11 +16,16 @@ import org.springframework.jdbc.support.KeyHolder;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
 
+import com.self.learnjava.config.MarkLastWrite;
 import com.self.learnjava.entity.User;
+import com.self.learnjava.web.MailMessage;
 
 /*
  * 老大这一章的UserService没有加@Transactional注解，HikariCP的auto-commit是关上的，register方法里也没有事务提交，导致无法完成注册。
  * 自己加上，这就是debug的过程
+ * 只读的方法标注@Transactional(readOnly = true)，RoutingDataSource会自动把它们路由到从库，无需@RoutingWithSlave。
+ * 缓存未命中时也从从库加载（read-your-writes窗口内由RoutingDataSource读主库），
+ * 从库复制延迟导致的旧数据不会写回缓存，见UserCache和UserRedisStore的墓碑。
  */
 @Component
 @Transactional
@@ -29,26 +35,41 @@ public class UserService {
 	@Autowired
 	JdbcTemplate jdbcTemplate;
 	
+	@Autowired
+	UserCache userCache;
+	
+	@Autowired
+	OutboxService outboxService;
+	
 	RowMapper<User> userRowMapper = new BeanPropertyRowMapper<>(User.class);
 	
+	@Transactional(readOnly = true)
 	public User getUserById(long id) {
-		return jdbcTemplate.queryForObject("SELECT * FROM users WHERE id = ?", new Object[]{id}, userRowMapper);
+		return userCache.getById(id, key -> jdbcTemplate.queryForObject("SELECT * FROM users WHERE id = ?", new Object[]{key}, userRowMapper));
 	}
 	
+	@Transactional(readOnly = true)
 	public User getUserByEmail(String email) {
-		return jdbcTemplate.queryForObject("SELECT * FROM users WHERE email = ?", new Object[]{email}, userRowMapper);
+		return userCache.getByEmail(email, key -> jdbcTemplate.queryForObject("SELECT * FROM users WHERE email = ?", new Object[]{key}, userRowMapper));
 	}
 	
+	@Transactional(readOnly = true)
 	public User signin(String email, String password) {
 		logger.info("try register by {}...", email);
-		User user = getUserByEmail(email);
+		User user;
+		try {
+			user = getUserByEmail(email);
+		} catch (EmptyResultDataAccessException e) {
+			throw new SigninException("login failed.");
+		}
 		if (user.getPassword().equals(password)) {
 			return user;
 		} else {
-			throw new RuntimeException("login failed.");
+			throw new SigninException("login failed.");
 		}
 	}
 	
+	@MarkLastWrite
 	public User register(String email, String password, String name) {
 		logger.info("try register by {}...", email);
 		User user = new User();
@@ -68,16 +89,31 @@ public class UserService {
 			throw new RuntimeException("Insert failed.");
 		}
 		user.setId(holder.getKey().longValue());
+		userCache.invalidate(user.getId(), user.getEmail());
+		//注册邮件消息与用户在同一个事务中写入发件箱:
+		outboxService.add(MessaginService.MAIL_QUEUE, MailMessage.registration(user.getEmail(), user.getName()));
 		return user;
 	}
 	
+	@MarkLastWrite
 	public void updateUser(User user) {
 		if (1 != jdbcTemplate.update("UPDATE users SET name = ? WHERE id = ?", user.getName(), user.getId())) {
 			throw new RuntimeException("User not found by id");
 		}
+		userCache.invalidate(user.getId(), user.getEmail());
+	}
+	
+	/*
+	 * 按id分页(keyset)：返回id大于afterId的最多limit个用户，id是主键，查询直接走索引，
+	 * 不会像OFFSET那样越往后翻页越慢：
+	 */
+	@Transactional(readOnly = true)
+	public List<User> getUsers(long afterId, int limit) {
+		return jdbcTemplate.query("SELECT * FROM users WHERE id > ? ORDER BY id LIMIT ?", new Object[]{afterId, limit}, userRowMapper);
 	}
 	
-	public List<User> getUsers() {
-		return jdbcTemplate.query("SELECT * FROM users", userRowMapper);
+	@Transactional(readOnly = true)
+	public long countUsers() {
+		return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM users", Long.class);
 	}
 }
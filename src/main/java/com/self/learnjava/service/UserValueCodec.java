@@ -0,0 +1,87 @@
+package com.self.learnjava.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import com.self.learnjava.entity.User;
+
+/*
+ * User的紧凑二进制格式，只保存字段值，不保存字段名，也不包含createdDateTime、imageUrl等计算出来的属性：
+ * 版本(1字节) + id(是否为null 1字节 + 8字节) + createdAt(8字节) + email + name + password(writeUTF)。
+ * 典型的User比JSON小一半左右，读取时不需要解析JSON。
+ * 以'{'开头的旧数据仍然按JSON解析，已有的缓存不需要清空。
+ */
+@Component
+@Order(0)
+public class UserValueCodec implements ValueCodec {
+
+	static final byte VERSION = 1;
+
+	@Autowired
+	JacksonValueCodec jacksonValueCodec;
+
+	@Override
+	public boolean supports(Class<?> type) {
+		return type == User.class;
+	}
+
+	@Override
+	public byte[] encode(Object value) {
+		User user = (User) value;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		try (DataOutputStream output = new DataOutputStream(bytes)) {
+			output.writeByte(VERSION);
+			output.writeBoolean(user.getId() != null);
+			output.writeLong(user.getId() == null ? 0 : user.getId());
+			output.writeLong(user.getCreatedAt());
+			writeString(output, user.getEmail());
+			writeString(output, user.getName());
+			writeString(output, user.getPassword());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	@Override
+	public <T> T decode(byte[] bytes, Class<T> type) {
+		if (bytes.length > 0 && bytes[0] == '{') {
+			return jacksonValueCodec.decode(bytes, type);
+		}
+		try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes))) {
+			byte version = input.readByte();
+			if (version != VERSION) {
+				throw new IOException("Unsupported user format version: " + version);
+			}
+			User user = new User();
+			boolean hasId = input.readBoolean();
+			long id = input.readLong();
+			user.setId(hasId ? id : null);
+			user.setCreatedAt(input.readLong());
+			user.setEmail(readString(input));
+			user.setName(readString(input));
+			user.setPassword(readString(input));
+			return type.cast(user);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void writeString(DataOutputStream output, String s) throws IOException {
+		output.writeBoolean(s != null);
+		if (s != null) {
+			output.writeUTF(s);
+		}
+	}
+
+	private static String readString(DataInputStream input) throws IOException {
+		return input.readBoolean() ? input.readUTF() : null;
+	}
+}
@@ -0,0 +1,14 @@
+package com.self.learnjava.service;
+
+/*
+ * RedisService.get(key, Class)和set(key, T)使用的值序列化方案。
+ * 多个ValueCodec按@Order排序，RedisService选用第一个supports返回true的。
+ */
+public interface ValueCodec {
+
+	boolean supports(Class<?> type);
+
+	byte[] encode(Object value);
+
+	<T> T decode(byte[] bytes, Class<T> type);
+}
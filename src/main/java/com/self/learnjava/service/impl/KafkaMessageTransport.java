@@ -0,0 +1,126 @@
+package com.self.learnjava.service.impl;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.SendResult;
+import org.springframework.stereotype.Component;
+import org.springframework.util.concurrent.ListenableFuture;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.self.learnjava.service.MessageTransport;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/*
+ * 设定messaging.transport为kafka时，消息发送到Kafka：
+ * destination取最后一段作为topic，例如/jms/queue/mail发送到topic mail。
+ * 消息的key取JSON中messaging.kafka.key-field字段的值（默认email），Kafka按key的hash选择分区，
+ * 同一个用户的消息总在同一个分区中按顺序消费，不同用户的消息分散到所有分区，消费者可以按分区数扩展。
+ * 生产者的linger.ms、batch-size和compression-type在spring.kafka.producer中配置，
+ * 一批消息全部发出后只等待一次，由Kafka客户端在后台合并成请求发送。
+ */
+@Component
+@ConditionalOnProperty(value="messaging.transport", havingValue="kafka")
+public class KafkaMessageTransport implements MessageTransport, MeterBinder {
+
+	final Logger logger = LoggerFactory.getLogger(getClass());
+
+	public static final String MAIL_TOPIC = "mail";
+
+	// 发送失败的邮件放入该topic:
+	public static final String MAIL_DEAD_LETTER_TOPIC = MAIL_TOPIC + ".DLT";
+
+	@Autowired
+	KafkaTemplate<String, String> kafkaTemplate;
+
+	@Autowired
+	ObjectMapper objectMapper;
+
+	@Value("${messaging.kafka.key-field:email}")
+	String keyField;
+
+	@Value("${messaging.kafka.send-timeout:30s}")
+	Duration sendTimeout;
+
+	private volatile Timer publishTimer;
+	private volatile Counter published;
+	private volatile Counter failures;
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		this.publishTimer = Timer.builder("messaging.publish").tag("mode", "kafka").publishPercentiles(0.5, 0.99).register(registry);
+		this.published = Counter.builder("messaging.published").register(registry);
+		this.failures = Counter.builder("messaging.failures").register(registry);
+	}
+
+	public static String topicOf(String destination) {
+		return destination.substring(destination.lastIndexOf('/') + 1);
+	}
+
+	@Override
+	public void sendTexts(String destination, List<String> texts) {
+		if (texts.isEmpty()) {
+			return;
+		}
+		String topic = topicOf(destination);
+		List<CompletableFuture<SendResult<String, String>>> futures = new ArrayList<>(texts.size());
+		for (String text : texts) {
+			long start = System.nanoTime();
+			ListenableFuture<SendResult<String, String>> future = kafkaTemplate.send(topic, keyOf(text), text);
+			future.addCallback(result -> recordSent(start), e -> increment(failures));
+			futures.add(future.completable());
+		}
+		try {
+			CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).get(sendTimeout.toMillis(), TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException | TimeoutException e) {
+			throw new RuntimeException("Send to kafka topic " + topic + " failed.", e);
+		}
+	}
+
+	/*
+	 * 取不到key时返回null，Kafka会把消息轮流发送到各个分区：
+	 */
+	String keyOf(String text) {
+		try {
+			JsonNode node = objectMapper.readTree(text).get(keyField);
+			return node == null || node.isNull() ? null : node.asText();
+		} catch (IOException e) {
+			logger.warn("unable to read key {} from message: {}", keyField, e.getMessage());
+			return null;
+		}
+	}
+
+	private void recordSent(long start) {
+		Timer timer = this.publishTimer;
+		if (timer != null) {
+			timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		}
+		increment(published);
+	}
+
+	private static void increment(Counter counter) {
+		if (counter != null) {
+			counter.increment();
+		}
+	}
+}
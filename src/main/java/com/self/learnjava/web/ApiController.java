@@ -1,18 +1,33 @@
 package com.self.learnjava.web;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import javax.servlet.http.HttpServletRequest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 import com.self.learnjava.entity.User;
+import com.self.learnjava.service.RateLimitedException;
+import com.self.learnjava.service.SigninException;
+import com.self.learnjava.service.SigninRateLimiter;
+import com.self.learnjava.service.UserBatchService;
+import com.self.learnjava.service.UserBatchService.RegisterResult;
 import com.self.learnjava.service.UserService;
 
 import io.swagger.v3.oas.annotations.Operation;
@@ -56,12 +71,83 @@ import io.swagger.v3.oas.annotations.Parameter;
 @RequestMapping("/api")
 public class ApiController {
 	
+	final Logger logger = LoggerFactory.getLogger(getClass());
+	
 	@Autowired
 	UserService userService;
 	
+	@Autowired
+	UserBatchService userBatchService;
+	
+	@Autowired
+	SigninRateLimiter signinRateLimiter;
+	
+	@Value("${api.users.max-batch-size:10000}")
+	int maxBatchSize;
+	
+	@Value("${api.users.default-page-size:20}")
+	int defaultPageSize;
+	
+	@Value("${api.users.max-page-size:100}")
+	int maxPageSize;
+	
+	/*
+	 * 按id翻页，每页最多max-page-size个用户，返回的next就是下一页的URL，没有下一页时为null：
+	 * GET /api/users?after=100&limit=20
+	 */
+	@Operation(summary="OpenAPI,按ID分页获取用户列表")
 	@GetMapping("/users")
-	public List<User> users() {
-		return userService.getUsers();
+	public Map<String, Object> users(@Parameter(description="上一页最后一个用户的ID")@RequestParam(value="after", required=false) Long after,
+			@Parameter(description="每页数量")@RequestParam(value="limit", required=false) Integer limit) {
+		int size = (limit == null || limit <= 0) ? defaultPageSize : Math.min(limit, maxPageSize);
+		// 多查一条，用来判断是否还有下一页:
+		List<User> users = userService.getUsers(after == null ? Long.MIN_VALUE : after, size + 1);
+		String nextCursor = null;
+		if (users.size() > size) {
+			users = users.subList(0, size);
+			nextCursor = users.get(size - 1).getId().toString();
+		}
+		Map<String, Object> res = new HashMap<String, Object>();
+		res.put("users", users);
+		res.put("nextCursor", nextCursor);
+		res.put("next", nextCursor == null ? null : "/api/users?after=" + nextCursor + "&limit=" + size);
+		return res;
+	}
+	
+	/*
+	 * 批量注册，结果与请求一一对应，成功的用户的注册邮件消息由UserBatchService写入发件箱：
+	 * POST /api/users:batch
+	 * [{"email": "a@example.com", "password": "...", "name": "A"}, ...]
+	 */
+	@Operation(summary="OpenAPI,批量注册用户")
+	@PostMapping("/users:batch")
+	public Map<String, Object> registerBatch(@RequestBody List<RegisterRequest> registerRequests) {
+		if (registerRequests.size() > maxBatchSize) {
+			Map<String, Object> error = new HashMap<String, Object>();
+			error.put("error", "BATCH_TOO_LARGE");
+			error.put("message", "At most " + maxBatchSize + " users per request.");
+			return error;
+		}
+		List<User> users = new ArrayList<>(registerRequests.size());
+		for (RegisterRequest r : registerRequests) {
+			User user = new User();
+			user.setEmail(r.email);
+			user.setPassword(r.password);
+			user.setName(r.name);
+			users.add(user);
+		}
+		List<RegisterResult> results = userBatchService.registerBatch(users);
+		int succeeded = 0;
+		for (RegisterResult result : results) {
+			if (result.id != null) {
+				succeeded++;
+			}
+		}
+		Map<String, Object> res = new HashMap<String, Object>();
+		res.put("results", results);
+		res.put("succeeded", succeeded);
+		res.put("failed", results.size() - succeeded);
+		return res;
 	}
 	
 	@Operation(summary="OpenAPI,根据用户ID获取指定的用户信息")
@@ -71,13 +157,17 @@ public class ApiController {
 	}
 	
 	@PostMapping("/signin")
-	public Map<String, Object> signin(@RequestBody SignInRequest signinRequest) {
+	public Map<String, Object> signin(@RequestBody SignInRequest signinRequest, HttpServletRequest request) {
+		signinRateLimiter.check(signinRequest.email, request.getRemoteAddr());
 		try {
 			User user = userService.signin(signinRequest.email, signinRequest.password);
 			Map<String, Object> res = new HashMap<String, Object>();
 			res.put("user", user);
 			return res;
 		} catch (Exception e) {
+			if (e instanceof SigninException) {
+				signinRateLimiter.recordFailure(signinRequest.email, request.getRemoteAddr());
+			}
 			e.printStackTrace();
 			Map<String, Object> error = new HashMap<String, Object>();
 			error.put("error", "SINGIN_FAILED");
@@ -86,8 +176,23 @@ public class ApiController {
 		}
 	}
 	
+	@ExceptionHandler(RateLimitedException.class)
+	public ResponseEntity<Map<String, Object>> handleRateLimited(RateLimitedException ex) {
+		Map<String, Object> error = new HashMap<String, Object>();
+		error.put("error", "TOO_MANY_REQUESTS");
+		error.put("message", ex.getMessage());
+		return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+				.header("Retry-After", Long.toString((ex.getRetryAfterMillis() + 999) / 1000)).body(error);
+	}
+	
 	public static class SignInRequest {
 		public String email;
 		public String password;
 	}
+	
+	public static class RegisterRequest {
+		public String email;
+		public String password;
+		public String name;
+	}
 }
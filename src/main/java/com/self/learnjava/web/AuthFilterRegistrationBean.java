@@ -12,6 +12,7 @@ import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,6 +22,9 @@ import org.springframework.core.annotation.Order;
 import org.springframework.stereotype.Component;
 
 import com.self.learnjava.entity.User;
+import com.self.learnjava.service.RateLimitedException;
+import com.self.learnjava.service.SigninException;
+import com.self.learnjava.service.SigninRateLimiter;
 import com.self.learnjava.service.UserService;
 
 /*
@@ -41,6 +45,9 @@ public class AuthFilterRegistrationBean extends FilterRegistrationBean<Filter>{
 	@Autowired
 	UserService userService;
 	
+	@Autowired
+	SigninRateLimiter signinRateLimiter;
+	
 	@Override
 	public Filter getFilter() {
 		/*
@@ -59,6 +66,12 @@ public class AuthFilterRegistrationBean extends FilterRegistrationBean<Filter>{
 			HttpServletRequest req = (HttpServletRequest)request;
 			try {
 				authenticateByHeader(req);
+			} catch (RateLimitedException e) {
+				// 登录过于频繁，直接返回429，不再继续处理请求:
+				HttpServletResponse resp = (HttpServletResponse)response;
+				resp.setHeader("Retry-After", Long.toString((e.getRetryAfterMillis() + 999) / 1000));
+				resp.sendError(429, e.getMessage());
+				return;
 			} catch (RuntimeException e) {
 				logger.warn("login by authorization header failed.", e);
 			}
@@ -74,7 +87,14 @@ public class AuthFilterRegistrationBean extends FilterRegistrationBean<Filter>{
 				if (pos > 0) {
 					String email = URLDecoder.decode(up.substring(0, pos), "UTF-8");
 					String password = URLDecoder.decode(up.substring(pos + 1), "UTF-8");
-					User user = userService.signin(email, password);
+					signinRateLimiter.check(email, req.getRemoteAddr());
+					User user;
+					try {
+						user = userService.signin(email, password);
+					} catch (SigninException e) {
+						signinRateLimiter.recordFailure(email, req.getRemoteAddr());
+						throw e;
+					}
 					req.getSession().setAttribute(UserController.KEY_USER, user);
 					logger.info("user {} login by authorization header ok.", email);
 				}
@@ -0,0 +1,205 @@
+package com.self.learnjava.web;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpSession;
+
+import com.self.learnjava.service.RedisSessionRepository;
+import com.self.learnjava.service.RedisSessionRepository.SessionInfo;
+
+/*
+ * 保存在Redis中的HttpSession，只在一次请求内有效：
+ * 属性在第一次getAttribute时才从Redis读取，读过的属性缓存在本地；
+ * setAttribute和removeAttribute只记录变化，由RedisSessionFilter在响应提交前和请求结束时调用commit写回；
+ * 第一次commit总是刷新最后访问时间和过期时间，之后只在有新的变化时才写回。
+ * 属性值只能是User、String和基本类型的包装类型，见RedisSessionRepository.isSupportedType。
+ * 注意修改了getAttribute返回的对象后，需要再调用一次setAttribute，否则修改不会写回Redis。
+ */
+class RedisHttpSession implements HttpSession {
+
+	private final RedisSessionRepository repository;
+	private final ServletContext servletContext;
+	private final SessionInfo info;
+	private final boolean isNew;
+	private String id;
+
+	private final Map<String, Object> loaded = new HashMap<>();
+	private final Map<String, Object> changed = new LinkedHashMap<>();
+	private final Set<String> removed = new HashSet<>();
+	private boolean invalidated;
+	private boolean metadataChanged;
+	private boolean saved;
+
+	RedisHttpSession(RedisSessionRepository repository, ServletContext servletContext, String id, SessionInfo info, boolean isNew) {
+		this.repository = repository;
+		this.servletContext = servletContext;
+		this.id = id;
+		this.info = info;
+		this.isNew = isNew;
+		this.metadataChanged = isNew;
+	}
+
+	void changeId(String newId) {
+		checkValid();
+		// 新建的Session在第一次commit之前Redis中还没有对应的key:
+		if (!isNew || saved) {
+			repository.rename(this.id, newId);
+		}
+		this.id = newId;
+	}
+
+	boolean isInvalidated() {
+		return invalidated;
+	}
+
+	void commit() {
+		if (invalidated || (saved && !metadataChanged && changed.isEmpty() && removed.isEmpty())) {
+			return;
+		}
+		info.lastAccessedTime = System.currentTimeMillis();
+		repository.save(id, info, metadataChanged, changed, removed);
+		saved = true;
+		metadataChanged = false;
+		loaded.putAll(changed);
+		changed.clear();
+		removed.clear();
+	}
+
+	@Override
+	public long getCreationTime() {
+		checkValid();
+		return info.creationTime;
+	}
+
+	@Override
+	public String getId() {
+		return id;
+	}
+
+	@Override
+	public long getLastAccessedTime() {
+		checkValid();
+		return info.lastAccessedTime;
+	}
+
+	@Override
+	public ServletContext getServletContext() {
+		return servletContext;
+	}
+
+	@Override
+	public void setMaxInactiveInterval(int interval) {
+		info.maxInactiveInterval = interval;
+		metadataChanged = true;
+	}
+
+	@Override
+	public int getMaxInactiveInterval() {
+		return info.maxInactiveInterval;
+	}
+
+	@Override
+	@Deprecated
+	public javax.servlet.http.HttpSessionContext getSessionContext() {
+		return null;
+	}
+
+	@Override
+	public Object getAttribute(String name) {
+		checkValid();
+		if (changed.containsKey(name)) {
+			return changed.get(name);
+		}
+		if (removed.contains(name)) {
+			return null;
+		}
+		if (!loaded.containsKey(name)) {
+			if (isNew) {
+				return null;
+			}
+			loaded.put(name, repository.loadAttribute(id, name));
+		}
+		return loaded.get(name);
+	}
+
+	@Override
+	@Deprecated
+	public Object getValue(String name) {
+		return getAttribute(name);
+	}
+
+	@Override
+	public Enumeration<String> getAttributeNames() {
+		checkValid();
+		Set<String> names = isNew ? new HashSet<>(loaded.keySet()) : repository.loadAttributeNames(id);
+		names.removeAll(removed);
+		names.addAll(changed.keySet());
+		return Collections.enumeration(names);
+	}
+
+	@Override
+	@Deprecated
+	public String[] getValueNames() {
+		return Collections.list(getAttributeNames()).toArray(new String[0]);
+	}
+
+	@Override
+	public void setAttribute(String name, Object value) {
+		checkValid();
+		if (value == null) {
+			removeAttribute(name);
+			return;
+		}
+		if (!RedisSessionRepository.isSupportedType(value.getClass())) {
+			throw new IllegalArgumentException("Unsupported session attribute type: " + value.getClass().getName());
+		}
+		removed.remove(name);
+		changed.put(name, value);
+	}
+
+	@Override
+	@Deprecated
+	public void putValue(String name, Object value) {
+		setAttribute(name, value);
+	}
+
+	@Override
+	public void removeAttribute(String name) {
+		checkValid();
+		changed.remove(name);
+		loaded.remove(name);
+		removed.add(name);
+	}
+
+	@Override
+	@Deprecated
+	public void removeValue(String name) {
+		removeAttribute(name);
+	}
+
+	@Override
+	public void invalidate() {
+		checkValid();
+		invalidated = true;
+		repository.delete(id);
+	}
+
+	@Override
+	public boolean isNew() {
+		checkValid();
+		return isNew;
+	}
+
+	private void checkValid() {
+		if (invalidated) {
+			throw new IllegalStateException("Session already invalidated: " + id);
+		}
+	}
+}
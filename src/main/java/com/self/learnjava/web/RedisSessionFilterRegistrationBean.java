@@ -0,0 +1,236 @@
+package com.self.learnjava.web;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import javax.servlet.http.HttpSession;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import com.self.learnjava.service.RedisSessionRepository;
+import com.self.learnjava.service.RedisSessionRepository.SessionInfo;
+
+/*
+ * session.store=redis时，用Redis代替Tomcat保存HttpSession，节点本身不再保存登录状态，可以直接放在普通的负载均衡后面。
+ * 必须排在其他Filter前面，后面的AuthFilter、Controller等通过request.getSession()拿到的都是RedisHttpSession。
+ * Session ID保存在名为session.cookie-name的Cookie中，只把修改过的属性写回Redis。
+ * 写回必须在响应提交之前：否则登录后的重定向可能先到达浏览器，紧接着的请求在Redis中还看不到登录状态。
+ * 因此包装response，在sendRedirect、sendError、flushBuffer和获取输出流（第一次写入之前）时先写回Session，
+ * 请求结束时再写回之后的变化。请求带着Session的Cookie但没有访问Session时，也刷新Session的过期时间。
+ */
+@Order(1)
+@Component
+@ConditionalOnProperty(name = "session.store", havingValue = "redis")
+public class RedisSessionFilterRegistrationBean extends FilterRegistrationBean<Filter> {
+
+	final Logger logger = LoggerFactory.getLogger(getClass());
+
+	@Autowired
+	RedisSessionRepository sessionRepository;
+
+	@Value("${session.cookie-name:SESSION}")
+	String cookieName;
+
+	@Override
+	public Filter getFilter() {
+		return new RedisSessionFilter();
+	}
+
+	class RedisSessionFilter implements Filter {
+		@Override
+		public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+				throws IOException, ServletException {
+			SessionRequestWrapper wrapper = new SessionRequestWrapper((HttpServletRequest) request, (HttpServletResponse) response);
+			try {
+				chain.doFilter(wrapper, new SessionResponseWrapper((HttpServletResponse) response, wrapper));
+			} finally {
+				wrapper.commitSession();
+			}
+		}
+	}
+
+	class SessionRequestWrapper extends HttpServletRequestWrapper {
+
+		private final HttpServletResponse response;
+		private final String requestedSessionId;
+		private RedisHttpSession session;
+		private boolean requestedSessionLoaded;
+
+		SessionRequestWrapper(HttpServletRequest request, HttpServletResponse response) {
+			super(request);
+			this.response = response;
+			this.requestedSessionId = readCookie(request);
+		}
+
+		@Override
+		public HttpSession getSession() {
+			return getSession(true);
+		}
+
+		@Override
+		public HttpSession getSession(boolean create) {
+			if (session != null && !session.isInvalidated()) {
+				return session;
+			}
+			// 只在第一次调用时按Cookie加载，invalidate之后不再复用旧的Session ID:
+			if (session == null && !requestedSessionLoaded) {
+				requestedSessionLoaded = true;
+				if (requestedSessionId != null) {
+					SessionInfo info = sessionRepository.load(requestedSessionId);
+					if (info != null) {
+						session = new RedisHttpSession(sessionRepository, getServletContext(), requestedSessionId, info, false);
+						return session;
+					}
+				}
+			}
+			if (!create) {
+				return null;
+			}
+			SessionInfo info = new SessionInfo();
+			info.creationTime = System.currentTimeMillis();
+			info.maxInactiveInterval = sessionRepository.getDefaultMaxInactiveInterval();
+			session = new RedisHttpSession(sessionRepository, getServletContext(), sessionRepository.createId(), info, true);
+			writeCookie(session.getId());
+			return session;
+		}
+
+		@Override
+		public String changeSessionId() {
+			HttpSession current = getSession(false);
+			if (current == null) {
+				throw new IllegalStateException("No session associated with this request.");
+			}
+			String newId = sessionRepository.createId();
+			session.changeId(newId);
+			writeCookie(newId);
+			return newId;
+		}
+
+		@Override
+		public String getRequestedSessionId() {
+			return requestedSessionId;
+		}
+
+		@Override
+		public boolean isRequestedSessionIdValid() {
+			HttpSession current = getSession(false);
+			return current != null && current.getId().equals(requestedSessionId);
+		}
+
+		@Override
+		public boolean isRequestedSessionIdFromCookie() {
+			return requestedSessionId != null;
+		}
+
+		@Override
+		public boolean isRequestedSessionIdFromURL() {
+			return false;
+		}
+
+		void commitSession() {
+			// 没有访问过Session时按Cookie加载，写回时刷新过期时间:
+			if (session == null && requestedSessionId != null && !requestedSessionLoaded) {
+				try {
+					getSession(false);
+				} catch (RuntimeException e) {
+					logger.warn("load session {} from redis failed.", requestedSessionId, e);
+				}
+			}
+			if (session != null) {
+				try {
+					session.commit();
+				} catch (RuntimeException e) {
+					logger.warn("save session {} to redis failed.", session.getId(), e);
+				}
+			}
+		}
+
+		private String readCookie(HttpServletRequest request) {
+			Cookie[] cookies = request.getCookies();
+			if (cookies != null) {
+				for (Cookie cookie : cookies) {
+					if (cookieName.equals(cookie.getName()) && !cookie.getValue().isEmpty()) {
+						return cookie.getValue();
+					}
+				}
+			}
+			return null;
+		}
+
+		private void writeCookie(String id) {
+			Cookie cookie = new Cookie(cookieName, id);
+			String contextPath = getContextPath();
+			cookie.setPath(contextPath.isEmpty() ? "/" : contextPath);
+			cookie.setHttpOnly(true);
+			cookie.setSecure(isSecure());
+			response.addCookie(cookie);
+		}
+	}
+
+	/*
+	 * 响应提交之前先把Session写回Redis：
+	 */
+	class SessionResponseWrapper extends HttpServletResponseWrapper {
+
+		private final SessionRequestWrapper request;
+
+		SessionResponseWrapper(HttpServletResponse response, SessionRequestWrapper request) {
+			super(response);
+			this.request = request;
+		}
+
+		@Override
+		public void sendRedirect(String location) throws IOException {
+			request.commitSession();
+			super.sendRedirect(location);
+		}
+
+		@Override
+		public void sendError(int sc) throws IOException {
+			request.commitSession();
+			super.sendError(sc);
+		}
+
+		@Override
+		public void sendError(int sc, String msg) throws IOException {
+			request.commitSession();
+			super.sendError(sc, msg);
+		}
+
+		@Override
+		public void flushBuffer() throws IOException {
+			request.commitSession();
+			super.flushBuffer();
+		}
+
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException {
+			request.commitSession();
+			return super.getOutputStream();
+		}
+
+		@Override
+		public PrintWriter getWriter() throws IOException {
+			request.commitSession();
+			return super.getWriter();
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package com.self.learnjava.web;
+
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.stereotype.Component;
+
+import com.self.learnjava.service.UserCacheWarmer;
+
+/*
+ * GET /actuator/usercachewarmup查看预热进度，POST /actuator/usercachewarmup开始预热：
+ */
+@Component
+@Endpoint(id = "usercachewarmup")
+public class UserCacheWarmUpEndpoint {
+
+	@Autowired
+	UserCacheWarmer userCacheWarmer;
+
+	@ReadOperation
+	public Map<String, Object> progress() {
+		return userCacheWarmer.getProgress();
+	}
+
+	@WriteOperation
+	public Map<String, Object> start() {
+		boolean started = userCacheWarmer.start();
+		Map<String, Object> progress = userCacheWarmer.getProgress();
+		progress.put("started", started);
+		return progress;
+	}
+}
@@ -3,11 +3,14 @@ package com.self.learnjava.web;
 import java.util.HashMap;
 import java.util.Map;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.GetMapping;
@@ -15,14 +18,14 @@ import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.servlet.ModelAndView;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonMappingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.self.learnjava.config.RoutingWithSlave;
 import com.self.learnjava.entity.User;
-import com.self.learnjava.service.MessaginService;
-import com.self.learnjava.service.RedisService;
+import com.self.learnjava.service.RateLimitedException;
+import com.self.learnjava.service.SigninException;
+import com.self.learnjava.service.SigninRateLimiter;
+import com.self.learnjava.service.UserRedisStore;
 import com.self.learnjava.service.StorageService;
+import com.self.learnjava.service.UserCache;
 import com.self.learnjava.service.UserService;
 import com.self.learnjava.service.ValueService;
 
@@ -30,7 +33,8 @@ import com.self.learnjava.service.ValueService;
 public class UserController {
 	public static final String KEY_USER = "__user__";
 	
-	public static final String KEY_USERS = "__users__";
+	//与UserCache的L2共用同一个Hash:
+	public static final String KEY_USERS = UserCache.KEY_USERS;
 	
 	public static final String KEY_USER_ID = "__userid__";
 	
@@ -46,13 +50,21 @@ public class UserController {
 	ValueService valueService;
 	
 	@Autowired
-	RedisService redisService;
+	UserRedisStore userRedisStore;
 	
 	@Autowired
-	ObjectMapper objectMapper;
-	
-	@Autowired
-	MessaginService messaginService;
+	SigninRateLimiter signinRateLimiter;
+	
+	// 登录过于频繁时返回429，不访问数据库:
+	@ExceptionHandler(RateLimitedException.class)
+	public ModelAndView handleRateLimited(RateLimitedException ex, HttpServletResponse response) {
+		response.setHeader("Retry-After", Long.toString((ex.getRetryAfterMillis() + 999) / 1000));
+		Map<String, String> info = new HashMap<>();
+		info.put("error", "Too many signin attempts, please try again later");
+		ModelAndView mv = new ModelAndView("signin.html", info);
+		mv.setStatus(HttpStatus.TOO_MANY_REQUESTS);
+		return mv;
+	}
 	
 	@ExceptionHandler(RuntimeException.class)
 	public ModelAndView handleUnknowException(Exception ex) {
@@ -63,17 +75,17 @@ public class UserController {
 	}
 	
     // 把User写入Redis:
-	private void putUserInToRedis(User user) throws JsonProcessingException {
-		redisService.hset(KEY_USERS, user.getId().toString(), objectMapper.writeValueAsString(user));
+	private void putUserInToRedis(User user) {
+		userRedisStore.put(user);
 	}
 	
     // 从Redis读取User:
-	private User getUserFromRedis(HttpSession session) throws JsonMappingException, JsonProcessingException {
+	private User getUserFromRedis(HttpSession session) {
 		Long id = (Long)session.getAttribute(KEY_USER_ID);
 		if (id != null) {
-			String s = redisService.hget(KEY_USERS, id.toString());
-			if (s != null) {
-				return objectMapper.readValue(s, User.class);
+			User user = userRedisStore.getCached(id);
+			if (user != null) {
+				return user;
 			}
 		}
 		logger.info("get User from redis" + id);
@@ -103,7 +115,6 @@ public class UserController {
 		try {
 			User user = userService.register(email, password, name);
 			logger.info("user registered: {}", user.getEmail());
-			messaginService.sendMailMessage(MailMessage.registration(user.getEmail(), user.getName()));
 		} catch (Exception e) {
 			e.printStackTrace();
 			Map<String, String> info = new HashMap<String, String>();
@@ -124,12 +135,16 @@ public class UserController {
 	}
 	
 	@PostMapping("/signin")
-	public ModelAndView doSignin(@RequestParam("email")String email, @RequestParam("password")String password, HttpSession session) throws JsonProcessingException {
+	public ModelAndView doSignin(@RequestParam("email")String email, @RequestParam("password")String password, HttpSession session, HttpServletRequest request) {
+		signinRateLimiter.check(email, request.getRemoteAddr());
 		try {
 			User user = userService.signin(email, password);
 			session.setAttribute(KEY_USER, user);
 			putUserInToRedis(user);
 		} catch (Exception e) {
+			if (e instanceof SigninException) {
+				signinRateLimiter.recordFailure(email, request.getRemoteAddr());
+			}
 			e.printStackTrace();
 			Map<String, String> info = new HashMap<>();
 			info.put("email", email);
@@ -146,7 +161,7 @@ public class UserController {
 	 */
 	@GetMapping("/profile")
 	@RoutingWithSlave//<-- 指示在此方法中使用slave数据库
-	public ModelAndView profile(HttpSession session) throws JsonMappingException, JsonProcessingException {
+	public ModelAndView profile(HttpSession session) {
 		User user = (User)session.getAttribute(KEY_USER);
 		User userRedis = getUserFromRedis(session);//需要获取User时，从Redis取出：
 		if (userRedis != null) {
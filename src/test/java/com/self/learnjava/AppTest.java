@@ -1,15 +0,0 @@
-package com.self.learnjava;
-
-
-/**
- * Unit test for simple App.
- */
-public class AppTest 
-{
-    /**
-     * Rigorous Test :-)
-     */
-    public void shouldAnswerWithTrue()
-    {
-    }
-}
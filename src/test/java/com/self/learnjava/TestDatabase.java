@@ -0,0 +1,42 @@
+package com.self.learnjava;
+
+import java.util.UUID;
+
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+/*
+ * 测试使用的HSQLDB内存数据库，每个实例是一个独立的数据库，表由DatabaseInitializer创建。
+ * 使用MVCC，与其他连接并发读写时不会互相阻塞：
+ */
+public class TestDatabase {
+
+	public final String url;
+	public final DataSource dataSource;
+	public final JdbcTemplate jdbcTemplate;
+	public final DataSourceTransactionManager transactionManager;
+
+	public TestDatabase() {
+		this.url = "jdbc:hsqldb:mem:test-" + UUID.randomUUID() + ";hsqldb.tx=mvcc";
+		this.dataSource = new DriverManagerDataSource(url, "sa", "");
+		this.jdbcTemplate = new JdbcTemplate(dataSource);
+		this.transactionManager = new DataSourceTransactionManager(dataSource);
+		DatabaseInitializer initializer = new DatabaseInitializer();
+		initializer.jdbcTemplate = jdbcTemplate;
+		initializer.init();
+	}
+
+	/*
+	 * 同一个数据库的另一个DataSource，不会参与dataSource上的事务，用来模拟其他节点的并发写入：
+	 */
+	public JdbcTemplate otherClient() {
+		return new JdbcTemplate(new DriverManagerDataSource(url, "sa", ""));
+	}
+
+	public void shutdown() {
+		jdbcTemplate.execute("SHUTDOWN");
+	}
+}
@@ -0,0 +1,61 @@
+package com.self.learnjava.config;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+
+/*
+ * CircuitBreaker的状态变化：CLOSED -> OPEN -> HALF_OPEN -> CLOSED/OPEN。
+ */
+public class CircuitBreakerTest {
+
+	@Test
+	public void opensAfterConsecutiveFailures() {
+		CircuitBreaker breaker = new CircuitBreaker(3, Duration.ofMinutes(1));
+		breaker.recordFailure();
+		breaker.recordFailure();
+		// 成功会清零连续失败次数:
+		breaker.recordSuccess();
+		breaker.recordFailure();
+		breaker.recordFailure();
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		breaker.recordFailure();
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertEquals(1, breaker.getOpenCount());
+		assertFalse(breaker.allowRequest());
+	}
+
+	@Test
+	public void halfOpenProbeClosesOnSuccess() throws InterruptedException {
+		CircuitBreaker breaker = new CircuitBreaker(1, Duration.ofMillis(50));
+		breaker.recordFailure();
+		assertFalse(breaker.allowRequest());
+		Thread.sleep(80);
+		assertTrue(breaker.allowRequest());
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		// 试探期间其他请求仍然被拒绝:
+		assertFalse(breaker.allowRequest());
+		breaker.recordSuccess();
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		assertTrue(breaker.allowRequest());
+	}
+
+	@Test
+	public void halfOpenProbeReopensOnFailure() throws InterruptedException {
+		CircuitBreaker breaker = new CircuitBreaker(5, Duration.ofMillis(50));
+		for (int i = 0; i < 5; i++) {
+			breaker.recordFailure();
+		}
+		Thread.sleep(80);
+		assertTrue(breaker.allowRequest());
+		// HALF_OPEN时一次失败就重新打开:
+		breaker.recordFailure();
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertEquals(2, breaker.getOpenCount());
+		assertFalse(breaker.allowRequest());
+	}
+}
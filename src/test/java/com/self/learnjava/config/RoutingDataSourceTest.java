@@ -0,0 +1,217 @@
+package com.self.learnjava.config;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import javax.sql.DataSource;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.datasource.AbstractDataSource;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+/*
+ * RoutingDataSource的路由：从库读、read-your-writes窗口内读主库、从库获取连接失败或断路器打开时溢出到主库，
+ * 以及ReplicaGroup的健康检查。
+ * 主库和从库是两个HSQLDB内存数据库，通过连接的URL区分。
+ */
+public class RoutingDataSourceTest {
+
+	private final String masterUrl = "jdbc:hsqldb:mem:master-" + UUID.randomUUID();
+	private final String replicaUrl = "jdbc:hsqldb:mem:replica-" + UUID.randomUUID();
+
+	private final DataSource master = new DriverManagerDataSource(masterUrl, "sa", "");
+
+	@BeforeEach
+	public void setUp() {
+		RequestContextHolder.resetRequestAttributes();
+	}
+
+	@AfterEach
+	public void tearDown() {
+		RequestContextHolder.resetRequestAttributes();
+	}
+
+	/*
+	 * 与RoutingDataSourceConfiguration相同的装配方式：
+	 */
+	private RoutingDataSource routing(ReplicaGroup group) {
+		RoutingDataSource ds = new RoutingDataSource(master, group);
+		Map<Object, Object> info = new HashMap<>();
+		info.put(RoutingDataSourceContext.MASTER_DATASOURCE, master);
+		info.put(RoutingDataSourceContext.SLAVE_DATASOURCE, group.getReplicas().get(0));
+		ds.setTargetDataSources(info);
+		ds.setDefaultTargetDataSource(master);
+		ds.setReadYourWritesWindow(Duration.ofSeconds(5));
+		ds.afterPropertiesSet();
+		return ds;
+	}
+
+	private static ReplicaGroup group(Replica replica) {
+		return new ReplicaGroup(Collections.singletonList(replica), ReplicaSelectionStrategy.of(ReplicaSelectionStrategy.ROUND_ROBIN), null);
+	}
+
+	private static String urlOf(DataSource ds) throws SQLException {
+		try (Connection conn = ds.getConnection()) {
+			return conn.getMetaData().getURL();
+		}
+	}
+
+	private static String urlOf(DataSource ds, String key) throws SQLException {
+		try (RoutingDataSourceContext ctx = new RoutingDataSourceContext(key)) {
+			return urlOf(ds);
+		}
+	}
+
+	@Test
+	public void routesByKey() throws SQLException {
+		Replica replica = new Replica("replica-1", new DriverManagerDataSource(replicaUrl, "sa", ""), 1, new CircuitBreaker(3, Duration.ofMinutes(1)));
+		RoutingDataSource ds = routing(group(replica));
+		assertEquals(masterUrl, urlOf(ds));
+		assertEquals(replicaUrl, urlOf(ds, RoutingDataSourceContext.SLAVE_DATASOURCE));
+		assertEquals(masterUrl, urlOf(ds, RoutingDataSourceContext.MASTER_DATASOURCE));
+	}
+
+	@Test
+	public void nestedContextRestoresOuterKey() throws SQLException {
+		Replica replica = new Replica("replica-1", new DriverManagerDataSource(replicaUrl, "sa", ""), 1, new CircuitBreaker(3, Duration.ofMinutes(1)));
+		RoutingDataSource ds = routing(group(replica));
+		try (RoutingDataSourceContext outer = new RoutingDataSourceContext(RoutingDataSourceContext.SLAVE_DATASOURCE)) {
+			assertEquals(masterUrl, urlOf(ds, RoutingDataSourceContext.MASTER_DATASOURCE));
+			assertEquals(replicaUrl, urlOf(ds));
+		}
+		assertEquals(masterUrl, urlOf(ds));
+	}
+
+	@Test
+	public void readsOwnWritesFromMaster() throws SQLException {
+		Replica replica = new Replica("replica-1", new DriverManagerDataSource(replicaUrl, "sa", ""), 1, new CircuitBreaker(3, Duration.ofMinutes(1)));
+		RoutingDataSource ds = routing(group(replica));
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(request));
+		// 没有Session时不记录写入，读从库:
+		RoutingDataSourceContext.markLastWrite();
+		assertEquals(replicaUrl, urlOf(ds, RoutingDataSourceContext.SLAVE_DATASOURCE));
+		request.getSession(true);
+		RoutingDataSourceContext.markLastWrite();
+		assertEquals(masterUrl, urlOf(ds, RoutingDataSourceContext.SLAVE_DATASOURCE));
+		// 其他Session不受影响:
+		RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(new MockHttpServletRequest()));
+		assertEquals(replicaUrl, urlOf(ds, RoutingDataSourceContext.SLAVE_DATASOURCE));
+	}
+
+	@Test
+	public void spillsOverToMasterWhenReplicaFails() throws SQLException {
+		AtomicInteger attempts = new AtomicInteger();
+		DataSource broken = new AbstractDataSource() {
+			@Override
+			public Connection getConnection() throws SQLException {
+				attempts.incrementAndGet();
+				throw new SQLException("Connection refused");
+			}
+
+			@Override
+			public Connection getConnection(String username, String password) throws SQLException {
+				return getConnection();
+			}
+		};
+		Replica replica = new Replica("replica-1", broken, 1, new CircuitBreaker(2, Duration.ofMinutes(1)));
+		ReplicaGroup group = group(replica);
+		RoutingDataSource ds = routing(group);
+		assertEquals(masterUrl, urlOf(ds, RoutingDataSourceContext.SLAVE_DATASOURCE));
+		assertEquals(masterUrl, urlOf(ds, RoutingDataSourceContext.SLAVE_DATASOURCE));
+		assertEquals(2, group.getSpillOverErrorCount());
+		assertEquals(CircuitBreaker.State.OPEN, replica.getCircuitBreaker().getState());
+		// 断路器打开后不再尝试从库，直接读主库:
+		assertEquals(masterUrl, urlOf(ds, RoutingDataSourceContext.SLAVE_DATASOURCE));
+		assertEquals(2, attempts.get());
+		assertEquals(1, group.getSpillOverUnavailableCount());
+	}
+
+	@Test
+	public void skipsUnhealthyReplica() throws SQLException {
+		Replica replica = new Replica("replica-1", new DriverManagerDataSource(replicaUrl, "sa", ""), 1, new CircuitBreaker(3, Duration.ofMinutes(1)));
+		ReplicaGroup group = group(replica);
+		RoutingDataSource ds = routing(group);
+		replica.setHealthy(false);
+		assertEquals(masterUrl, urlOf(ds, RoutingDataSourceContext.SLAVE_DATASOURCE));
+		replica.setHealthy(true);
+		assertEquals(replicaUrl, urlOf(ds, RoutingDataSourceContext.SLAVE_DATASOURCE));
+	}
+
+	/*
+	 * 连接池被业务请求占满时从库只是忙，健康检查不能把它移出轮询：
+	 */
+	@Test
+	public void busyReplicaStaysUp() throws SQLException {
+		HikariDataSource pool = new HikariDataSource();
+		pool.setJdbcUrl(replicaUrl);
+		pool.setUsername("sa");
+		pool.setMaximumPoolSize(1);
+		pool.setConnectionTimeout(250);
+		try (HikariDataSource target = pool) {
+			Replica replica = new Replica("replica-1", target, 1, new CircuitBreaker(3, Duration.ofMinutes(1)));
+			ReplicaGroup group = group(replica);
+			try (Connection conn = target.getConnection()) {
+				assertTrue(replica.isSaturated());
+				group.checkHealth();
+				assertTrue(replica.isHealthy());
+			}
+			group.checkHealth();
+			assertTrue(replica.isHealthy());
+		}
+	}
+
+	@Test
+	public void healthCheckTreatsPoolTimeoutAsBusy() {
+		AtomicInteger failures = new AtomicInteger();
+		DataSource busy = failing(() -> new SQLTransientConnectionException("Connection is not available, request timed out after 250ms."));
+		DataSource down = failing(() -> {
+			failures.incrementAndGet();
+			return new SQLTransientConnectionException("Connection is not available, request timed out after 250ms.", "08001",
+					new SQLException("Connection refused"));
+		});
+		Replica busyReplica = new Replica("replica-1", busy, 1, new CircuitBreaker(3, Duration.ofMinutes(1)));
+		Replica downReplica = new Replica("replica-2", down, 1, new CircuitBreaker(3, Duration.ofMinutes(1)));
+		ReplicaGroup group = new ReplicaGroup(Arrays.asList(busyReplica, downReplica),
+				ReplicaSelectionStrategy.of(ReplicaSelectionStrategy.ROUND_ROBIN), null);
+		group.checkHealth();
+		assertTrue(busyReplica.isHealthy());
+		assertFalse(downReplica.isHealthy());
+		assertEquals(1, failures.get());
+		assertEquals(Collections.singletonList(busyReplica), group.getAvailableReplicas());
+	}
+
+	private static DataSource failing(Supplier<SQLException> exception) {
+		return new AbstractDataSource() {
+			@Override
+			public Connection getConnection() throws SQLException {
+				throw exception.get();
+			}
+
+			@Override
+			public Connection getConnection(String username, String password) throws SQLException {
+				return getConnection();
+			}
+		};
+	}
+}
@@ -0,0 +1,149 @@
+package com.self.learnjava.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * 测试和基准测试使用的Redis服务器，通过系统属性redis.server选择：
+ * auto：默认，PATH中（或系统属性redis.server.binary指定）有redis-server时启动一个真实的进程，否则使用RespServer；
+ * binary：必须使用redis-server；
+ * in-process：使用RespServer，它只实现了常用命令，数据在内存中，用于没有安装Redis的机器。
+ * 真实的redis-server不持久化，监听一个随机端口，close时结束进程。
+ */
+public interface EmbeddedRedis extends AutoCloseable {
+
+	String AUTO = "auto";
+	String BINARY = "binary";
+	String IN_PROCESS = "in-process";
+
+	String getHost();
+
+	int getPort();
+
+	String getDescription();
+
+	@Override
+	void close();
+
+	static EmbeddedRedis start() {
+		String type = System.getProperty("redis.server", AUTO);
+		if (IN_PROCESS.equals(type)) {
+			return RespServer.start(0);
+		}
+		File binary = RedisServerProcess.findBinary();
+		if (binary != null) {
+			return RedisServerProcess.start(binary);
+		}
+		if (BINARY.equals(type)) {
+			throw new IllegalStateException("redis-server not found in PATH, set -Dredis.server.binary=/path/to/redis-server");
+		}
+		return RespServer.start(0);
+	}
+
+	class RedisServerProcess implements EmbeddedRedis {
+		private final File binary;
+		private final int port;
+		private final Process process;
+
+		RedisServerProcess(File binary, int port, Process process) {
+			this.binary = binary;
+			this.port = port;
+			this.process = process;
+		}
+
+		static File findBinary() {
+			String path = System.getProperty("redis.server.binary");
+			if (path != null) {
+				File f = new File(path);
+				return f.canExecute() ? f : null;
+			}
+			String env = System.getenv("PATH");
+			if (env == null) {
+				return null;
+			}
+			for (String dir : env.split(File.pathSeparator)) {
+				File f = new File(dir, "redis-server");
+				if (f.canExecute()) {
+					return f;
+				}
+			}
+			return null;
+		}
+
+		static RedisServerProcess start(File binary) {
+			int port = freePort();
+			try {
+				Process process = new ProcessBuilder(binary.getAbsolutePath(), "--port", Integer.toString(port), "--bind", "127.0.0.1",
+						"--save", "", "--appendonly", "no").redirectErrorStream(true)
+						.redirectOutput(new File(System.getProperty("java.io.tmpdir"), "redis-server-" + port + ".log")).start();
+				RedisServerProcess server = new RedisServerProcess(binary, port, process);
+				server.awaitListening();
+				return server;
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		private void awaitListening() {
+			long deadline = System.currentTimeMillis() + 10000;
+			while (System.currentTimeMillis() < deadline) {
+				if (!process.isAlive()) {
+					throw new IllegalStateException("redis-server exited with code " + process.exitValue());
+				}
+				try (Socket socket = new Socket()) {
+					socket.connect(new InetSocketAddress(getHost(), port), 100);
+					return;
+				} catch (IOException e) {
+					try {
+						Thread.sleep(50);
+					} catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+						break;
+					}
+				}
+			}
+			close();
+			throw new IllegalStateException("redis-server did not start listening on port " + port);
+		}
+
+		@Override
+		public String getHost() {
+			return "127.0.0.1";
+		}
+
+		@Override
+		public int getPort() {
+			return port;
+		}
+
+		@Override
+		public String getDescription() {
+			return binary.getAbsolutePath();
+		}
+
+		@Override
+		public void close() {
+			process.destroy();
+			try {
+				if (!process.waitFor(5, TimeUnit.SECONDS)) {
+					process.destroyForcibly();
+				}
+			} catch (InterruptedException e) {
+				process.destroyForcibly();
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	static int freePort() {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package com.self.learnjava.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jms.MessageProducer;
+import javax.jms.Queue;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.self.learnjava.web.MailMessage;
+
+/*
+ * MailBatchConsumer处理一批消息：成功的邮件随整批确认，重试后仍然失败的带上重投次数重新发送到队列，
+ * 超过max-redeliveries后发送到dead-letter-queue。JMS的Session、MessageProducer和消息用动态代理模拟。
+ */
+public class MailBatchConsumerTest {
+
+	static final String DLQ = "/jms/queue/mail.dlq";
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+
+	// 总是发送失败的收件人，以及每个收件人被发送的次数:
+	private final Set<String> failing = new HashSet<>();
+	private final Map<String, Integer> attempts = new HashMap<>();
+
+	// 重新发送的消息：队列名和消息:
+	private final List<String> sentQueues = new ArrayList<>();
+	private final List<TextMessage> sentMessages = new ArrayList<>();
+
+	private MailBatchConsumer consumer;
+
+	@BeforeEach
+	public void setUp() {
+		this.consumer = new MailBatchConsumer();
+		consumer.objectMapper = objectMapper;
+		consumer.mailService = new MailService() {
+			@Override
+			public List<MailMessage> sendMails(MailMessage.Type type, List<MailMessage> mms) {
+				List<MailMessage> failed = new ArrayList<>();
+				for (MailMessage mm : mms) {
+					attempts.merge(mm.email, 1, Integer::sum);
+					if (failing.contains(mm.email)) {
+						failed.add(mm);
+					}
+				}
+				return failed;
+			}
+		};
+		consumer.maxAttempts = 3;
+		consumer.maxRedeliveries = 2;
+		consumer.deadLetterQueue = DLQ;
+	}
+
+	@Test
+	public void redeliversOnlyFailedMails() throws Exception {
+		failing.add("b@example.com");
+		consumer.process(session(), producer(), Arrays.asList(mail("a@example.com"), mail("b@example.com"), mail("c@example.com")));
+		// 整批发送一次，失败的再逐条重试两次:
+		assertEquals(Integer.valueOf(1), attempts.get("a@example.com"));
+		assertEquals(Integer.valueOf(3), attempts.get("b@example.com"));
+		assertEquals(Collections.singletonList(MessaginService.MAIL_QUEUE), sentQueues);
+		TextMessage redelivered = sentMessages.get(0);
+		assertEquals("b@example.com", objectMapper.readValue(redelivered.getText(), MailMessage.class).email);
+		assertEquals(1, redelivered.getIntProperty(MailBatchConsumer.REDELIVERIES));
+	}
+
+	@Test
+	public void movesToDeadLetterQueueAfterMaxRedeliveries() throws Exception {
+		failing.add("b@example.com");
+		TextMessage message = mail("b@example.com");
+		message.setIntProperty(MailBatchConsumer.REDELIVERIES, 1);
+		consumer.process(session(), producer(), Collections.singletonList(message));
+		assertEquals(Collections.singletonList(MessaginService.MAIL_QUEUE), sentQueues);
+		assertEquals(2, sentMessages.get(0).getIntProperty(MailBatchConsumer.REDELIVERIES));
+		consumer.process(session(), producer(), Collections.singletonList(sentMessages.get(0)));
+		assertEquals(Arrays.asList(MessaginService.MAIL_QUEUE, DLQ), sentQueues);
+		assertEquals(3, sentMessages.get(1).getIntProperty(MailBatchConsumer.REDELIVERIES));
+	}
+
+	@Test
+	public void discardsUnparsableMessages() throws Exception {
+		consumer.process(session(), producer(), Arrays.asList(textMessage("not json"), mail("a@example.com")));
+		assertEquals(Integer.valueOf(1), attempts.get("a@example.com"));
+		assertTrue(sentQueues.isEmpty());
+	}
+
+	private TextMessage mail(String email) throws Exception {
+		return textMessage(objectMapper.writeValueAsString(MailMessage.registration(email, "name")));
+	}
+
+	/*
+	 * 只实现MailBatchConsumer用到的方法：getText/setText和int属性：
+	 */
+	static TextMessage textMessage(String text) {
+		String[] body = { text };
+		Map<String, Object> properties = new HashMap<>();
+		return (TextMessage) Proxy.newProxyInstance(TextMessage.class.getClassLoader(), new Class<?>[] { TextMessage.class }, (proxy, method, args) -> {
+			switch (method.getName()) {
+			case "getText":
+				return body[0];
+			case "setText":
+				body[0] = (String) args[0];
+				return null;
+			case "propertyExists":
+				return properties.containsKey(args[0]);
+			case "getIntProperty":
+				return properties.get(args[0]);
+			case "setIntProperty":
+				properties.put((String) args[0], args[1]);
+				return null;
+			default:
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+
+	private Session session() {
+		return (Session) Proxy.newProxyInstance(Session.class.getClassLoader(), new Class<?>[] { Session.class }, (proxy, method, args) -> {
+			switch (method.getName()) {
+			case "createTextMessage":
+				return textMessage((String) args[0]);
+			case "createQueue":
+				String name = (String) args[0];
+				return Proxy.newProxyInstance(Queue.class.getClassLoader(), new Class<?>[] { Queue.class }, (q, m, a) -> {
+					if (m.getName().equals("getQueueName")) {
+						return name;
+					}
+					throw new UnsupportedOperationException(m.getName());
+				});
+			default:
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+
+	private MessageProducer producer() {
+		return (MessageProducer) Proxy.newProxyInstance(MessageProducer.class.getClassLoader(), new Class<?>[] { MessageProducer.class },
+				(proxy, method, args) -> {
+					if (method.getName().equals("send") && args.length == 2) {
+						sentQueues.add(((Queue) args[0]).getQueueName());
+						sentMessages.add((TextMessage) args[1]);
+						return null;
+					}
+					throw new UnsupportedOperationException(method.getName());
+				});
+	}
+}
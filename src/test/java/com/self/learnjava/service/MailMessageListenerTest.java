@@ -0,0 +1,229 @@
+package com.self.learnjava.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Queue;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jms.connection.CachingConnectionFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.self.learnjava.web.MailMessage;
+
+/*
+ * MailMessageListener的消费线程：发送成功后在消费线程上确认消息；消费线程出错时关闭真正的Session，
+ * 未确认的消息由Artemis重新投递。与Spring Boot的自动配置一样用CachingConnectionFactory包装ConnectionFactory，
+ * Artemis的Connection、Session和消息用动态代理模拟。
+ */
+public class MailMessageListenerTest {
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+
+	// 每个Session依次收到的消息，null表示没有消息，JMSException表示连接出错:
+	private final List<List<Object>> deliveries = new CopyOnWriteArrayList<>();
+	private final List<FakeSession> sessions = new CopyOnWriteArrayList<>();
+
+	// MailDispatcher返回的发送结果，测试中手动完成:
+	private final List<CompletableFuture<Void>> sends = new CopyOnWriteArrayList<>();
+
+	private MailMessageListener listener;
+
+	@BeforeEach
+	public void setUp() {
+		this.listener = new MailMessageListener();
+		listener.connectionFactory = new CachingConnectionFactory(connectionFactory());
+		listener.objectMapper = objectMapper;
+		listener.mailDispatcher = new MailDispatcher() {
+			@Override
+			public CompletableFuture<Void> dispatch(MailMessage mm) {
+				CompletableFuture<Void> future = new CompletableFuture<>();
+				sends.add(future);
+				return future;
+			}
+		};
+		listener.consumers = 1;
+		listener.maxRedeliveries = 5;
+		listener.deadLetterQueue = "/jms/queue/mail.dlq";
+		listener.shutdownTimeout = Duration.ofMillis(100);
+	}
+
+	@AfterEach
+	public void tearDown() throws InterruptedException {
+		listener.stop();
+	}
+
+	@Test
+	public void acknowledgesSentMailOnConsumerThread() throws Exception {
+		FakeMessage message = mail("bob@example.com");
+		deliveries.add(new CopyOnWriteArrayList<>(new Object[] { message.message }));
+		listener.start();
+		await(() -> sends.size() == 1);
+		assertFalse(message.acknowledged.get());
+		sends.get(0).complete(null);
+		await(() -> message.acknowledged.get());
+		assertEquals(1, sessions.size());
+	}
+
+	/*
+	 * 消息已经交给MailDispatcher但还没有发送完成时连接出错：关闭的必须是Artemis的Session，
+	 * 不能只是放回CachingConnectionFactory的缓存，否则未确认的消息不会被重新投递：
+	 */
+	@Test
+	public void closesRealSessionOnFailure() throws Exception {
+		FakeMessage message = mail("bob@example.com");
+		deliveries.add(new CopyOnWriteArrayList<>(new Object[] { message.message, new JMSException("connection lost") }));
+		listener.start();
+		await(() -> sessions.size() == 2);
+		assertTrue(sessions.get(0).closed.get());
+		assertFalse(message.acknowledged.get());
+		// 之前的发送结果属于已经关闭的Session，不再确认:
+		sends.get(0).complete(null);
+		Thread.sleep(300);
+		assertFalse(message.acknowledged.get());
+	}
+
+	private FakeMessage mail(String email) throws Exception {
+		return new FakeMessage(objectMapper.writeValueAsString(MailMessage.registration(email, "name")));
+	}
+
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!condition.getAsBoolean()) {
+			assertTrue(System.currentTimeMillis() < deadline, "timeout");
+			Thread.sleep(20);
+		}
+	}
+
+	private ConnectionFactory connectionFactory() {
+		return proxy(ConnectionFactory.class, (p, method, args) -> {
+			if (method.getName().equals("createConnection")) {
+				return connection();
+			}
+			return object(p, method.getName(), args);
+		});
+	}
+
+	private Connection connection() {
+		return proxy(Connection.class, (p, method, args) -> {
+			switch (method.getName()) {
+			case "createSession":
+				FakeSession session = new FakeSession(sessions.size() < deliveries.size() ? deliveries.get(sessions.size()) : null);
+				sessions.add(session);
+				return session.session;
+			case "start":
+			case "stop":
+			case "close":
+			case "setExceptionListener":
+			case "getExceptionListener":
+				return null;
+			default:
+				return object(p, method.getName(), args);
+			}
+		});
+	}
+
+	/*
+	 * 一个Artemis Session，只实现MailMessageListener用到的方法：
+	 */
+	static class FakeSession {
+		final AtomicBoolean closed = new AtomicBoolean();
+		final Session session;
+
+		FakeSession(List<Object> deliveries) {
+			MessageConsumer consumer = proxy(MessageConsumer.class, (p, method, args) -> {
+				switch (method.getName()) {
+				case "receive":
+					if (deliveries == null || deliveries.isEmpty()) {
+						Thread.sleep(10);
+						return null;
+					}
+					Object next = deliveries.remove(0);
+					if (next instanceof JMSException) {
+						throw (JMSException) next;
+					}
+					return next;
+				case "close":
+					return null;
+				default:
+					return object(p, method.getName(), args);
+				}
+			});
+			MessageProducer producer = proxy(MessageProducer.class, (p, method, args) -> object(p, method.getName(), args));
+			this.session = proxy(Session.class, (p, method, args) -> {
+				switch (method.getName()) {
+				case "createQueue":
+					return proxy(Queue.class, (q, m, a) -> object(q, m.getName(), a));
+				case "createConsumer":
+					return consumer;
+				case "createProducer":
+					return producer;
+				case "close":
+					closed.set(true);
+					return null;
+				default:
+					return object(p, method.getName(), args);
+				}
+			});
+		}
+	}
+
+	static class FakeMessage {
+		final AtomicBoolean acknowledged = new AtomicBoolean();
+		final TextMessage message;
+
+		FakeMessage(String text) {
+			this.message = proxy(TextMessage.class, (p, method, args) -> {
+				switch (method.getName()) {
+				case "getText":
+					return text;
+				case "acknowledge":
+					acknowledged.set(true);
+					return null;
+				default:
+					return object(p, method.getName(), args);
+				}
+			});
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	static <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler);
+	}
+
+	/*
+	 * 代理对象的Object方法，其他方法都不支持：
+	 */
+	static Object object(Object proxy, String method, Object[] args) {
+		switch (method) {
+		case "toString":
+			return proxy.getClass().getInterfaces()[0].getSimpleName();
+		case "hashCode":
+			return System.identityHashCode(proxy);
+		case "equals":
+			return proxy == args[0];
+		default:
+			throw new UnsupportedOperationException(method);
+		}
+	}
+}
@@ -0,0 +1,175 @@
+package com.self.learnjava.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.self.learnjava.TestDatabase;
+
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+
+/*
+ * OutboxRelay：按id顺序取出未发送的消息，按destination分组发送后标记为已发送；
+ * 发送失败时消息保留在outbox中等待下次发送；多个节点通过Redis锁保证同一时间只有一个节点在发送。
+ */
+public class OutboxRelayTest {
+
+	static final String QUEUE_A = "/jms/queue/a";
+	static final String QUEUE_B = "/jms/queue/b";
+
+	private TestDatabase db;
+	private EmbeddedRedis server;
+	private RedisClient redisClient;
+	private RedisService redisService;
+
+	// destination -> 收到的消息，按发送顺序:
+	private final Map<String, List<String>> sent = new ConcurrentHashMap<>();
+	private volatile RuntimeException sendFailure;
+
+	private OutboxRelay relay;
+	private OutboxService outboxService;
+
+	@BeforeEach
+	public void setUp() {
+		this.db = new TestDatabase();
+		this.server = EmbeddedRedis.start();
+		this.redisClient = RedisClient.create(RedisURI.create(server.getHost(), server.getPort()));
+		this.redisService = RedisServiceBenchmark.createRedisService(redisClient, RedisService.MODE_POOLED);
+		this.relay = new OutboxRelay();
+		relay.jdbcTemplate = db.jdbcTemplate;
+		relay.transactionManager = db.transactionManager;
+		relay.messageTransport = (destination, texts) -> {
+			if (sendFailure != null) {
+				throw sendFailure;
+			}
+			sent.computeIfAbsent(destination, d -> new CopyOnWriteArrayList<>()).addAll(texts);
+		};
+		relay.redisService = redisService;
+		relay.batchSize = 100;
+		relay.pollInterval = Duration.ofSeconds(10);
+		relay.lockTtl = Duration.ofSeconds(30);
+		relay.retention = Duration.ofDays(1);
+		relay.init();
+		this.outboxService = new OutboxService();
+		outboxService.jdbcTemplate = db.jdbcTemplate;
+		outboxService.objectMapper = new ObjectMapper();
+		outboxService.outboxRelay = relay;
+	}
+
+	@AfterEach
+	public void tearDown() throws InterruptedException {
+		relay.stop();
+		redisService.shutdown();
+		redisClient.shutdown();
+		server.close();
+		db.shutdown();
+	}
+
+	private void add(String destination, String... messages) {
+		new TransactionTemplate(db.transactionManager).execute(status -> {
+			outboxService.addAll(destination, Arrays.asList(messages));
+			return null;
+		});
+	}
+
+	@Test
+	public void sendsGroupedByDestinationInOrderAndMarksSent() {
+		add(QUEUE_A, "a1");
+		add(QUEUE_B, "b1");
+		add(QUEUE_A, "a2", "a3");
+		assertEquals(4, relay.relay());
+		assertEquals(Arrays.asList("\"a1\"", "\"a2\"", "\"a3\""), sent.get(QUEUE_A));
+		assertEquals(Collections.singletonList("\"b1\""), sent.get(QUEUE_B));
+		assertEquals(0, unsent());
+		// 已发送的不会再发送:
+		assertEquals(0, relay.relay());
+		assertEquals(3, sent.get(QUEUE_A).size());
+	}
+
+	@Test
+	public void sendsAtMostBatchSize() {
+		relay.batchSize = 2;
+		add(QUEUE_A, "a1", "a2", "a3");
+		assertEquals(2, relay.relay());
+		assertEquals(1, relay.relay());
+		assertEquals(Arrays.asList("\"a1\"", "\"a2\"", "\"a3\""), sent.get(QUEUE_A));
+	}
+
+	@Test
+	public void keepsMessagesWhenSendFails() {
+		add(QUEUE_A, "a1", "a2");
+		sendFailure = new RuntimeException("broker down");
+		assertThrows(RuntimeException.class, relay::relay);
+		assertEquals(2, unsent());
+		sendFailure = null;
+		assertEquals(2, relay.relay());
+		assertEquals(0, unsent());
+	}
+
+	@Test
+	public void rolledBackMessagesAreNeverSent() {
+		TransactionTemplate tx = new TransactionTemplate(db.transactionManager);
+		tx.execute(status -> {
+			outboxService.add(QUEUE_A, "a1");
+			status.setRollbackOnly();
+			return null;
+		});
+		assertEquals(0, relay.relay());
+		assertTrue(sent.isEmpty());
+	}
+
+	/*
+	 * 其他节点持有锁时不发送，锁释放后由后台线程发送：
+	 */
+	@Test
+	public void backgroundRelayWaitsForLock() throws InterruptedException {
+		assertTrue(redisService.tryLock(OutboxRelay.LOCK_KEY, "other-node", Duration.ofSeconds(30)));
+		relay.pollInterval = Duration.ofMillis(50);
+		relay.start();
+		add(QUEUE_A, "a1");
+		Thread.sleep(300);
+		assertTrue(sent.isEmpty());
+		assertTrue(redisService.unlock(OutboxRelay.LOCK_KEY, "other-node"));
+		assertEquals(Collections.singletonList("\"a1\""), awaitSent(QUEUE_A, 1));
+		// 发送之后释放了锁:
+		long deadline = System.currentTimeMillis() + 5000;
+		boolean locked = false;
+		while (!locked && System.currentTimeMillis() < deadline) {
+			locked = redisService.tryLock(OutboxRelay.LOCK_KEY, "other-node", Duration.ofSeconds(30));
+			Thread.sleep(20);
+		}
+		assertTrue(locked);
+	}
+
+	private List<String> awaitSent(String destination, int n) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (System.currentTimeMillis() < deadline) {
+			List<String> messages = sent.get(destination);
+			if (messages != null && messages.size() >= n) {
+				return new ArrayList<>(messages);
+			}
+			Thread.sleep(20);
+		}
+		return sent.get(destination);
+	}
+
+	private long unsent() {
+		return db.jdbcTemplate.queryForObject("SELECT COUNT(*) FROM outbox WHERE sentAt IS NULL", Long.class);
+	}
+}
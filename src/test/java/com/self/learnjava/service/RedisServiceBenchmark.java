@@ -0,0 +1,194 @@
+package com.self.learnjava.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.self.learnjava.entity.User;
+
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.RedisURI;
+
+/*
+ * RedisService热点路径的基准测试：get/set/hget/hgetall，连接池(pooled)和共享连接(shared)，
+ * 以及每次一个命令和用管道一次发送BATCH个命令。
+ * Throughput给出每秒操作数，SampleTime给出每个操作耗时的分布（包括p0.99）。
+ * 服务器由EmbeddedRedis选择，有redis-server时启动真实的进程，否则使用进程内的RespServer，
+ * 两者的绝对数值不能互相比较，只比较同一种服务器下修改前后的结果。
+ * 运行：mvn -P benchmark test-compile exec:exec，结果写入target/jmh-result.json。
+ * 只运行部分测试：mvn -P benchmark test-compile exec:exec -Djmh.args="RedisServiceBenchmark.get -p mode=shared"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+@Threads(8)
+public class RedisServiceBenchmark {
+
+	static final int BATCH = 16;
+	static final int KEYS = 1000;
+
+	@Param({ RedisService.MODE_POOLED, RedisService.MODE_SHARED })
+	String mode;
+
+	private EmbeddedRedis server;
+	private RedisClient redisClient;
+	private RedisService redisService;
+
+	private String[] keys;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		this.server = EmbeddedRedis.start();
+		this.redisClient = RedisClient.create(RedisURI.create(server.getHost(), server.getPort()));
+		this.redisService = createRedisService(redisClient, mode);
+		this.keys = new String[KEYS];
+		Map<String, String> fields = new HashMap<>();
+		for (int i = 0; i < KEYS; i++) {
+			keys[i] = "bench:key:" + i;
+			redisService.set(keys[i], "value-" + i);
+			redisService.set("bench:user:" + i, user(i));
+			fields.put(Integer.toString(i), "value-" + i);
+		}
+		redisService.hmset("bench:hash", fields);
+		Map<String, String> small = new HashMap<>();
+		for (int i = 0; i < 10; i++) {
+			small.put("field" + i, "value-" + i);
+		}
+		redisService.hmset("bench:small-hash", small);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		redisService.shutdown();
+		server.close();
+	}
+
+	/*
+	 * 不启动Spring，按RedisService的依赖手动装配，配置与application.yml的默认值相同：
+	 */
+	static RedisService createRedisService(RedisClient redisClient, String mode) {
+		// 与Spring Boot自动配置的ObjectMapper一样忽略未知属性（例如User的createdDateTime）:
+		JacksonValueCodec json = new JacksonValueCodec(new ObjectMapper().disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES));
+		UserValueCodec compact = new UserValueCodec();
+		compact.jacksonValueCodec = json;
+		RedisService redisService = new RedisService();
+		redisService.redisClient = redisClient;
+		redisService.mode = mode;
+		redisService.poolProperties = new RedisPoolProperties();
+		redisService.poolMetrics = new RedisPoolMetrics();
+		redisService.valueCodecs = Arrays.asList(compact, json);
+		redisService.jacksonValueCodec = json;
+		redisService.valueCodec = "compact";
+		// 客户端缓存默认关闭:
+		redisService.clientSideCache = new RedisClientSideCache();
+		redisService.init();
+		return redisService;
+	}
+
+	static User user(long id) {
+		User user = new User();
+		user.setId(id);
+		user.setEmail("user" + id + "@example.com");
+		user.setName("User " + id);
+		user.setPassword("password" + id);
+		user.setCreatedAt(System.currentTimeMillis());
+		return user;
+	}
+
+	@State(Scope.Thread)
+	public static class Cursor {
+		int next;
+
+		int next() {
+			next = (next + 1) % KEYS;
+			return next;
+		}
+	}
+
+	@Benchmark
+	public String get(Cursor cursor) {
+		return redisService.get(keys[cursor.next()]);
+	}
+
+	@Benchmark
+	public String set(Cursor cursor) {
+		return redisService.set(keys[cursor.next()], "value");
+	}
+
+	@Benchmark
+	public User getUser(Cursor cursor) {
+		return redisService.get("bench:user:" + cursor.next(), User.class);
+	}
+
+	@Benchmark
+	public String hget(Cursor cursor) {
+		return redisService.hget("bench:hash", Integer.toString(cursor.next()));
+	}
+
+	@Benchmark
+	public Map<String, String> hgetall() {
+		return redisService.hgetall("bench:small-hash");
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void pipelinedGet(Cursor cursor, Blackhole blackhole) {
+		blackhole.consume(redisService.executePipelined(commands -> {
+			List<RedisFuture<String>> futures = new ArrayList<>(BATCH);
+			for (int i = 0; i < BATCH; i++) {
+				futures.add(commands.get(keys[cursor.next()]));
+			}
+			return futures;
+		}));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void pipelinedSet(Cursor cursor, Blackhole blackhole) {
+		blackhole.consume(redisService.executePipelined(commands -> {
+			List<RedisFuture<String>> futures = new ArrayList<>(BATCH);
+			for (int i = 0; i < BATCH; i++) {
+				futures.add(commands.set(keys[cursor.next()], "value"));
+			}
+			return futures;
+		}));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void pipelinedHget(Cursor cursor, Blackhole blackhole) {
+		blackhole.consume(redisService.executePipelined(commands -> {
+			List<RedisFuture<String>> futures = new ArrayList<>(BATCH);
+			for (int i = 0; i < BATCH; i++) {
+				futures.add(commands.hget("bench:hash", Integer.toString(cursor.next())));
+			}
+			return futures;
+		}));
+	}
+}
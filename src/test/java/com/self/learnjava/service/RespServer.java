@@ -0,0 +1,663 @@
+package com.self.learnjava.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * 进程内的RESP2服务器，只用于测试和基准测试，没有redis-server时代替它。
+ * 支持String和Hash的常用命令（GET/SET/PSETEX/MGET/MSET/DEL/EXISTS/EXPIRE/PEXPIRE/HGET/HSET/HSETNX/HGETALL/HMSET/HMGET/HDEL）、
+ * TIME、PUBLISH/SUBSCRIBE/UNSUBSCRIBE以及PING/SELECT/CLIENT/FLUSHDB等连接命令，其他命令返回-ERR。
+ * 没有Lua解释器：EVAL/EVALSHA只认识本项目自己的脚本（按SHA1匹配），由Java代码按相同的语义执行，见SCRIPTS，
+ * 其他脚本返回-ERR；和Redis一样，EVALSHA只能执行已经EVAL过的脚本，否则返回-NOSCRIPT。
+ * 脚本本身的正确性需要用-Dredis.server=binary在真实的redis-server上测试。
+ * 和Redis一样所有命令串行执行（在同一把锁中），每个连接一个线程，支持管道。
+ * 过期时间在访问key时检查，不会主动清理。key和值都按字节保存，key用ISO-8859-1转为String，不会丢失字节。
+ */
+public class RespServer implements EmbeddedRedis {
+
+	final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final ServerSocket serverSocket;
+	private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "resp-server");
+		t.setDaemon(true);
+		return t;
+	});
+
+	// 值为byte[]或Map<String, byte[]>:
+	private final Map<String, Object> data = new HashMap<>();
+	private final Map<String, Long> expires = new HashMap<>();
+	// channel -> 订阅该channel的连接:
+	private final Map<String, Set<OutputStream>> subscribers = new HashMap<>();
+	// 已经EVAL过的脚本的SHA1:
+	private final Set<String> loadedScripts = new HashSet<>();
+
+	/*
+	 * 用Java实现的脚本，参数为KEYS和ARGV，与Lua脚本的返回值相同：
+	 */
+	@FunctionalInterface
+	interface Script {
+		void run(RespServer server, List<byte[]> keys, List<byte[]> argv, OutputStream out) throws IOException;
+	}
+
+	static final Map<String, Script> SCRIPTS = new HashMap<>();
+
+	static {
+		SCRIPTS.put(sha1(RedisService.UNLOCK_SCRIPT), RespServer::unlock);
+		SCRIPTS.put(sha1(UserRedisStore.GUARDED_WRITE_SCRIPT), RespServer::guardedWrite);
+		SCRIPTS.put(sha1(UserKeyMigration.REMOVE_IF_UNCHANGED_SCRIPT), RespServer::removeIfUnchanged);
+		SCRIPTS.put(sha1(SigninRateLimiter.SCRIPT), RespServer::rateLimit);
+	}
+
+	private volatile boolean running = true;
+
+	RespServer(ServerSocket serverSocket) {
+		this.serverSocket = serverSocket;
+	}
+
+	public static RespServer start(int port) {
+		try {
+			RespServer server = new RespServer(new ServerSocket(port, 50, InetAddress.getLoopbackAddress()));
+			server.executor.execute(server::acceptLoop);
+			return server;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public String getHost() {
+		return serverSocket.getInetAddress().getHostAddress();
+	}
+
+	@Override
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	@Override
+	public String getDescription() {
+		return "in-process";
+	}
+
+	@Override
+	public void close() {
+		running = false;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			// ignore
+		}
+		executor.shutdownNow();
+	}
+
+	private void acceptLoop() {
+		while (running) {
+			try {
+				Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				executor.execute(() -> serve(socket));
+			} catch (IOException e) {
+				if (running) {
+					logger.warn("accept failed.", e);
+				}
+			}
+		}
+	}
+
+	private void serve(Socket socket) {
+		OutputStream output = null;
+		try (Socket s = socket) {
+			InputStream input = new BufferedInputStream(s.getInputStream());
+			output = new BufferedOutputStream(s.getOutputStream());
+			while (running) {
+				List<byte[]> command = readCommand(input);
+				if (command == null) {
+					break;
+				}
+				boolean quit = execute(command, output);
+				// 管道中的命令都读完之后再一次写出:
+				if (input.available() == 0 || quit) {
+					output.flush();
+				}
+				if (quit) {
+					break;
+				}
+			}
+		} catch (SocketException | EOFException e) {
+			// 客户端断开
+		} catch (IOException e) {
+			logger.warn("serve connection failed.", e);
+		}
+		synchronized (data) {
+			for (Set<OutputStream> outputs : subscribers.values()) {
+				outputs.remove(output);
+			}
+		}
+	}
+
+	/*
+	 * 读取一个命令：*<n>\r\n后跟n个$<len>\r\n<bytes>\r\n，连接关闭时返回null：
+	 */
+	static List<byte[]> readCommand(InputStream input) throws IOException {
+		int first = input.read();
+		if (first == -1) {
+			return null;
+		}
+		if (first != '*') {
+			throw new IOException("Inline commands are not supported");
+		}
+		int n = (int) readLong(input);
+		List<byte[]> args = new ArrayList<>(n);
+		for (int i = 0; i < n; i++) {
+			if (input.read() != '$') {
+				throw new IOException("Expected bulk string");
+			}
+			int len = (int) readLong(input);
+			byte[] arg = new byte[len];
+			int off = 0;
+			while (off < len) {
+				int r = input.read(arg, off, len - off);
+				if (r == -1) {
+					throw new EOFException();
+				}
+				off += r;
+			}
+			input.read();
+			input.read();
+			args.add(arg);
+		}
+		return args;
+	}
+
+	private static long readLong(InputStream input) throws IOException {
+		long value = 0;
+		boolean negative = false;
+		int b;
+		while ((b = input.read()) != '\r') {
+			if (b == -1) {
+				throw new EOFException();
+			}
+			if (b == '-') {
+				negative = true;
+			} else {
+				value = value * 10 + (b - '0');
+			}
+		}
+		input.read();
+		return negative ? -value : value;
+	}
+
+	private boolean execute(List<byte[]> command, OutputStream out) throws IOException {
+		String name = str(command.get(0)).toUpperCase();
+		synchronized (data) {
+			switch (name) {
+			case "PING":
+				writeSimple(out, "PONG");
+				return false;
+			case "QUIT":
+				writeSimple(out, "OK");
+				return true;
+			case "SELECT":
+			case "CLIENT":
+			case "FLUSHDB":
+			case "FLUSHALL":
+				if (name.startsWith("FLUSH")) {
+					data.clear();
+					expires.clear();
+				}
+				writeSimple(out, "OK");
+				return false;
+			case "GET":
+				writeBulk(out, getString(key(command, 1)));
+				return false;
+			case "SET":
+				set(command, out);
+				return false;
+			case "PSETEX":
+				put(key(command, 1), command.get(3), Long.parseLong(str(command.get(2))));
+				writeSimple(out, "OK");
+				return false;
+			case "MGET":
+				writeArrayHeader(out, command.size() - 1);
+				for (int i = 1; i < command.size(); i++) {
+					writeBulk(out, getString(key(command, i)));
+				}
+				return false;
+			case "MSET":
+				for (int i = 1; i + 1 < command.size(); i += 2) {
+					put(key(command, i), command.get(i + 1), -1);
+				}
+				writeSimple(out, "OK");
+				return false;
+			case "DEL":
+			case "EXISTS":
+				int count = 0;
+				for (int i = 1; i < command.size(); i++) {
+					String key = key(command, i);
+					if (lookup(key) != null) {
+						count++;
+						if (name.equals("DEL")) {
+							data.remove(key);
+							expires.remove(key);
+						}
+					}
+				}
+				writeInteger(out, count);
+				return false;
+			case "EXPIRE":
+			case "PEXPIRE":
+				String key = key(command, 1);
+				long ttl = Long.parseLong(str(command.get(2)));
+				boolean exists = lookup(key) != null;
+				if (exists) {
+					expires.put(key, System.currentTimeMillis() + (name.equals("EXPIRE") ? ttl * 1000 : ttl));
+				}
+				writeInteger(out, exists ? 1 : 0);
+				return false;
+			case "HGET":
+				writeBulk(out, hash(key(command, 1), false).get(key(command, 2)));
+				return false;
+			case "HSET":
+			case "HMSET":
+			case "HSETNX":
+				hset(name, command, out);
+				return false;
+			case "HMGET":
+				Map<String, byte[]> hmget = hash(key(command, 1), false);
+				writeArrayHeader(out, command.size() - 2);
+				for (int i = 2; i < command.size(); i++) {
+					writeBulk(out, hmget.get(key(command, i)));
+				}
+				return false;
+			case "HGETALL":
+				Map<String, byte[]> all = hash(key(command, 1), false);
+				writeArrayHeader(out, all.size() * 2);
+				for (Map.Entry<String, byte[]> entry : all.entrySet()) {
+					writeBulk(out, entry.getKey().getBytes(StandardCharsets.ISO_8859_1));
+					writeBulk(out, entry.getValue());
+				}
+				return false;
+			case "HDEL":
+				List<String> fields = new ArrayList<>();
+				for (int i = 2; i < command.size(); i++) {
+					fields.add(key(command, i));
+				}
+				writeInteger(out, hdel(key(command, 1), fields));
+				return false;
+			case "TIME":
+				long micros = System.currentTimeMillis() * 1000;
+				writeArrayHeader(out, 2);
+				writeBulk(out, bytes(Long.toString(micros / 1000000)));
+				writeBulk(out, bytes(Long.toString(micros % 1000000)));
+				return false;
+			case "EVAL":
+			case "EVALSHA":
+				eval(name, command, out);
+				return false;
+			case "PUBLISH":
+				writeInteger(out, publish(key(command, 1), command.get(2)));
+				return false;
+			case "SUBSCRIBE":
+				for (int i = 1; i < command.size(); i++) {
+					String channel = key(command, i);
+					subscribers.computeIfAbsent(channel, c -> new LinkedHashSet<>()).add(out);
+					writeSubscription(out, "subscribe", channel, countSubscriptions(out));
+				}
+				return false;
+			case "UNSUBSCRIBE":
+				List<String> channels = new ArrayList<>();
+				for (int i = 1; i < command.size(); i++) {
+					channels.add(key(command, i));
+				}
+				if (channels.isEmpty()) {
+					for (Map.Entry<String, Set<OutputStream>> entry : subscribers.entrySet()) {
+						if (entry.getValue().contains(out)) {
+							channels.add(entry.getKey());
+						}
+					}
+				}
+				for (String channel : channels) {
+					Set<OutputStream> outputs = subscribers.get(channel);
+					if (outputs != null) {
+						outputs.remove(out);
+					}
+					writeSubscription(out, "unsubscribe", channel, countSubscriptions(out));
+				}
+				return false;
+			default:
+				writeError(out, "ERR unknown command '" + name + "'");
+				return false;
+			}
+		}
+	}
+
+	/*
+	 * SET key value [EX seconds|PX millis] [NX|XX]：
+	 */
+	private void set(List<byte[]> command, OutputStream out) throws IOException {
+		String key = key(command, 1);
+		long ttl = -1;
+		boolean nx = false;
+		boolean xx = false;
+		for (int i = 3; i < command.size(); i++) {
+			String option = str(command.get(i)).toUpperCase();
+			if (option.equals("EX")) {
+				ttl = Long.parseLong(str(command.get(++i))) * 1000;
+			} else if (option.equals("PX")) {
+				ttl = Long.parseLong(str(command.get(++i)));
+			} else if (option.equals("NX")) {
+				nx = true;
+			} else if (option.equals("XX")) {
+				xx = true;
+			}
+		}
+		boolean exists = lookup(key) != null;
+		if ((nx && exists) || (xx && !exists)) {
+			writeBulk(out, null);
+			return;
+		}
+		put(key, command.get(2), ttl);
+		writeSimple(out, "OK");
+	}
+
+	private void hset(String name, List<byte[]> command, OutputStream out) throws IOException {
+		Map<String, byte[]> hash = hash(key(command, 1), true);
+		int added = 0;
+		for (int i = 2; i + 1 < command.size(); i += 2) {
+			String field = key(command, i);
+			if (name.equals("HSETNX") && hash.containsKey(field)) {
+				continue;
+			}
+			if (hash.put(field, command.get(i + 1)) == null) {
+				added++;
+			}
+		}
+		if (name.equals("HMSET")) {
+			writeSimple(out, "OK");
+		} else {
+			writeInteger(out, added);
+		}
+	}
+
+	private int hdel(String key, List<String> fields) {
+		Map<String, byte[]> hash = hash(key, false);
+		int removed = 0;
+		for (String field : fields) {
+			if (hash.remove(field) != null) {
+				removed++;
+			}
+		}
+		if (hash.isEmpty()) {
+			data.remove(key);
+		}
+		return removed;
+	}
+
+	/*
+	 * 消息直接写入订阅者的连接，调用时已持有data的锁，不会和订阅者连接上的其他回复交错：
+	 */
+	private int publish(String channel, byte[] message) throws IOException {
+		Set<OutputStream> outputs = subscribers.get(channel);
+		if (outputs == null) {
+			return 0;
+		}
+		int received = 0;
+		for (OutputStream o : outputs) {
+			try {
+				writeArrayHeader(o, 3);
+				writeBulk(o, bytes("message"));
+				writeBulk(o, bytes(channel));
+				writeBulk(o, message);
+				o.flush();
+				received++;
+			} catch (IOException e) {
+				// 订阅者已断开，serve结束时会移除
+			}
+		}
+		return received;
+	}
+
+	private int countSubscriptions(OutputStream out) {
+		int count = 0;
+		for (Set<OutputStream> outputs : subscribers.values()) {
+			if (outputs.contains(out)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static void writeSubscription(OutputStream out, String kind, String channel, int count) throws IOException {
+		writeArrayHeader(out, 3);
+		writeBulk(out, bytes(kind));
+		writeBulk(out, bytes(channel));
+		writeInteger(out, count);
+	}
+
+	/*
+	 * EVAL script numkeys key... arg... / EVALSHA sha1 numkeys key... arg...：
+	 */
+	private void eval(String name, List<byte[]> command, OutputStream out) throws IOException {
+		String sha = name.equals("EVAL") ? sha1(str(command.get(1))) : str(command.get(1)).toLowerCase();
+		Script script = SCRIPTS.get(sha);
+		if (name.equals("EVALSHA") && !loadedScripts.contains(sha)) {
+			writeError(out, "NOSCRIPT No matching script. Please use EVAL.");
+			return;
+		}
+		if (script == null) {
+			writeError(out, "ERR script is not supported by RespServer");
+			return;
+		}
+		loadedScripts.add(sha);
+		int numKeys = Integer.parseInt(str(command.get(2)));
+		List<byte[]> keys = command.subList(3, 3 + numKeys);
+		List<byte[]> argv = command.subList(3 + numKeys, command.size());
+		script.run(this, keys, argv, out);
+	}
+
+	/*
+	 * RedisService.UNLOCK_SCRIPT：值等于token时删除：
+	 */
+	private static void unlock(RespServer server, List<byte[]> keys, List<byte[]> argv, OutputStream out) throws IOException {
+		String key = key(keys, 0);
+		byte[] value = server.getString(key);
+		if (value != null && Arrays.equals(value, argv.get(0))) {
+			server.data.remove(key);
+			server.expires.remove(key);
+			writeInteger(out, 1);
+		} else {
+			writeInteger(out, 0);
+		}
+	}
+
+	/*
+	 * UserRedisStore.GUARDED_WRITE_SCRIPT：墓碑存在时不写入：
+	 */
+	private static void guardedWrite(RespServer server, List<byte[]> keys, List<byte[]> argv, OutputStream out) throws IOException {
+		if (server.lookup(key(keys, 0)) != null) {
+			writeInteger(out, 0);
+			return;
+		}
+		String key = key(keys, 1);
+		String field = key(argv, 1);
+		boolean nx = str(argv.get(3)).equals("1");
+		if (field.isEmpty()) {
+			if (nx && server.lookup(key) != null) {
+				writeInteger(out, 0);
+				return;
+			}
+			server.put(key, argv.get(0), Long.parseLong(str(argv.get(2))));
+			writeInteger(out, 1);
+			return;
+		}
+		Map<String, byte[]> hash = server.hash(key, true);
+		if (nx && hash.containsKey(field)) {
+			writeInteger(out, 0);
+			return;
+		}
+		hash.put(field, argv.get(0));
+		writeInteger(out, 1);
+	}
+
+	/*
+	 * UserKeyMigration.REMOVE_IF_UNCHANGED_SCRIPT：返回被删除的是第几对（从1开始）：
+	 */
+	private static void removeIfUnchanged(RespServer server, List<byte[]> keys, List<byte[]> argv, OutputStream out) throws IOException {
+		String key = key(keys, 0);
+		List<Integer> removed = new ArrayList<>();
+		for (int i = 0; i + 1 < argv.size(); i += 2) {
+			byte[] value = server.hash(key, false).get(key(argv, i));
+			if (value != null && Arrays.equals(value, argv.get(i + 1))) {
+				server.hdel(key, Collections.singletonList(key(argv, i)));
+				removed.add(i / 2 + 1);
+			}
+		}
+		writeArrayHeader(out, removed.size());
+		for (int n : removed) {
+			writeInteger(out, n);
+		}
+	}
+
+	/*
+	 * SigninRateLimiter.SCRIPT：令牌桶，ARGV[1]为check或take，之后每个桶一对容量和每毫秒补充的令牌数，
+	 * 返回每个桶需要等待的毫秒数和取整的剩余令牌数：
+	 */
+	private static void rateLimit(RespServer server, List<byte[]> keys, List<byte[]> argv, OutputStream out) throws IOException {
+		long now = System.currentTimeMillis();
+		boolean take = str(argv.get(0)).equals("take");
+		writeArrayHeader(out, keys.size() * 2);
+		for (int i = 0; i < keys.size(); i++) {
+			String key = key(keys, i);
+			double capacity = Double.parseDouble(str(argv.get(i * 2 + 1)));
+			double rate = Double.parseDouble(str(argv.get(i * 2 + 2)));
+			Map<String, byte[]> bucket = server.hash(key, false);
+			double tokens = bucket.containsKey("t") ? Double.parseDouble(str(bucket.get("t"))) : capacity;
+			long ts = bucket.containsKey("ts") ? Long.parseLong(str(bucket.get("ts"))) : now;
+			tokens = Math.min(capacity, tokens + Math.max(0, now - ts) * rate);
+			if (take) {
+				tokens = Math.max(0, tokens - 1);
+				bucket = server.hash(key, true);
+				bucket.put("t", bytes(Double.toString(tokens)));
+				bucket.put("ts", bytes(Long.toString(now)));
+				server.expires.put(key, now + (long) Math.ceil(capacity / rate));
+			}
+			writeInteger(out, tokens < 1 ? (long) Math.ceil((1 - tokens) / rate) : 0);
+			writeInteger(out, (long) Math.floor(tokens));
+		}
+	}
+
+	static String sha1(String script) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-1").digest(script.getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder(40);
+			for (byte b : hash) {
+				sb.append(String.format("%02x", b));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void put(String key, byte[] value, long ttlMillis) {
+		data.put(key, value);
+		if (ttlMillis > 0) {
+			expires.put(key, System.currentTimeMillis() + ttlMillis);
+		} else {
+			expires.remove(key);
+		}
+	}
+
+	private Object lookup(String key) {
+		Long expireAt = expires.get(key);
+		if (expireAt != null && expireAt <= System.currentTimeMillis()) {
+			data.remove(key);
+			expires.remove(key);
+			return null;
+		}
+		return data.get(key);
+	}
+
+	private byte[] getString(String key) {
+		Object value = lookup(key);
+		return value instanceof byte[] ? (byte[]) value : null;
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map<String, byte[]> hash(String key, boolean create) {
+		Object value = lookup(key);
+		if (value instanceof Map) {
+			return (Map<String, byte[]>) value;
+		}
+		Map<String, byte[]> hash = new LinkedHashMap<>();
+		if (create) {
+			data.put(key, hash);
+		}
+		return hash;
+	}
+
+	private static String key(List<byte[]> command, int index) {
+		return new String(command.get(index), StandardCharsets.ISO_8859_1);
+	}
+
+	private static String str(byte[] bytes) {
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static void writeSimple(OutputStream out, String s) throws IOException {
+		out.write(('+' + s + "\r\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void writeError(OutputStream out, String s) throws IOException {
+		out.write(('-' + s + "\r\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void writeInteger(OutputStream out, long n) throws IOException {
+		out.write((":" + n + "\r\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void writeArrayHeader(OutputStream out, int n) throws IOException {
+		out.write(("*" + n + "\r\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void writeBulk(OutputStream out, byte[] bytes) throws IOException {
+		if (bytes == null) {
+			out.write("$-1\r\n".getBytes(StandardCharsets.UTF_8));
+			return;
+		}
+		out.write(("$" + bytes.length + "\r\n").getBytes(StandardCharsets.UTF_8));
+		out.write(bytes);
+		out.write("\r\n".getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,184 @@
+package com.self.learnjava.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisConnectionException;
+import io.lettuce.core.RedisURI;
+
+/*
+ * SigninRateLimiter：只有失败的登录扣减令牌，email和IP的桶通过Redis在节点之间共享，离限流还很远时只检查本地的桶，
+ * Redis不可用时使用本地的桶。
+ * 默认使用RespServer（按相同的语义执行限流脚本），-Dredis.server=binary时在真实的redis-server上执行Lua脚本。
+ */
+public class SigninRateLimiterTest {
+
+	static final String IP = "10.0.0.1";
+
+	private EmbeddedRedis server;
+	private RedisClient redisClient;
+	private RedisService redisService;
+
+	@BeforeEach
+	public void setUp() {
+		this.server = EmbeddedRedis.start();
+		this.redisClient = RedisClient.create(RedisURI.create(server.getHost(), server.getPort()));
+		this.redisService = RedisServiceBenchmark.createRedisService(redisClient, RedisService.MODE_POOLED);
+	}
+
+	@AfterEach
+	public void tearDown() {
+		redisService.shutdown();
+		redisClient.shutdown();
+		server.close();
+	}
+
+	/*
+	 * 每个节点有自己的本地桶，共享同一个Redis：
+	 */
+	private SigninRateLimiter newNode(RedisService redisService) {
+		SigninRateLimiter limiter = new SigninRateLimiter();
+		limiter.redisService = redisService;
+		limiter.enabled = true;
+		limiter.emailCapacity = 3;
+		limiter.emailPer = Duration.ofMinutes(1);
+		limiter.ipCapacity = 5;
+		limiter.ipPer = Duration.ofMinutes(1);
+		limiter.localThreshold = 0.5;
+		limiter.init();
+		return limiter;
+	}
+
+	@Test
+	public void successfulSigninsAreNotLimited() {
+		SigninRateLimiter limiter = newNode(redisService);
+		for (int i = 0; i < 20; i++) {
+			limiter.check("bob@example.com", IP);
+		}
+	}
+
+	@Test
+	public void rejectsEmailAfterCapacityFailures() {
+		SigninRateLimiter limiter = newNode(redisService);
+		for (int i = 0; i < 3; i++) {
+			limiter.check("bob@example.com", IP);
+			limiter.recordFailure("bob@example.com", IP);
+		}
+		RateLimitedException e = assertThrows(RateLimitedException.class, () -> limiter.check("bob@example.com", IP));
+		assertTrue(e.getRetryAfterMillis() > 0);
+		// 同一个IP的桶还有令牌，其他email不受影响，email不区分大小写:
+		limiter.check("alice@example.com", IP);
+		assertThrows(RateLimitedException.class, () -> limiter.check(" Bob@Example.com", "10.0.0.2"));
+	}
+
+	@Test
+	public void rejectsIpAfterCapacityFailuresWithDifferentEmails() {
+		SigninRateLimiter limiter = newNode(redisService);
+		for (int i = 0; i < 5; i++) {
+			limiter.recordFailure("user" + i + "@example.com", IP);
+		}
+		assertThrows(RateLimitedException.class, () -> limiter.check("new@example.com", IP));
+		limiter.check("new@example.com", "10.0.0.2");
+	}
+
+	@Test
+	public void clearlyAllowedSigninsDoNotCallRedis() {
+		AtomicInteger calls = new AtomicInteger();
+		SigninRateLimiter limiter = newNode(counting(calls));
+		for (int i = 0; i < 20; i++) {
+			limiter.check("bob@example.com", IP);
+		}
+		assertEquals(0, calls.get());
+		// 失败写入Redis，剩余2个令牌，仍然不低于阈值（容量的一半），check不访问Redis:
+		limiter.recordFailure("bob@example.com", IP);
+		int afterFailure = calls.get();
+		assertTrue(afterFailure > 0);
+		limiter.check("bob@example.com", IP);
+		assertEquals(afterFailure, calls.get());
+		// 剩余1个令牌，低于阈值，check由Redis检查:
+		limiter.recordFailure("bob@example.com", IP);
+		afterFailure = calls.get();
+		limiter.check("bob@example.com", IP);
+		assertEquals(afterFailure + 1, calls.get());
+	}
+
+	@Test
+	public void bucketsAreSharedBetweenNodes() {
+		SigninRateLimiter node1 = newNode(redisService);
+		SigninRateLimiter node2 = newNode(redisService);
+		for (int i = 0; i < 3; i++) {
+			node1.recordFailure("bob@example.com", IP);
+		}
+		// node2没有见过bob的失败，本地放行；这次失败同步了Redis中的令牌数，之后在本地拒绝:
+		node2.check("bob@example.com", IP);
+		node2.recordFailure("bob@example.com", IP);
+		assertThrows(RateLimitedException.class, () -> node2.check("bob@example.com", IP));
+		// 只阻塞email的桶，同一个IP的其他email不受影响:
+		node2.check("alice@example.com", IP);
+		// 在本地阻塞，不再访问Redis:
+		redisService.executeSync(commands -> commands.flushdb());
+		assertThrows(RateLimitedException.class, () -> node2.check("bob@example.com", IP));
+	}
+
+	@Test
+	public void consultsRedisNearThreshold() {
+		SigninRateLimiter node1 = newNode(redisService);
+		SigninRateLimiter node2 = newNode(redisService);
+		node1.recordFailure("bob@example.com", IP);
+		// node2同步到Redis中剩余的1个令牌，低于阈值:
+		node2.recordFailure("bob@example.com", IP);
+		node2.check("bob@example.com", IP);
+		node1.recordFailure("bob@example.com", IP);
+		// node2的本地桶还有令牌，由Redis拒绝:
+		assertThrows(RateLimitedException.class, () -> node2.check("bob@example.com", IP));
+	}
+
+	@Test
+	public void fallsBackToLocalBucketsWhenRedisIsDown() {
+		RedisService down = new RedisService() {
+			@Override
+			public <T> T executeSync(SyncCommandCallback<T> callback) {
+				throw new RedisConnectionException("Unable to connect");
+			}
+		};
+		SigninRateLimiter limiter = newNode(down);
+		for (int i = 0; i < 3; i++) {
+			limiter.check("bob@example.com", IP);
+			limiter.recordFailure("bob@example.com", IP);
+		}
+		assertThrows(RateLimitedException.class, () -> limiter.check("bob@example.com", IP));
+		limiter.check("alice@example.com", IP);
+	}
+
+	/*
+	 * 统计访问Redis的次数：
+	 */
+	private RedisService counting(AtomicInteger calls) {
+		return new RedisService() {
+			@Override
+			public <T> T executeSync(SyncCommandCallback<T> callback) {
+				calls.incrementAndGet();
+				return redisService.executeSync(callback);
+			}
+		};
+	}
+
+	@Test
+	public void disabledLimiterNeverRejects() {
+		SigninRateLimiter limiter = newNode(redisService);
+		limiter.enabled = false;
+		for (int i = 0; i < 10; i++) {
+			limiter.recordFailure("bob@example.com", IP);
+		}
+		limiter.check("bob@example.com", IP);
+	}
+}
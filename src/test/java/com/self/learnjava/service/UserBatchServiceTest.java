@@ -0,0 +1,163 @@
+package com.self.learnjava.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.self.learnjava.TestDatabase;
+import com.self.learnjava.entity.User;
+import com.self.learnjava.service.UserBatchService.RegisterResult;
+
+/*
+ * UserBatchService.registerBatch：结果与请求一一对应，部分失败不影响其他用户，
+ * 批量插入冲突时退回逐条插入，注册邮件只为插入成功的用户写入发件箱，错误以固定的错误码返回。
+ */
+public class UserBatchServiceTest {
+
+	private TestDatabase db;
+
+	@BeforeEach
+	public void setUp() {
+		this.db = new TestDatabase();
+	}
+
+	@AfterEach
+	public void tearDown() {
+		db.shutdown();
+	}
+
+	private UserBatchService newService(JdbcTemplate jdbcTemplate) {
+		OutboxService outboxService = new OutboxService();
+		outboxService.jdbcTemplate = jdbcTemplate;
+		outboxService.objectMapper = new ObjectMapper();
+		outboxService.outboxRelay = new OutboxRelay();
+		UserBatchService service = new UserBatchService();
+		service.jdbcTemplate = jdbcTemplate;
+		service.transactionManager = db.transactionManager;
+		service.outboxService = outboxService;
+		service.batchSize = 2;
+		service.init();
+		return service;
+	}
+
+	static User user(String email, String name) {
+		User user = new User();
+		user.setEmail(email);
+		user.setPassword("password");
+		user.setName(name);
+		return user;
+	}
+
+	@Test
+	public void reportsPartialFailuresInRequestOrder() {
+		db.jdbcTemplate.update(UserBatchService.INSERT_SQL, "taken@example.com", "password", "Taken", System.currentTimeMillis());
+		List<RegisterResult> results = newService(db.jdbcTemplate).registerBatch(Arrays.asList(
+				user("a@example.com", "A"),
+				user("b@example.com", null),
+				user("a@example.com", "A again"),
+				user("taken@example.com", "Taken again"),
+				user("c@example.com", "C"),
+				user("d@example.com", "D")));
+		assertEquals(6, results.size());
+		for (int i = 0; i < results.size(); i++) {
+			assertEquals(i, results.get(i).index);
+		}
+		assertSuccess(results.get(0), "a@example.com");
+		assertEquals(UserBatchService.ERROR_INVALID, results.get(1).error);
+		assertEquals("Missing email, password or name", results.get(1).message);
+		assertEquals(UserBatchService.ERROR_DUPLICATE_EMAIL, results.get(2).error);
+		assertEquals("Duplicate email in request", results.get(2).message);
+		assertEquals(UserBatchService.ERROR_DUPLICATE_EMAIL, results.get(3).error);
+		assertEquals("Email already registered", results.get(3).message);
+		assertSuccess(results.get(4), "c@example.com");
+		assertSuccess(results.get(5), "d@example.com");
+		assertEquals(4, count("SELECT COUNT(*) FROM users"));
+		assertEquals(3, count("SELECT COUNT(*) FROM outbox WHERE destination = '" + MessaginService.MAIL_QUEUE + "'"));
+	}
+
+	/*
+	 * 检查已存在的email之后、批量插入之前，其他连接注册了同一个email：
+	 */
+	@Test
+	public void fallsBackToRowByRowWhenBatchInsertConflicts() {
+		JdbcTemplate otherNode = db.otherClient();
+		JdbcTemplate racing = new JdbcTemplate(db.dataSource) {
+			private boolean raced;
+
+			@Override
+			public int[] batchUpdate(String sql, BatchPreparedStatementSetter pss) {
+				if (!raced) {
+					raced = true;
+					otherNode.update(UserBatchService.INSERT_SQL, "b@example.com", "password", "Racer", System.currentTimeMillis());
+				}
+				return super.batchUpdate(sql, pss);
+			}
+		};
+		List<RegisterResult> results = newService(racing).registerBatch(Arrays.asList(
+				user("a@example.com", "A"),
+				user("b@example.com", "B"),
+				user("c@example.com", "C")));
+		assertSuccess(results.get(0), "a@example.com");
+		assertEquals(UserBatchService.ERROR_DUPLICATE_EMAIL, results.get(1).error);
+		assertNull(results.get(1).id);
+		assertSuccess(results.get(2), "c@example.com");
+		assertEquals(3, count("SELECT COUNT(*) FROM users"));
+		// 回滚的批量插入没有留下发件箱记录:
+		assertEquals(2, count("SELECT COUNT(*) FROM outbox"));
+	}
+
+	/*
+	 * 数据库的错误信息不返回给调用方：
+	 */
+	@Test
+	public void mapsDatabaseErrorsToCodes() {
+		char[] longName = new char[101];
+		Arrays.fill(longName, 'x');
+		List<RegisterResult> results = newService(db.jdbcTemplate).registerBatch(Arrays.asList(
+				user("a@example.com", "A"),
+				user("b@example.com", new String(longName))));
+		assertSuccess(results.get(0), "a@example.com");
+		assertEquals(UserBatchService.ERROR_INVALID, results.get(1).error);
+		assertEquals("Invalid email, password or name", results.get(1).message);
+		assertNull(results.get(1).id);
+
+		JdbcTemplate timingOut = new JdbcTemplate(db.dataSource) {
+			@Override
+			public int update(String sql, Object... args) {
+				throw new QueryTimeoutException("statement timeout: " + sql);
+			}
+
+			@Override
+			public int[] batchUpdate(String sql, BatchPreparedStatementSetter pss) {
+				throw new QueryTimeoutException("statement timeout: " + sql);
+			}
+		};
+		RegisterResult failed = newService(timingOut).registerBatch(Collections.singletonList(user("c@example.com", "C"))).get(0);
+		assertEquals(UserBatchService.ERROR_REGISTER_FAILED, failed.error);
+		assertEquals("Register failed", failed.message);
+		assertFalse(failed.message.contains("INSERT"), failed.message);
+	}
+
+	private void assertSuccess(RegisterResult result, String email) {
+		assertNull(result.error, result.toString());
+		assertNotNull(result.id, result.toString());
+		assertEquals(email, db.jdbcTemplate.queryForObject("SELECT email FROM users WHERE id = ?", String.class, result.id));
+	}
+
+	private long count(String sql) {
+		return db.jdbcTemplate.queryForObject(sql, Long.class);
+	}
+}
@@ -0,0 +1,196 @@
+package com.self.learnjava.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.self.learnjava.entity.User;
+
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+
+/*
+ * UserCache的读取顺序和失效：L1 -> L2(Redis) -> 数据库，修改后删除所有节点的L1和Redis中的L2，
+ * 墓碑期间从数据库读到的旧数据不能写回L2。两个节点各有自己的RedisService和pub/sub连接，共享同一个Redis。
+ */
+public class UserCacheTest {
+
+	private EmbeddedRedis server;
+	private RedisClient redisClient;
+	private final List<RedisService> redisServices = new ArrayList<>();
+
+	// 模拟数据库，每次加载计数:
+	private final Map<Long, User> db = new ConcurrentHashMap<>();
+	private final AtomicInteger loads = new AtomicInteger();
+
+	@BeforeEach
+	public void setUp() {
+		this.server = EmbeddedRedis.start();
+		this.redisClient = RedisClient.create(RedisURI.create(server.getHost(), server.getPort()));
+		db.put(1L, RedisServiceBenchmark.user(1));
+	}
+
+	@AfterEach
+	public void tearDown() {
+		for (RedisService redisService : redisServices) {
+			redisService.shutdown();
+		}
+		redisClient.shutdown();
+		server.close();
+	}
+
+	private UserCache newNode() {
+		RedisService redisService = RedisServiceBenchmark.createRedisService(redisClient, RedisService.MODE_POOLED);
+		redisServices.add(redisService);
+		UserRedisStore store = new UserRedisStore();
+		store.redisService = redisService;
+		store.layoutName = UserKeyLayout.PER_USER;
+		store.buckets = 64;
+		store.ttl = Duration.ofDays(1);
+		store.tombstoneTtl = Duration.ofSeconds(5);
+		store.init();
+		UserCache cache = new UserCache();
+		cache.redisService = redisService;
+		cache.userRedisStore = store;
+		cache.enabled = true;
+		cache.maximumSize = 1000;
+		cache.expireAfterWrite = Duration.ofMinutes(10);
+		cache.l2Enabled = true;
+		cache.invalidationChannel = "__users_invalidate__";
+		cache.leaseEnabled = true;
+		cache.leaseTtl = Duration.ofSeconds(3);
+		cache.leaseWait = Duration.ofMillis(200);
+		cache.leasePollInterval = Duration.ofMillis(20);
+		cache.init();
+		return cache;
+	}
+
+	private User load(long id) {
+		loads.incrementAndGet();
+		User user = db.get(id);
+		// 返回副本，和从数据库读出的一样:
+		return user == null ? null : copy(user);
+	}
+
+	private User loadByEmail(String email) {
+		for (User user : db.values()) {
+			if (user.getEmail().equals(email)) {
+				return load(user.getId());
+			}
+		}
+		loads.incrementAndGet();
+		return null;
+	}
+
+	private static User copy(User user) {
+		User u = new User();
+		u.setId(user.getId());
+		u.setEmail(user.getEmail());
+		u.setName(user.getName());
+		u.setPassword(user.getPassword());
+		u.setCreatedAt(user.getCreatedAt());
+		return u;
+	}
+
+	@Test
+	public void readsThroughL1ThenL2ThenDatabase() {
+		UserCache node1 = newNode();
+		UserCache node2 = newNode();
+		assertEquals("User 1", node1.getById(1L, this::load).getName());
+		assertEquals(1, loads.get());
+		// L1命中:
+		node1.getById(1L, this::load);
+		node1.getByEmail("user1@example.com", this::loadByEmail);
+		assertEquals(1, loads.get());
+		// 另一个节点从L2读到:
+		assertEquals("User 1", node2.getById(1L, this::load).getName());
+		assertEquals("User 1", node2.getByEmail("user1@example.com", this::loadByEmail).getName());
+		assertEquals(1, loads.get());
+	}
+
+	@Test
+	public void invalidateEvictsL1OnAllNodes() throws InterruptedException {
+		UserCache node1 = newNode();
+		UserCache node2 = newNode();
+		node1.getById(1L, this::load);
+		node2.getById(1L, this::load);
+		db.get(1L).setName("Bob");
+		node1.invalidate(1L, "user1@example.com");
+		assertEquals("Bob", node1.getById(1L, this::load).getName());
+		// 失效消息通过pub/sub异步到达node2:
+		assertEquals("Bob", awaitName(node2, 1L, "Bob"));
+	}
+
+	@Test
+	public void changedEmailEvictsOldEmail() {
+		UserCache node = newNode();
+		assertNotNull(node.getByEmail("user1@example.com", this::loadByEmail));
+		db.get(1L).setEmail("new@example.com");
+		node.invalidate(1L, "new@example.com");
+		// 旧email的L1和L2索引都已删除:
+		assertNull(node.getByEmail("user1@example.com", this::loadByEmail));
+		assertEquals(1L, node.getByEmail("new@example.com", this::loadByEmail).getId().longValue());
+	}
+
+	@Test
+	public void tombstoneBlocksStaleWriteToL2() {
+		UserCache node = newNode();
+		User stale = load(1L);
+		db.get(1L).setName("Bob");
+		node.invalidate(1L, "user1@example.com");
+		// 加载者在修改之前读到了旧数据，删除之后才写入L2，被墓碑拒绝:
+		node.userRedisStore.put(stale);
+		assertNull(node.userRedisStore.get(1L));
+		assertEquals("Bob", node.getById(1L, this::load).getName());
+	}
+
+	/*
+	 * 从库还没有复制到修改，缓存未命中时读到了旧数据：墓碑期间既不写入L2也不放入L1，从库追上后读到新数据：
+	 */
+	@Test
+	public void staleReplicaReadDuringTombstoneIsNotCached() {
+		UserCache node = newNode();
+		node.getById(1L, this::load);
+		User stale = load(1L);
+		db.get(1L).setName("Bob");
+		node.invalidate(1L, "user1@example.com");
+		assertEquals("User 1", node.getById(1L, id -> stale).getName());
+		assertNull(node.userRedisStore.get(1L));
+		assertEquals("Bob", node.getById(1L, this::load).getName());
+	}
+
+	@Test
+	public void writeToL2SucceedsAfterTombstoneExpires() throws InterruptedException {
+		UserCache node = newNode();
+		node.userRedisStore.tombstoneTtl = Duration.ofMillis(100);
+		node.invalidate(1L, "user1@example.com");
+		Thread.sleep(200);
+		node.userRedisStore.put(load(1L));
+		assertEquals("User 1", node.userRedisStore.get(1L).getName());
+	}
+
+	private String awaitName(UserCache cache, long id, String expected) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		String name = null;
+		while (System.currentTimeMillis() < deadline) {
+			User user = cache.getById(id, this::load);
+			name = user == null ? null : user.getName();
+			if (expected.equals(name)) {
+				break;
+			}
+			Thread.sleep(20);
+		}
+		return name;
+	}
+}
@@ -0,0 +1,84 @@
+package com.self.learnjava.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.self.learnjava.TestDatabase;
+import com.self.learnjava.entity.User;
+
+/*
+ * UserService的按id分页和登录失败，缓存关闭，直接访问数据库。
+ */
+public class UserServiceTest {
+
+	private TestDatabase db;
+	private UserService userService;
+
+	@BeforeEach
+	public void setUp() {
+		this.db = new TestDatabase();
+		UserCache userCache = new UserCache();
+		userCache.enabled = false;
+		userCache.maximumSize = 1000;
+		userCache.expireAfterWrite = Duration.ofMinutes(10);
+		userCache.init();
+		OutboxService outboxService = new OutboxService();
+		outboxService.jdbcTemplate = db.jdbcTemplate;
+		outboxService.objectMapper = new ObjectMapper();
+		outboxService.outboxRelay = new OutboxRelay();
+		this.userService = new UserService();
+		userService.jdbcTemplate = db.jdbcTemplate;
+		userService.userCache = userCache;
+		userService.outboxService = outboxService;
+	}
+
+	@AfterEach
+	public void tearDown() {
+		db.shutdown();
+	}
+
+	@Test
+	public void pagesThroughAllUsersByCursor() {
+		for (int i = 0; i < 7; i++) {
+			userService.register("user" + i + "@example.com", "password", "User " + i);
+		}
+		List<User> all = new ArrayList<>();
+		// 与ApiController相同，第一页从Long.MIN_VALUE开始（HSQLDB的IDENTITY从0开始）:
+		long afterId = Long.MIN_VALUE;
+		int pages = 0;
+		while (true) {
+			List<User> page = userService.getUsers(afterId, 3);
+			if (page.isEmpty()) {
+				break;
+			}
+			assertTrue(page.size() <= 3);
+			all.addAll(page);
+			afterId = page.get(page.size() - 1).getId();
+			pages++;
+		}
+		assertEquals(3, pages);
+		assertEquals(7, all.size());
+		assertEquals(userService.countUsers(), all.size());
+		for (int i = 1; i < all.size(); i++) {
+			assertTrue(all.get(i).getId() > all.get(i - 1).getId(), "ids must be strictly increasing");
+		}
+	}
+
+	@Test
+	public void signinFailuresThrowSigninException() {
+		userService.register("bob@example.com", "password", "Bob");
+		assertEquals("Bob", userService.signin("bob@example.com", "password").getName());
+		assertThrows(SigninException.class, () -> userService.signin("bob@example.com", "wrong"));
+		assertThrows(SigninException.class, () -> userService.signin("nobody@example.com", "password"));
+	}
+}
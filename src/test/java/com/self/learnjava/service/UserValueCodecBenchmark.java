@@ -0,0 +1,66 @@
+package com.self.learnjava.service;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.self.learnjava.entity.User;
+
+/*
+ * User的JSON格式和UserValueCodec紧凑格式的编码、解码耗时对比，不需要Redis：
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserValueCodecBenchmark {
+
+	private JacksonValueCodec json;
+	private UserValueCodec compact;
+
+	private User user;
+	private byte[] jsonBytes;
+	private byte[] compactBytes;
+
+	@Setup
+	public void setup() {
+		this.json = new JacksonValueCodec(new ObjectMapper());
+		this.compact = new UserValueCodec();
+		this.compact.jacksonValueCodec = json;
+		this.user = RedisServiceBenchmark.user(12345);
+		this.jsonBytes = json.encode(user);
+		this.compactBytes = compact.encode(user);
+	}
+
+	@Benchmark
+	public byte[] encodeJson() {
+		return json.encode(user);
+	}
+
+	@Benchmark
+	public byte[] encodeCompact() {
+		return compact.encode(user);
+	}
+
+	@Benchmark
+	public User decodeJson() {
+		return json.decode(jsonBytes, User.class);
+	}
+
+	@Benchmark
+	public User decodeCompact() {
+		return compact.decode(compactBytes, User.class);
+	}
+}